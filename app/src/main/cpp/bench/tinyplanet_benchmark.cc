@@ -0,0 +1,161 @@
+// Benchmarks for the tiny planet projection on synthetic equirectangular
+// panoramas. The output follows Google Benchmark's console format, with the
+// throughput in Mpix/s and ns/pixel of output, so regressions in the kernels
+// show up on a Linux host without a device.
+//
+// Flags:
+//   --benchmark_filter=<substring>  only run benchmarks whose name contains it
+//   --benchmark_min_time=<seconds>  minimum measuring time per benchmark
+//   --threads=<n>                   render threads, 0 for one per online CPU
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <string>
+#include <vector>
+
+#include "../tinyplanet_core.h"
+
+namespace {
+
+struct Options {
+    std::string filter;
+    double min_time = 0.5;
+    int threads = 0;
+};
+
+struct Case {
+    const char *label;
+    int input_width;
+    int output_size;
+    float scale;
+    float angle;
+    // Rotates by angle_step every iteration, like dragging the angle slider.
+    float angle_step;
+    // Zooms by scale_step every iteration, like dragging the zoom slider.
+    float scale_step;
+    bool tiled_source;
+    // Samples zoomed out parts from a mip pyramid built once up front.
+    bool mip;
+};
+
+// A synthetic 2:1 panorama with gradients and a checker pattern, so every
+// source cache line holds distinct values.
+std::vector<unsigned char> CreatePanorama(int width, int height) {
+    std::vector<unsigned char> pixels(static_cast<size_t>(width) * height * 4);
+    unsigned char *p = pixels.data();
+    for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++, p += 4) {
+            p[0] = static_cast<unsigned char>(x * 255L / width);
+            p[1] = static_cast<unsigned char>(y * 255L / height);
+            p[2] = static_cast<unsigned char>(((x >> 4) ^ (y >> 4)) & 1 ? 0xE0 : 0x20);
+            p[3] = 0xFF;
+        }
+    }
+    return pixels;
+}
+
+double CpuSeconds() {
+    return static_cast<double>(std::clock()) / CLOCKS_PER_SEC;
+}
+
+void RunCase(const Case &c, const Options &options) {
+    char name[128];
+    char scale_label[16];
+    snprintf(scale_label, sizeof(scale_label), c.scale_step != 0 ? "sweep" : "%.2f", c.scale);
+    snprintf(name, sizeof(name), "BM_StereographicProjection/%s/%dx%d/%d/scale:%s/angle:%s%s%s",
+             c.label, c.input_width, c.input_width / 2, c.output_size, scale_label,
+             c.angle_step != 0 ? "sweep" : (c.angle == 0 ? "0" : "1.57"),
+             c.tiled_source ? "/tiled" : "", c.mip ? "/mip" : "");
+    if (!options.filter.empty() && strstr(name, options.filter.c_str()) == nullptr) {
+        return;
+    }
+
+    int input_height = c.input_width / 2;
+    std::vector<unsigned char> input = CreatePanorama(c.input_width, input_height);
+    std::vector<unsigned char> output(static_cast<size_t>(c.output_size) * c.output_size * 4);
+    MipPyramid *pyramid = c.mip ? CreateMipPyramid(input.data(), c.input_width, input_height,
+                                                   options.threads)
+                                : nullptr;
+
+    // Warm up caches, the worker pool and the polar table.
+    float scale = c.scale;
+    float angle = c.angle;
+    for (int i = 0; i < 2; i++) {
+        StereographicProjection(scale, angle, input.data(), c.input_width, input_height,
+                                output.data(), c.output_size, c.output_size, options.threads,
+                                c.tiled_source, nullptr, pyramid);
+    }
+
+    long iterations = 0;
+    auto start = std::chrono::steady_clock::now();
+    double cpu_start = CpuSeconds();
+    double elapsed = 0;
+    do {
+        scale += c.scale_step;
+        angle += c.angle_step;
+        StereographicProjection(scale, angle, input.data(), c.input_width, input_height,
+                                output.data(), c.output_size, c.output_size, options.threads,
+                                c.tiled_source, nullptr, pyramid);
+        iterations++;
+        elapsed = std::chrono::duration<double>(std::chrono::steady_clock::now() - start).count();
+    } while (elapsed < options.min_time);
+    double cpu = CpuSeconds() - cpu_start;
+    DestroyMipPyramid(pyramid);
+
+    double pixels = static_cast<double>(c.output_size) * c.output_size * iterations;
+    printf("%-76s %9.2f ms %9.2f ms %10ld %9.1f Mpix/s %7.2f ns/pixel\n", name,
+           elapsed * 1e3 / iterations, cpu * 1e3 / iterations, iterations, pixels / elapsed / 1e6,
+           elapsed * 1e9 / pixels);
+    fflush(stdout);
+}
+
+}  // namespace
+
+int main(int argc, char **argv) {
+    Options options;
+    for (int i = 1; i < argc; i++) {
+        if (strncmp(argv[i], "--benchmark_filter=", 19) == 0) {
+            options.filter = argv[i] + 19;
+        } else if (strncmp(argv[i], "--benchmark_min_time=", 21) == 0) {
+            options.min_time = atof(argv[i] + 21);
+        } else if (strncmp(argv[i], "--threads=", 10) == 0) {
+            options.threads = atoi(argv[i] + 10);
+        } else {
+            fprintf(stderr, "Unknown flag %s\n", argv[i]);
+            return 1;
+        }
+    }
+
+    const Case cases[] = {
+            // Editor previews on a phone-sized display.
+            {"preview", 2160, 1080, 0.5f, 0.0f, 0.0f, 0.0f, false, false},
+            {"preview", 2160, 1080, 0.5f, 1.57f, 0.0f, 0.0f, false, false},
+            {"preview", 2160, 1080, 0.1f, 0.0f, 0.0f, 0.0f, false, false},
+            {"preview", 2160, 1080, 1.0f, 0.0f, 0.0f, 0.0f, false, false},
+            {"preview", 2160, 1080, 0.5f, 0.0f, 0.01f, 0.0f, false, false},
+            {"preview", 2160, 1080, 0.5f, 0.0f, 0.0f, 0.001f, false, false},
+            {"preview", 4096, 1440, 0.5f, 0.0f, 0.01f, 0.0f, false, false},
+            {"preview", 4096, 1440, 0.5f, 0.0f, 0.0f, 0.001f, false, false},
+            // The same previews sampling the mip pyramid.
+            {"preview", 2160, 1080, 0.5f, 0.0f, 0.0f, 0.0f, false, true},
+            {"preview", 2160, 1080, 0.1f, 0.0f, 0.0f, 0.0f, false, true},
+            {"preview", 2160, 1080, 1.0f, 0.0f, 0.0f, 0.0f, false, true},
+            {"preview", 4096, 1440, 0.5f, 0.0f, 0.0f, 0.001f, false, true},
+            // Full resolution saves, output is half the panorama width.
+            {"fullres", 8000, 4000, 0.5f, 0.0f, 0.0f, 0.0f, false, false},
+            {"fullres", 8000, 4000, 0.1f, 1.57f, 0.0f, 0.0f, false, false},
+            {"fullres", 8000, 4000, 0.5f, 0.0f, 0.0f, 0.0f, true, false},
+    };
+
+    printf("Kernels: %s\n", KernelName());
+    printf("%-76s %12s %12s %10s %16s %16s\n", "Benchmark", "Time", "CPU", "Iterations",
+           "Throughput", "Per pixel");
+    printf("%s\n", std::string(148, '-').c_str());
+    for (const Case &c : cases) {
+        RunCase(c, options);
+    }
+    return 0;
+}
@@ -0,0 +1,136 @@
+#include "jpeg_encoder.h"
+
+#include <csetjmp>
+#include <cstdio>
+#include <vector>
+
+#include <jpeglib.h>
+
+// Encoded bytes are handed to the write function in chunks of this size.
+#define OUTPUT_BUFFER_SIZE (64 * 1024)
+// Rows passed to libjpeg per call.
+#define ROWS_PER_CALL 16
+
+class JpegEncoder {
+public:
+    jpeg_compress_struct cinfo;
+    jpeg_error_mgr error;
+    jpeg_destination_mgr destination;
+    // Where libjpeg errors and write failures return to.
+    jmp_buf failure;
+    bool failed;
+    JpegWriteFunction write;
+    void *context;
+    std::vector<JOCTET> buffer;
+};
+
+static JpegEncoder *EncoderOf(j_common_ptr cinfo) {
+    return static_cast<JpegEncoder *>(cinfo->client_data);
+}
+
+// libjpeg's default error_exit calls exit().
+static void ErrorExit(j_common_ptr cinfo) {
+    longjmp(EncoderOf(cinfo)->failure, 1);
+}
+
+static void InitDestination(j_compress_ptr cinfo) {
+    JpegEncoder *encoder = EncoderOf(reinterpret_cast<j_common_ptr>(cinfo));
+    encoder->destination.next_output_byte = encoder->buffer.data();
+    encoder->destination.free_in_buffer = encoder->buffer.size();
+}
+
+// Called when the buffer is full; the whole buffer is to be written.
+static boolean EmptyOutputBuffer(j_compress_ptr cinfo) {
+    JpegEncoder *encoder = EncoderOf(reinterpret_cast<j_common_ptr>(cinfo));
+    if (!encoder->write(encoder->context, encoder->buffer.data(), encoder->buffer.size())) {
+        longjmp(encoder->failure, 1);
+    }
+    InitDestination(cinfo);
+    return TRUE;
+}
+
+static void TermDestination(j_compress_ptr cinfo) {
+    JpegEncoder *encoder = EncoderOf(reinterpret_cast<j_common_ptr>(cinfo));
+    size_t size = encoder->buffer.size() - encoder->destination.free_in_buffer;
+    if (size > 0 && !encoder->write(encoder->context, encoder->buffer.data(), size)) {
+        longjmp(encoder->failure, 1);
+    }
+}
+
+JpegEncoder *CreateJpegEncoder(int width, int height, int quality, JpegWriteFunction write,
+                               void *context) {
+    // Value initialized, so destroying it before jpeg_create_compress is safe.
+    JpegEncoder *encoder = new JpegEncoder();
+    encoder->write = write;
+    encoder->context = context;
+    encoder->buffer.resize(OUTPUT_BUFFER_SIZE);
+    encoder->cinfo.err = jpeg_std_error(&encoder->error);
+    encoder->error.error_exit = ErrorExit;
+    encoder->cinfo.client_data = encoder;
+    if (setjmp(encoder->failure)) {
+        DestroyJpegEncoder(encoder);
+        return nullptr;
+    }
+    jpeg_create_compress(&encoder->cinfo);
+    encoder->destination.init_destination = InitDestination;
+    encoder->destination.empty_output_buffer = EmptyOutputBuffer;
+    encoder->destination.term_destination = TermDestination;
+    encoder->cinfo.dest = &encoder->destination;
+
+    encoder->cinfo.image_width = static_cast<JDIMENSION>(width);
+    encoder->cinfo.image_height = static_cast<JDIMENSION>(height);
+    encoder->cinfo.input_components = 4;
+    encoder->cinfo.in_color_space = JCS_EXT_RGBA;
+    jpeg_set_defaults(&encoder->cinfo);
+    jpeg_set_quality(&encoder->cinfo, quality, TRUE);
+    jpeg_start_compress(&encoder->cinfo, TRUE);
+    return encoder;
+}
+
+bool EncodeJpegRows(JpegEncoder *encoder, const unsigned char *rows, int row_step, int count) {
+    if (encoder->failed) {
+        return false;
+    }
+    if (setjmp(encoder->failure)) {
+        encoder->failed = true;
+        return false;
+    }
+    JSAMPROW pointers[ROWS_PER_CALL];
+    int written = 0;
+    while (written < count) {
+        int batch = count - written < ROWS_PER_CALL ? count - written : ROWS_PER_CALL;
+        for (int i = 0; i < batch; i++) {
+            pointers[i] = const_cast<JSAMPROW>(rows + static_cast<size_t>(written + i) * row_step);
+        }
+        JDIMENSION done = jpeg_write_scanlines(&encoder->cinfo, pointers,
+                                               static_cast<JDIMENSION>(batch));
+        if (done == 0) {
+            // All rows of the image were written already, so the image cannot be finished
+            // with the rows the caller meant.
+            encoder->failed = true;
+            return false;
+        }
+        written += static_cast<int>(done);
+    }
+    return true;
+}
+
+bool FinishJpegEncoder(JpegEncoder *encoder) {
+    if (encoder->failed) {
+        return false;
+    }
+    if (setjmp(encoder->failure)) {
+        encoder->failed = true;
+        return false;
+    }
+    jpeg_finish_compress(&encoder->cinfo);
+    return true;
+}
+
+void DestroyJpegEncoder(JpegEncoder *encoder) {
+    if (encoder == nullptr) {
+        return;
+    }
+    jpeg_destroy_compress(&encoder->cinfo);
+    delete encoder;
+}
@@ -0,0 +1,30 @@
+#ifndef JPEG_ENCODER_H
+#define JPEG_ENCODER_H
+
+#include <cstddef>
+
+// A JPEG encoder that takes the image a few rows at a time, on top of
+// libjpeg-turbo. Like the projection core it has no JNI dependencies. Only
+// built with TINYPLANET_LIBJPEG_TURBO, see CMakeLists.txt.
+class JpegEncoder;
+
+// Receives the encoded bytes in order. Returns false to abort encoding.
+typedef bool (*JpegWriteFunction)(void *context, const unsigned char *data, size_t size);
+
+// Starts encoding a width x height image at quality 0-100 and writes the
+// headers through write. Returns null on failure. Free it with
+// DestroyJpegEncoder.
+JpegEncoder *CreateJpegEncoder(int width, int height, int quality, JpegWriteFunction write,
+                               void *context);
+
+// Encodes the next count rows of RGBA pixels, row_step bytes apart; alpha is
+// ignored. Returns false if encoding or writing failed, after which only
+// DestroyJpegEncoder may be called.
+bool EncodeJpegRows(JpegEncoder *encoder, const unsigned char *rows, int row_step, int count);
+
+// Writes the end of the image once all rows were encoded.
+bool FinishJpegEncoder(JpegEncoder *encoder);
+
+void DestroyJpegEncoder(JpegEncoder *encoder);
+
+#endif  // JPEG_ENCODER_H
@@ -15,154 +15,295 @@
  */
 
 #include <jni.h>
-#include <cmath>
 #include <android/bitmap.h>
 #include <android/log.h>
-#include <exception>
-#include <iostream>
 
-using namespace std;
+#include <atomic>
+#include <cmath>
+#include <memory>
+#include <vector>
 
-#ifdef __cplusplus
-extern "C" {
-#endif
+#include "tinyplanet_core.h"
 
+#ifdef TINYPLANET_LIBJPEG_TURBO
+#include "jpeg_encoder.h"
 
-#define PI_F 3.141592653589f
+// A JpegEncoder writing to a java.io.OutputStream through a reused byte[].
+struct JavaJpegEncoder {
+    JpegEncoder *encoder;
+    // The JNIEnv of the call in progress; calls may come from different threads.
+    JNIEnv *env;
+    jobject stream;
+    jbyteArray buffer;
+    jmethodID write;
+};
 
-class ImageRGBA {
-public:
-    ImageRGBA(unsigned char *image, int width, int height)
-            : image_(image), width_(width), height_(height) {
-        width_step_ = width * 4;
+static bool WriteToStream(void *context, const unsigned char *data, size_t size) {
+    auto *java = static_cast<JavaJpegEncoder *>(context);
+    JNIEnv *env = java->env;
+    jsize capacity = env->GetArrayLength(java->buffer);
+    while (size > 0) {
+        jsize count = size < static_cast<size_t>(capacity) ? static_cast<jsize>(size) : capacity;
+        env->SetByteArrayRegion(java->buffer, 0, count, reinterpret_cast<const jbyte *>(data));
+        env->CallVoidMethod(java->stream, java->write, java->buffer, 0, count);
+        if (env->ExceptionCheck()) {
+            // Left pending, so the IOException reaches the Java caller.
+            return false;
+        }
+        data += count;
+        size -= count;
     }
+    return true;
+}
 
-    int Width() const {
-        return width_;
-    }
+static void DeleteJavaJpegEncoder(JNIEnv *env, JavaJpegEncoder *java) {
+    DestroyJpegEncoder(java->encoder);
+    env->DeleteGlobalRef(java->stream);
+    env->DeleteGlobalRef(java->buffer);
+    delete java;
+}
+#endif  // TINYPLANET_LIBJPEG_TURBO
 
-    int Height() const {
-        return height_;
+// Converts the GPano crop, given in full panorama pixels, to a padding for an
+// input of width x height, which may have been decoded at a smaller size.
+// source_scale is that decoded size over the size in the file, for crops that
+// leave out their own size. Returns false if the crop does not place the input
+// in a full panorama.
+static bool ToPanoPadding(int width, int height, float source_scale, int crop_left, int crop_top,
+                          int crop_width, int crop_height, int full_pano_width,
+                          int full_pano_height, int fill_color, PanoPadding *padding) {
+    if (full_pano_width <= 0 || full_pano_height <= 0) {
+        return false;
     }
+    float sx = crop_width > 0 ? static_cast<float>(width) / crop_width : source_scale;
+    float sy = crop_height > 0 ? static_cast<float>(height) / crop_height : source_scale;
+    padding->full_width = static_cast<int>(lroundf(full_pano_width * sx));
+    padding->full_height = static_cast<int>(lroundf(full_pano_height * sy));
+    padding->left = static_cast<int>(lroundf(crop_left * sx));
+    padding->top = static_cast<int>(lroundf(crop_top * sy));
+    // ARGB to RGBA bytes.
+    padding->fill[0] = static_cast<uint8_t>(fill_color >> 16);
+    padding->fill[1] = static_cast<uint8_t>(fill_color >> 8);
+    padding->fill[2] = static_cast<uint8_t>(fill_color);
+    padding->fill[3] = static_cast<uint8_t>(static_cast<uint32_t>(fill_color) >> 24);
+    return true;
+}
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+JNIEXPORT jboolean JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_nativeProcess(
+        JNIEnv *env, jclass /*clazz*/, jobject bitmap_in, jint width, jint height,
+        jobject bitmap_out, jint output_size, jfloat scale, jfloat angle, jint num_threads,
+        jlong cancel_flag, jlong mip_pyramid, jint crop_left, jint crop_top, jint crop_width,
+        jint crop_height, jint full_pano_width, jint full_pano_height, jfloat source_scale,
+        jint fill_color) {
+    char *source = nullptr;
+    char *destination = nullptr;
+    AndroidBitmap_lockPixels(env, bitmap_in, (void **) &source);
+    AndroidBitmap_lockPixels(env, bitmap_out, (void **) &destination);
+    auto *rgb_in = (unsigned char *) source;
+    auto *rgb_out = (unsigned char *) destination;
+    auto *cancel = reinterpret_cast<const std::atomic<bool> *>(cancel_flag);
+    auto *pyramid = reinterpret_cast<const MipPyramid *>(mip_pyramid);
+
+    PanoPadding padding;
+    bool padded = ToPanoPadding(width, height, source_scale, crop_left, crop_top, crop_width,
+                                crop_height, full_pano_width, full_pano_height, fill_color,
+                                &padding);
+
+    bool completed = StereographicProjection(scale, angle, rgb_in, width, height,
+                                             rgb_out, output_size, output_size, num_threads,
+                                             false, cancel, pyramid,
+                                             padded ? &padding : nullptr);
+    AndroidBitmap_unlockPixels(env, bitmap_in);
+    AndroidBitmap_unlockPixels(env, bitmap_out);
+    return completed ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_nativeSourceTilesNeeded(
+        JNIEnv *env, jclass /*clazz*/, jbooleanArray needed, jint width, jint height,
+        jint tile_shift, jint columns, jint output_size, jint x_start, jint y_start, jint x_end,
+        jint y_end, jfloat scale, jfloat angle, jint crop_left, jint crop_top, jint crop_width,
+        jint crop_height, jint full_pano_width, jint full_pano_height) {
+    jsize count = env->GetArrayLength(needed);
+    SourceTiles source = {width, height, tile_shift, columns, count / columns, nullptr, nullptr};
+    PanoPadding padding;
+    // Tiles are decoded at the size in the file.
+    bool padded = ToPanoPadding(width, height, 1.0f, crop_left, crop_top, crop_width,
+                                crop_height, full_pano_width, full_pano_height, 0, &padding);
+    std::unique_ptr<bool[]> flags(new bool[count]);
+    SourceTilesNeeded(scale, angle, source, padded ? &padding : nullptr, output_size,
+                      output_size, x_start, y_start, x_end, y_end, flags.get());
+    std::vector<jboolean> values(flags.get(), flags.get() + count);
+    env->SetBooleanArrayRegion(needed, 0, count, values.data());
+}
 
-    // Pixel accessor.
-    unsigned char *operator()(int x, int y) {
-        int address = y * width_step_ + x * 4;
-        if (address >= height_ * width_step_) {
-            return nullptr;
+JNIEXPORT jboolean JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_nativeProcessTiles(
+        JNIEnv *env, jclass /*clazz*/, jobjectArray tiles, jint width, jint height,
+        jint tile_shift, jint columns, jobject strip, jint strip_top, jint output_size,
+        jint x_start, jint y_start, jint x_end, jint y_end, jfloat scale, jfloat angle,
+        jint num_threads, jlong cancel_flag, jint crop_left, jint crop_top, jint crop_width,
+        jint crop_height, jint full_pano_width, jint full_pano_height, jint fill_color) {
+    jsize count = env->GetArrayLength(tiles);
+    std::vector<jobject> bitmaps(count);
+    std::vector<const unsigned char *> pixels(count);
+    std::vector<int> strides(count);
+    bool locked = true;
+    for (jsize i = 0; i < count; i++) {
+        bitmaps[i] = env->GetObjectArrayElement(tiles, i);
+        if (bitmaps[i] == nullptr) {
+            continue;
         }
-        return image_ + address;
+        AndroidBitmapInfo info;
+        void *tile_pixels = nullptr;
+        if (AndroidBitmap_getInfo(env, bitmaps[i], &info) != ANDROID_BITMAP_RESULT_SUCCESS ||
+            AndroidBitmap_lockPixels(env, bitmaps[i], &tile_pixels) !=
+                    ANDROID_BITMAP_RESULT_SUCCESS) {
+            env->DeleteLocalRef(bitmaps[i]);
+            bitmaps[i] = nullptr;
+            locked = false;
+            break;
+        }
+        pixels[i] = static_cast<const unsigned char *>(tile_pixels);
+        strides[i] = static_cast<int>(info.stride);
     }
 
-    const unsigned char *operator()(int x, int y) const {
-        int address = y * width_step_ + x * 4;
-        if (address >= height_ * width_step_) {
-            return nullptr;
+    bool completed = false;
+    AndroidBitmapInfo strip_info;
+    void *strip_pixels = nullptr;
+    if (locked && AndroidBitmap_getInfo(env, strip, &strip_info) == ANDROID_BITMAP_RESULT_SUCCESS &&
+        static_cast<int>(strip_info.width) == output_size &&
+        AndroidBitmap_lockPixels(env, strip, &strip_pixels) == ANDROID_BITMAP_RESULT_SUCCESS) {
+        SourceTiles source = {width, height, tile_shift, columns, count / columns,
+                              pixels.data(), strides.data()};
+        PanoPadding padding;
+        bool padded = ToPanoPadding(width, height, 1.0f, crop_left, crop_top, crop_width,
+                                    crop_height, full_pano_width, full_pano_height, fill_color,
+                                    &padding);
+        completed = StereographicProjectionTiles(
+                scale, angle, source, padded ? &padding : nullptr,
+                static_cast<unsigned char *>(strip_pixels), output_size, output_size, strip_top,
+                static_cast<int>(strip_info.height), x_start, y_start, x_end, y_end, num_threads,
+                reinterpret_cast<const std::atomic<bool> *>(cancel_flag));
+        AndroidBitmap_unlockPixels(env, strip);
+    }
+    for (jobject bitmap : bitmaps) {
+        if (bitmap != nullptr) {
+            AndroidBitmap_unlockPixels(env, bitmap);
+            env->DeleteLocalRef(bitmap);
         }
-        return image_ + address;
     }
+    return completed ? JNI_TRUE : JNI_FALSE;
+}
 
-private:
-    unsigned char *image_;
-    int width_;
-    int height_;
-    int width_step_;
-};
+JNIEXPORT jboolean JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_isJpegEncoderAvailable(
+        JNIEnv * /*env*/, jclass /*clazz*/) {
+#ifdef TINYPLANET_LIBJPEG_TURBO
+    return JNI_TRUE;
+#else
+    return JNI_FALSE;
+#endif
+}
 
-// Interpolate a pixel in a 3 channel image.
-inline void InterpolatePixel(const ImageRGBA &image, float x, float y,
-                             unsigned char *dest) {
-    // Get pointers and scale factors for the source pixels.
-    float ax = x - floor(x);
-    float ay = y - floor(y);
-    float axn = 1.0f - ax;
-    float ayn = 1.0f - ay;
-    const unsigned char *p = image(x, y);
-    const unsigned char *p2 = image(x, y + 1);
-
-    if (p && p2) {
-        // Interpolate each image color plane.
-        dest[0] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-                                             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-        p++;
-        p2++;
-
-        dest[1] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-                                             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-        p++;
-        p2++;
-
-        dest[2] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-                                             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-        dest[3] = 0xFF;
+#ifdef TINYPLANET_LIBJPEG_TURBO
+JNIEXPORT jlong JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_createJpegEncoder(
+        JNIEnv *env, jclass /*clazz*/, jint width, jint height, jint quality, jobject stream) {
+    jclass stream_class = env->GetObjectClass(stream);
+    jmethodID write = env->GetMethodID(stream_class, "write", "([BII)V");
+    env->DeleteLocalRef(stream_class);
+    jbyteArray buffer = env->NewByteArray(64 * 1024);
+    if (write == nullptr || buffer == nullptr) {
+        return 0;
     }
+    auto *java = new JavaJpegEncoder();
+    java->env = env;
+    java->stream = env->NewGlobalRef(stream);
+    java->buffer = static_cast<jbyteArray>(env->NewGlobalRef(buffer));
+    java->write = write;
+    env->DeleteLocalRef(buffer);
+    java->encoder = CreateJpegEncoder(width, height, quality, WriteToStream, java);
+    if (java->encoder == nullptr) {
+        DeleteJavaJpegEncoder(env, java);
+        return 0;
+    }
+    return reinterpret_cast<jlong>(java);
 }
 
-// Wrap circular coordinates around the globe
-inline float wrap(float value, float dimension) {
-    return value - (dimension * floor(value / dimension));
+JNIEXPORT jboolean JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_encodeJpegRows(
+        JNIEnv *env, jclass /*clazz*/, jlong jpeg_encoder, jobject bitmap, jint count) {
+    auto *java = reinterpret_cast<JavaJpegEncoder *>(jpeg_encoder);
+    AndroidBitmapInfo info;
+    void *pixels = nullptr;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS ||
+        info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+        count > static_cast<jint>(info.height) ||
+        AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return JNI_FALSE;
+    }
+    java->env = env;
+    bool encoded = EncodeJpegRows(java->encoder, static_cast<const unsigned char *>(pixels),
+                                  static_cast<int>(info.stride), count);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return encoded ? JNI_TRUE : JNI_FALSE;
 }
 
-void StereographicProjection(float scale, float angle, unsigned char *input_image,
-                             int input_width, int input_height,
-                             unsigned char *output_image, int output_width,
-                             int output_height) {
-    ImageRGBA input(input_image, input_width, input_height);
-    ImageRGBA output(output_image, output_width, output_height);
-
-    const float image_scale = static_cast<float>(output_width) * scale;
-
-    for (int x = 0; x < output_width; x++) {
-        // Center and scale x
-        float xf = (x - static_cast<float>(output_width) / 2.0f) / image_scale;
+JNIEXPORT jboolean JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_finishJpegEncoder(
+        JNIEnv *env, jclass /*clazz*/, jlong jpeg_encoder) {
+    auto *java = reinterpret_cast<JavaJpegEncoder *>(jpeg_encoder);
+    java->env = env;
+    return FinishJpegEncoder(java->encoder) ? JNI_TRUE : JNI_FALSE;
+}
 
-        for (int y = 0; y < output_height; y++) {
-            // Center and scale y
-            float yf = (y - static_cast<float>(output_height) / 2.0f) / image_scale;
+JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_destroyJpegEncoder(
+        JNIEnv *env, jclass /*clazz*/, jlong jpeg_encoder) {
+    if (jpeg_encoder != 0) {
+        DeleteJavaJpegEncoder(env, reinterpret_cast<JavaJpegEncoder *>(jpeg_encoder));
+    }
+}
+#endif  // TINYPLANET_LIBJPEG_TURBO
 
-            // Convert to polar
-            float r = hypotf(xf, yf);
-            float theta = angle + atan2(yf, xf);
-            if (theta > PI_F) theta -= 2 * PI_F;
+JNIEXPORT jlong JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_createCancelFlag(
+        JNIEnv * /*env*/, jclass /*clazz*/) {
+    return reinterpret_cast<jlong>(new std::atomic<bool>(false));
+}
 
-            // Project onto plane
-            float phi = 2 * atan(1 / r);
-            // (theta stays the same)
+JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_cancel(
+        JNIEnv * /*env*/, jclass /*clazz*/, jlong cancel_flag) {
+    reinterpret_cast<std::atomic<bool> *>(cancel_flag)->store(true);
+}
 
-            // Map to panorama image
-            float px = (theta / (2 * PI_F)) * static_cast<float>(input_width);
-            float py = (phi / PI_F) * static_cast<float>(input_height);
+JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_resetCancelFlag(
+        JNIEnv * /*env*/, jclass /*clazz*/, jlong cancel_flag) {
+    reinterpret_cast<std::atomic<bool> *>(cancel_flag)->store(false);
+}
 
-            // Wrap around the globe
-            px = wrap(px, static_cast<float>(input_width));
-            py = wrap(py, static_cast<float>(input_height));
+JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_destroyCancelFlag(
+        JNIEnv * /*env*/, jclass /*clazz*/, jlong cancel_flag) {
+    delete reinterpret_cast<std::atomic<bool> *>(cancel_flag);
+}
 
-            // Write the interpolated pixel
-            InterpolatePixel(input, px, py, output(x, y));
-        }
+JNIEXPORT jlong JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_createMipPyramid(
+        JNIEnv *env, jclass /*clazz*/, jobject bitmap, jint num_threads) {
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return 0;
+    }
+    void *pixels = nullptr;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return 0;
     }
+    MipPyramid *pyramid = CreateMipPyramid(static_cast<unsigned char *>(pixels),
+                                           static_cast<int>(info.width),
+                                           static_cast<int>(info.height), num_threads);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return reinterpret_cast<jlong>(pyramid);
 }
 
-
-JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_process(JNIEnv *env,
-                                                                           jclass /*clazz*/,
-                                                                           jobject bitmap_in,
-                                                                           jint width, jint height,
-                                                                           jobject bitmap_out,
-                                                                           jint output_size,
-                                                                           jfloat scale,
-                                                                           jfloat angle) {
-    char *source = nullptr;
-    char *destination = nullptr;
-    AndroidBitmap_lockPixels(env, bitmap_in, (void **) &source);
-    AndroidBitmap_lockPixels(env, bitmap_out, (void **) &destination);
-    auto *rgb_in = (unsigned char *) source;
-    auto *rgb_out = (unsigned char *) destination;
-
-    StereographicProjection(scale, angle, rgb_in, width, height,
-                            rgb_out, output_size, output_size);
-    AndroidBitmap_unlockPixels(env, bitmap_in);
-    AndroidBitmap_unlockPixels(env, bitmap_out);
+JNIEXPORT void JNICALL Java_com_kimjio_tinyplanet_TinyPlanetNative_destroyMipPyramid(
+        JNIEnv * /*env*/, jclass /*clazz*/, jlong mip_pyramid) {
+    DestroyMipPyramid(reinterpret_cast<MipPyramid *>(mip_pyramid));
 }
 
 #ifdef __cplusplus
@@ -0,0 +1,1450 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "tinyplanet_core.h"
+
+#include <cmath>
+#include <unistd.h>
+#include <algorithm>
+#include <cstring>
+#include <atomic>
+#include <condition_variable>
+#include <exception>
+#include <functional>
+#include <iostream>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+#if defined(__x86_64__) || defined(__i386__)
+#include <immintrin.h>
+#define TINYPLANET_SSE41 1
+#define SSE41_TARGET __attribute__((target("sse4.1")))
+#elif defined(__aarch64__)
+#include <arm_neon.h>
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#define TINYPLANET_NEON 1
+#endif
+
+using namespace std;
+
+
+#define PI_F 3.141592653589f
+
+// Number of bands each participating thread gets on average. More bands than
+// threads keeps the cores busy when some bands finish early.
+#define BANDS_PER_THREAD 4
+
+// A fixed set of worker threads, sized to the online CPUs, that splits a range
+// of rows into bands. The calling thread works on bands too, so a pool of N
+// threads keeps N - 1 workers parked.
+class WorkerPool {
+public:
+    explicit WorkerPool(int num_threads) {
+        for (int i = 1; i < num_threads; i++) {
+            threads_.emplace_back([this] { WorkerLoop(); });
+        }
+    }
+
+    ~WorkerPool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            stop_ = true;
+        }
+        work_cv_.notify_all();
+        for (std::thread &thread : threads_) {
+            thread.join();
+        }
+    }
+
+    // The pool shared by all projections, sized to the online CPUs.
+    static WorkerPool &Instance() {
+        static WorkerPool pool(static_cast<int>(std::max(1L, sysconf(_SC_NPROCESSORS_ONLN))));
+        return pool;
+    }
+
+    int Size() const {
+        return static_cast<int>(threads_.size()) + 1;
+    }
+
+    // Calls fn(start, end) for bands covering [0, count) on up to num_threads
+    // threads and returns once every band is done. A num_threads of zero or
+    // less uses the whole pool. Only one job runs at a time.
+    void ParallelFor(int count, int num_threads, const std::function<void(int, int)> &fn) {
+        std::lock_guard<std::mutex> job_lock(job_mutex_);
+        if (num_threads <= 0 || num_threads > Size()) {
+            num_threads = Size();
+        }
+        int num_bands = std::min(count, num_threads * BANDS_PER_THREAD);
+        if (num_threads == 1 || num_bands <= 1) {
+            // Still walk the bands, so callers checking for cancellation per
+            // band get the same granularity on a single thread.
+            for (int band = 0; band < num_bands; band++) {
+                fn(BandStart(count, num_bands, band), BandStart(count, num_bands, band + 1));
+            }
+            return;
+        }
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            fn_ = &fn;
+            count_ = count;
+            num_bands_ = num_bands;
+            next_band_.store(0);
+            helpers_wanted_ = num_threads - 1;
+            generation_++;
+        }
+        work_cv_.notify_all();
+        RunBands();
+
+        std::unique_lock<std::mutex> lock(mutex_);
+        // Workers that have not woken up yet are not needed anymore.
+        helpers_wanted_ = 0;
+        done_cv_.wait(lock, [this] { return helpers_active_ == 0; });
+        fn_ = nullptr;
+    }
+
+private:
+    void WorkerLoop() {
+        unsigned int seen_generation = 0;
+        std::unique_lock<std::mutex> lock(mutex_);
+        while (true) {
+            work_cv_.wait(lock, [&] {
+                return stop_ || (generation_ != seen_generation && helpers_wanted_ > 0);
+            });
+            if (stop_) {
+                return;
+            }
+            seen_generation = generation_;
+            helpers_wanted_--;
+            helpers_active_++;
+            lock.unlock();
+            RunBands();
+            lock.lock();
+            if (--helpers_active_ == 0) {
+                done_cv_.notify_all();
+            }
+        }
+    }
+
+    void RunBands() {
+        int band;
+        while ((band = next_band_.fetch_add(1)) < num_bands_) {
+            (*fn_)(BandStart(count_, num_bands_, band), BandStart(count_, num_bands_, band + 1));
+        }
+    }
+
+    static int BandStart(int count, int num_bands, int band) {
+        return static_cast<int>(static_cast<long>(count) * band / num_bands);
+    }
+
+    std::vector<std::thread> threads_;
+    std::mutex job_mutex_;
+    std::mutex mutex_;
+    std::condition_variable work_cv_;
+    std::condition_variable done_cv_;
+    const std::function<void(int, int)> *fn_ = nullptr;
+    int count_ = 0;
+    int num_bands_ = 0;
+    std::atomic<int> next_band_{0};
+    int helpers_wanted_ = 0;
+    int helpers_active_ = 0;
+    unsigned int generation_ = 0;
+    bool stop_ = false;
+};
+
+class ImageRGBA {
+public:
+    ImageRGBA(unsigned char *image, int width, int height)
+            : ImageRGBA(image, width, height, 0, height) {
+    }
+
+    // Only the rows [top, top + rows) of the image are in memory, at image.
+    // Pixels are still addressed in coordinates of the whole image, so the
+    // kernels can render a strip of an output that is never held at once.
+    ImageRGBA(unsigned char *image, int width, int height, int top, int rows)
+            : image_(image), width_(width), height_(height), top_(top), rows_(rows) {
+        width_step_ = width * 4;
+    }
+
+    int Width() const {
+        return width_;
+    }
+
+    int Height() const {
+        return height_;
+    }
+
+    // Pixel accessor.
+    unsigned char *operator()(int x, int y) {
+        int address = (y - top_) * width_step_ + x * 4;
+        if (address >= rows_ * width_step_) {
+            return nullptr;
+        }
+        return image_ + address;
+    }
+
+    const unsigned char *operator()(int x, int y) const {
+        int address = (y - top_) * width_step_ + x * 4;
+        if (address >= rows_ * width_step_) {
+            return nullptr;
+        }
+        return image_ + address;
+    }
+
+private:
+    unsigned char *image_;
+    int width_;
+    int height_;
+    int top_;
+    int rows_;
+    int width_step_;
+};
+
+// Side of the square tiles of TiledImageRGBA, as a power of two.
+#define TILE_SHIFT 4
+#define TILE_SIZE (1 << TILE_SHIFT)
+#define TILE_MASK (TILE_SIZE - 1)
+
+// A copy of an RGBA image stored in TILE_SIZE x TILE_SIZE tiles, so pixels
+// that are close in 2D are close in memory too and the curved sampling paths
+// of the projection stay within a few cache lines. Each tile row carries one
+// extra pixel, a copy of the pixel to its right, so p + 4 is the right
+// neighbour of p just like in ImageRGBA.
+class TiledImageRGBA {
+public:
+    TiledImageRGBA(int width, int height)
+            : width_(width), height_(height),
+              tiles_x_((width + TILE_MASK) >> TILE_SHIFT),
+              tiles_y_((height + TILE_MASK) >> TILE_SHIFT),
+              pixels_(static_cast<size_t>(tiles_x_) * tiles_y_ * TILE_SIZE * TILE_ROW_STEP) {
+    }
+
+    int Width() const {
+        return width_;
+    }
+
+    int Height() const {
+        return height_;
+    }
+
+    // Copies the rows [y_start, y_end) of image, which must have the same
+    // size, into the tiles.
+    void CopyRows(const ImageRGBA &image, int y_start, int y_end) {
+        for (int y = y_start; y < y_end; y++) {
+            const unsigned char *row = image(0, y);
+            for (int tx = 0; tx < tiles_x_; tx++) {
+                int x = tx << TILE_SHIFT;
+                int count = std::min(TILE_SIZE + 1, width_ - x);
+                unsigned char *dest = Address(x, y);
+                memcpy(dest, row + x * 4, count * 4);
+                if (count <= TILE_SIZE) {
+                    // The last tile column continues on the next row, like
+                    // ImageRGBA does.
+                    const unsigned char *next = y + 1 < height_ ? image(0, y + 1) : nullptr;
+                    if (next) {
+                        memcpy(dest + count * 4, next, 4);
+                    } else {
+                        memset(dest + count * 4, 0, 4);
+                    }
+                }
+            }
+        }
+    }
+
+    // Pixel accessor, with the same out of range behaviour as ImageRGBA.
+    const unsigned char *operator()(int x, int y) const {
+        if (x >= width_) {
+            x -= width_;
+            y++;
+        }
+        if (x < 0 || y < 0 || y >= height_) {
+            return nullptr;
+        }
+        return Address(x, y);
+    }
+
+private:
+    static const int TILE_ROW_STEP = (TILE_SIZE + 1) * 4;
+
+    unsigned char *Address(int x, int y) {
+        return const_cast<unsigned char *>(static_cast<const TiledImageRGBA &>(*this).Address(x, y));
+    }
+
+    const unsigned char *Address(int x, int y) const {
+        size_t tile = static_cast<size_t>(y >> TILE_SHIFT) * tiles_x_ + (x >> TILE_SHIFT);
+        return pixels_.data() + (tile * TILE_SIZE + (y & TILE_MASK)) * TILE_ROW_STEP +
+               (x & TILE_MASK) * 4;
+    }
+
+    int width_;
+    int height_;
+    int tiles_x_;
+    int tiles_y_;
+    std::vector<unsigned char> pixels_;
+};
+
+// A panorama that is only partly in memory, see SourceTiles. Pixels of tiles
+// that are not loaded read as null, which the kernels skip like pixels off the
+// image.
+class TileGridImage {
+public:
+    explicit TileGridImage(const SourceTiles &tiles)
+            : tiles_(tiles), mask_((1 << tiles.tile_shift) - 1) {
+    }
+
+    int Width() const {
+        return tiles_.width;
+    }
+
+    int Height() const {
+        return tiles_.height;
+    }
+
+    // Pixel accessor, with the same out of range behaviour as ImageRGBA.
+    const unsigned char *operator()(int x, int y) const {
+        if (x >= tiles_.width) {
+            x -= tiles_.width;
+            y++;
+        }
+        if (x < 0 || y < 0 || y >= tiles_.height) {
+            return nullptr;
+        }
+        int tile = (y >> tiles_.tile_shift) * tiles_.columns + (x >> tiles_.tile_shift);
+        const unsigned char *pixels = tiles_.pixels[tile];
+        if (!pixels) {
+            return nullptr;
+        }
+        return pixels + (y & mask_) * tiles_.strides[tile] + (x & mask_) * 4;
+    }
+
+private:
+    const SourceTiles &tiles_;
+    int mask_;
+};
+
+// An image placed in a larger panorama, see PanoPadding. Pixels outside the
+// image read as the fill colour, so the kernels sample a cropped panorama as if
+// it had been padded, without the padded copy. The fill pixel is followed by a
+// second one, so p + 4 works as the right neighbour there too; only in the two
+// columns at the left and right edges of the image does it not, see RightOf().
+template <typename Image>
+class PaddedImage {
+public:
+    PaddedImage(const Image &image, const PanoPadding &padding)
+            : image_(image),
+              left_(std::max(0, padding.left)),
+              top_(std::max(0, padding.top)),
+              // Metadata that does not quite fit the image is stretched to fit.
+              width_(std::max(padding.full_width, left_ + image.Width())),
+              height_(std::max(padding.full_height, top_ + image.Height())) {
+        memcpy(fill_, padding.fill, 4);
+        memcpy(fill_ + 4, padding.fill, 4);
+    }
+
+    int Width() const {
+        return width_;
+    }
+
+    int Height() const {
+        return height_;
+    }
+
+    const Image &Source() const {
+        return image_;
+    }
+
+    int Left() const {
+        return left_;
+    }
+
+    int Top() const {
+        return top_;
+    }
+
+    // The same placement for a scaled copy of the image, e.g. a pyramid level.
+    template <typename Scaled>
+    PaddedImage<Scaled> Rescaled(const Scaled &scaled) const {
+        float sx = static_cast<float>(scaled.Width()) / image_.Width();
+        float sy = static_cast<float>(scaled.Height()) / image_.Height();
+        PanoPadding padding;
+        padding.full_width = static_cast<int>(lroundf(width_ * sx));
+        padding.full_height = static_cast<int>(lroundf(height_ * sy));
+        padding.left = static_cast<int>(lroundf(left_ * sx));
+        padding.top = static_cast<int>(lroundf(top_ * sy));
+        memcpy(padding.fill, fill_, 4);
+        return PaddedImage<Scaled>(scaled, padding);
+    }
+
+    // Pixel accessor, with the same out of range behaviour as ImageRGBA.
+    const unsigned char *operator()(int x, int y) const {
+        if (x >= width_) {
+            x -= width_;
+            y++;
+        }
+        int ix = x - left_;
+        int iy = y - top_;
+        if (static_cast<unsigned>(ix) < static_cast<unsigned>(image_.Width()) &&
+            static_cast<unsigned>(iy) < static_cast<unsigned>(image_.Height())) {
+            return image_(ix, iy);
+        }
+        if (x < 0 || y < 0 || y >= height_) {
+            return nullptr;
+        }
+        return fill_;
+    }
+
+    // Whether the column x is just left of the image or its last column, where
+    // the pixel right of (x, y) is across the edge rather than next in memory.
+    bool IsEdgeColumn(int x) const {
+        return x == left_ - 1 || x == left_ + image_.Width() - 1;
+    }
+
+    // The pixel right of p, which is (*this)(x, y).
+    const unsigned char *RightOf(const unsigned char *p, int x, int y) const {
+        if (!IsEdgeColumn(x)) {
+            return p + 4;
+        }
+        const unsigned char *right = (*this)(x + 1, y);
+        return right ? right : p;
+    }
+
+private:
+    const Image &image_;
+    int left_;
+    int top_;
+    int width_;
+    int height_;
+    unsigned char fill_[8];
+};
+
+// The pixel right of p, which is image(x, y). The images lay their pixels out
+// so that this is the next one in memory, see TiledImageRGBA.
+template <typename Image>
+inline const unsigned char *RightNeighbour(const Image &, const unsigned char *p, int, int) {
+    return p + 4;
+}
+
+template <typename Image>
+inline const unsigned char *RightNeighbour(const PaddedImage<Image> &image,
+                                           const unsigned char *p, int x, int y) {
+    return image.RightOf(p, x, y);
+}
+
+// Interpolate a pixel in a 3 channel image.
+template <typename Image>
+inline void InterpolatePixel(const Image &image, float x, float y,
+                             unsigned char *dest) {
+    // Get pointers and scale factors for the source pixels.
+    float ax = x - floor(x);
+    float ay = y - floor(y);
+    float axn = 1.0f - ax;
+    float ayn = 1.0f - ay;
+    int ix = static_cast<int>(x);
+    int iy = static_cast<int>(y);
+    const unsigned char *p = image(ix, iy);
+    const unsigned char *p2 = image(ix, iy + 1);
+
+    if (p && p2) {
+        const unsigned char *q = RightNeighbour(image, p, ix, iy);
+        const unsigned char *q2 = RightNeighbour(image, p2, ix, iy + 1);
+        // Interpolate each image color plane.
+        dest[0] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * q[0] +
+                                             ax * ay * q2[0] + axn * ay * p2[0] + 0.5f);
+        dest[1] = static_cast<unsigned char>(axn * ayn * p[1] + ax * ayn * q[1] +
+                                             ax * ay * q2[1] + axn * ay * p2[1] + 0.5f);
+        dest[2] = static_cast<unsigned char>(axn * ayn * p[2] + ax * ayn * q[2] +
+                                             ax * ay * q2[2] + axn * ay * p2[2] + 0.5f);
+        dest[3] = 0xFF;
+    }
+}
+
+// Wrap circular coordinates around the globe
+inline float wrap(float value, float dimension) {
+    return value - (dimension * floor(value / dimension));
+}
+
+// Projects the centered and scaled output position (xf, yf) and writes the
+// interpolated source pixel to dest.
+template <typename Image>
+inline void ProjectPixel(const Image &input, float angle, float xf, float yf,
+                         unsigned char *dest) {
+    // Convert to polar
+    float r = hypotf(xf, yf);
+    float theta = angle + atan2(yf, xf);
+    if (theta > PI_F) theta -= 2 * PI_F;
+
+    // Project onto plane
+    float phi = 2 * atan(1 / r);
+    // (theta stays the same)
+
+    // Map to panorama image
+    float px = (theta / (2 * PI_F)) * static_cast<float>(input.Width());
+    float py = (phi / PI_F) * static_cast<float>(input.Height());
+
+    // Wrap around the globe
+    px = wrap(px, static_cast<float>(input.Width()));
+    py = wrap(py, static_cast<float>(input.Height()));
+
+    // Write the interpolated pixel
+    InterpolatePixel(input, px, py, dest);
+}
+
+// Projects the columns [x_start, x_end) of the output rows [y_start, y_end),
+// writing the output sequentially.
+template <typename Image>
+void StereographicProjectionBand(float scale, float angle, const Image &input,
+                                 ImageRGBA &output, int y_start, int y_end,
+                                 int x_start, int x_end) {
+    const int output_width = output.Width();
+    const int output_height = output.Height();
+    const float image_scale = static_cast<float>(output_width) * scale;
+
+    for (int y = y_start; y < y_end; y++) {
+        // Center and scale y
+        float yf = (y - static_cast<float>(output_height) / 2.0f) / image_scale;
+        unsigned char *dest = output(x_start, y);
+
+        for (int x = x_start; x < x_end; x++, dest += 4) {
+            // Center and scale x
+            float xf = (x - static_cast<float>(output_width) / 2.0f) / image_scale;
+
+            ProjectPixel(input, angle, xf, yf, dest);
+        }
+    }
+}
+
+// Largest output, in pixels, we keep a polar table for. At 8 bytes per pixel
+// this bounds the cache to 16MB, which covers the preview on every display.
+#define MAX_POLAR_TABLE_PIXELS (1448 * 1448)
+
+// The angle independent part of the projection for one output size and scale:
+// for every output pixel, theta / 2pi and phi / pi of the angle 0 planet.
+// Changing the angle only shifts theta, so an angle change is a walk over this
+// table plus a texture fetch.
+struct PolarTable {
+    int width;
+    int height;
+    float scale;
+    std::vector<float> u;
+    std::vector<float> v;
+
+    bool Matches(int w, int h, float s) const {
+        return width == w && height == h && scale == s;
+    }
+};
+
+// Fills the polar table rows [y_start, y_end).
+void BuildPolarTableBand(PolarTable *table, int y_start, int y_end) {
+    const float image_scale = static_cast<float>(table->width) * table->scale;
+    for (int y = y_start; y < y_end; y++) {
+        float yf = (y - static_cast<float>(table->height) / 2.0f) / image_scale;
+        float *u = table->u.data() + static_cast<long>(y) * table->width;
+        float *v = table->v.data() + static_cast<long>(y) * table->width;
+        for (int x = 0; x < table->width; x++) {
+            float xf = (x - static_cast<float>(table->width) / 2.0f) / image_scale;
+            float r = hypotf(xf, yf);
+            u[x] = atan2(yf, xf) / (2 * PI_F);
+            v[x] = 2 * atan(1 / r) / PI_F;
+        }
+    }
+}
+
+// Projects the columns [x_start, x_end) of the output rows [y_start, y_end) by
+// looking the polar coordinates up in the table instead of computing them.
+template <typename Image>
+void PolarTableBand(const PolarTable &table, float angle, const Image &input,
+                    ImageRGBA &output, int y_start, int y_end,
+                    int x_start, int x_end) {
+    const float input_width = static_cast<float>(input.Width());
+    const float input_height = static_cast<float>(input.Height());
+    const float angle_u = angle / (2 * PI_F);
+    for (int y = y_start; y < y_end; y++) {
+        const float *u = table.u.data() + static_cast<long>(y) * table.width;
+        const float *v = table.v.data() + static_cast<long>(y) * table.width;
+        for (int x = x_start; x < x_end; x++) {
+            float theta_u = u[x] + angle_u;
+            if (theta_u > 0.5f) theta_u -= 1.0f;
+            float px = wrap(theta_u * input_width, input_width);
+            float py = wrap(v[x] * input_height, input_height);
+            InterpolatePixel(input, px, py, output(x, y));
+        }
+    }
+}
+
+// Coefficients of the polynomial used by the vector atan2. The maximum error is
+// about 1e-5 radians, well below a hundredth of a source pixel.
+#define ATAN_C1 0.99997726f
+#define ATAN_C3 -0.33262347f
+#define ATAN_C5 0.19354346f
+#define ATAN_C7 -0.11643287f
+#define ATAN_C9 0.05265332f
+#define ATAN_C11 -0.01172120f
+
+// Whether the vector kernels can blend the 2x2 neighbourhood at (x, y) without
+// running off the image. Pixels on the last row or column go through
+// InterpolatePixel so they behave exactly like the scalar path.
+template <typename Image>
+inline bool HasFullNeighbourhood(const Image &image, int x, int y) {
+    return x >= 0 && y >= 0 && x + 1 < image.Width() && y + 1 < image.Height();
+}
+
+// The blends take p + 4 as the right neighbour, which the edge columns of a
+// padded image leave to InterpolatePixel().
+template <typename Image>
+inline bool HasFullNeighbourhood(const PaddedImage<Image> &image, int x, int y) {
+    return x >= 0 && y >= 0 && x + 1 < image.Width() && y + 1 < image.Height() &&
+           !image.IsEdgeColumn(x);
+}
+
+inline uint32_t LoadPixel(const unsigned char *p) {
+    uint32_t value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+#ifdef TINYPLANET_SSE41
+
+SSE41_TARGET inline __m128 Atan2Sse(__m128 y, __m128 x) {
+    const __m128 sign_mask = _mm_set1_ps(-0.0f);
+    __m128 abs_x = _mm_andnot_ps(sign_mask, x);
+    __m128 abs_y = _mm_andnot_ps(sign_mask, y);
+    __m128 swap = _mm_cmpgt_ps(abs_y, abs_x);
+    __m128 num = _mm_min_ps(abs_x, abs_y);
+    __m128 den = _mm_max_ps(_mm_max_ps(abs_x, abs_y), _mm_set1_ps(1e-30f));
+    __m128 a = _mm_div_ps(num, den);
+    __m128 s = _mm_mul_ps(a, a);
+    __m128 r = _mm_set1_ps(ATAN_C11);
+    r = _mm_add_ps(_mm_mul_ps(r, s), _mm_set1_ps(ATAN_C9));
+    r = _mm_add_ps(_mm_mul_ps(r, s), _mm_set1_ps(ATAN_C7));
+    r = _mm_add_ps(_mm_mul_ps(r, s), _mm_set1_ps(ATAN_C5));
+    r = _mm_add_ps(_mm_mul_ps(r, s), _mm_set1_ps(ATAN_C3));
+    r = _mm_add_ps(_mm_mul_ps(r, s), _mm_set1_ps(ATAN_C1));
+    r = _mm_mul_ps(r, a);
+    r = _mm_blendv_ps(r, _mm_sub_ps(_mm_set1_ps(PI_F / 2), r), swap);
+    r = _mm_blendv_ps(r, _mm_sub_ps(_mm_set1_ps(PI_F), r), x);
+    return _mm_or_ps(r, _mm_and_ps(y, sign_mask));
+}
+
+// Blends the 2x2 neighbourhood at p (top row) and p2 (bottom row), all four
+// channels at once.
+SSE41_TARGET inline void BlendPixelSse(const unsigned char *p, const unsigned char *p2,
+                                       float ax, float ay, unsigned char *dest) {
+    __m128 p00 = _mm_cvtepi32_ps(_mm_cvtepu8_epi32(_mm_cvtsi32_si128(LoadPixel(p))));
+    __m128 p10 = _mm_cvtepi32_ps(_mm_cvtepu8_epi32(_mm_cvtsi32_si128(LoadPixel(p + 4))));
+    __m128 p01 = _mm_cvtepi32_ps(_mm_cvtepu8_epi32(_mm_cvtsi32_si128(LoadPixel(p2))));
+    __m128 p11 = _mm_cvtepi32_ps(_mm_cvtepu8_epi32(_mm_cvtsi32_si128(LoadPixel(p2 + 4))));
+    float axn = 1.0f - ax;
+    float ayn = 1.0f - ay;
+    __m128 sum = _mm_set1_ps(0.5f);
+    sum = _mm_add_ps(sum, _mm_mul_ps(p00, _mm_set1_ps(axn * ayn)));
+    sum = _mm_add_ps(sum, _mm_mul_ps(p10, _mm_set1_ps(ax * ayn)));
+    sum = _mm_add_ps(sum, _mm_mul_ps(p11, _mm_set1_ps(ax * ay)));
+    sum = _mm_add_ps(sum, _mm_mul_ps(p01, _mm_set1_ps(axn * ay)));
+    __m128i packed = _mm_cvttps_epi32(sum);
+    packed = _mm_packus_epi32(packed, packed);
+    packed = _mm_packus_epi16(packed, packed);
+    uint32_t value = static_cast<uint32_t>(_mm_cvtsi128_si32(packed)) | 0xFF000000u;
+    memcpy(dest, &value, sizeof(value));
+}
+
+// Wraps circular coordinates around the globe, see wrap().
+SSE41_TARGET inline __m128 WrapSse(__m128 value, __m128 dimension, __m128 inv_dimension) {
+    return _mm_sub_ps(value,
+                      _mm_mul_ps(dimension, _mm_floor_ps(_mm_mul_ps(value, inv_dimension))));
+}
+
+// Writes the interpolated source pixels at (px, py) to four consecutive
+// destination pixels.
+template <typename Image>
+SSE41_TARGET inline void SampleLanesSse(const Image &input, __m128 px, __m128 py,
+                                        unsigned char *dest) {
+    alignas(16) float px_lanes[4];
+    alignas(16) float py_lanes[4];
+    _mm_store_ps(px_lanes, px);
+    _mm_store_ps(py_lanes, py);
+    for (int lane = 0; lane < 4; lane++, dest += 4) {
+        float sx = px_lanes[lane];
+        float sy = py_lanes[lane];
+        int ix = static_cast<int>(sx);
+        int iy = static_cast<int>(sy);
+        if (HasFullNeighbourhood(input, ix, iy)) {
+            BlendPixelSse(input(ix, iy), input(ix, iy + 1), sx - floorf(sx), sy - floorf(sy),
+                          dest);
+        } else {
+            InterpolatePixel(input, sx, sy, dest);
+        }
+    }
+}
+
+// SSE4.1 version of StereographicProjectionBand, four pixels of a row at a time.
+template <typename Image>
+SSE41_TARGET void StereographicProjectionBandSse(float scale, float angle,
+                                                 const Image &input, ImageRGBA &output,
+                                                 int y_start, int y_end,
+                                                 int x_start, int x_end) {
+    const int output_width = output.Width();
+    const int output_height = output.Height();
+    const float image_scale = static_cast<float>(output_width) * scale;
+    const float input_width = static_cast<float>(input.Width());
+    const float input_height = static_cast<float>(input.Height());
+    const __m128 lane_offsets = _mm_setr_ps(0.0f, 1.0f, 2.0f, 3.0f);
+    const __m128 half_width = _mm_set1_ps(static_cast<float>(output_width) / 2.0f);
+    const __m128 inv_scale = _mm_set1_ps(1.0f / image_scale);
+    const __m128 pi = _mm_set1_ps(PI_F);
+    const __m128 two_pi = _mm_set1_ps(2 * PI_F);
+    const __m128 width = _mm_set1_ps(input_width);
+    const __m128 height = _mm_set1_ps(input_height);
+    const __m128 inv_width = _mm_set1_ps(1.0f / input_width);
+    const __m128 inv_height = _mm_set1_ps(1.0f / input_height);
+    const __m128 px_per_radian = _mm_set1_ps(input_width / (2 * PI_F));
+    const __m128 py_per_radian = _mm_set1_ps(input_height / PI_F);
+
+    for (int y = y_start; y < y_end; y++) {
+        float yf = (y - static_cast<float>(output_height) / 2.0f) / image_scale;
+        const __m128 yv = _mm_set1_ps(yf);
+        const __m128 yy = _mm_mul_ps(yv, yv);
+
+        int x = x_start;
+        for (; x + 4 <= x_end; x += 4) {
+            __m128 xv = _mm_add_ps(_mm_set1_ps(static_cast<float>(x)), lane_offsets);
+            xv = _mm_mul_ps(_mm_sub_ps(xv, half_width), inv_scale);
+
+            // Polar coordinates; phi = 2 * atan(1 / r) = pi - 2 * atan(r).
+            __m128 r = _mm_sqrt_ps(_mm_add_ps(_mm_mul_ps(xv, xv), yy));
+            __m128 theta = _mm_add_ps(_mm_set1_ps(angle), Atan2Sse(yv, xv));
+            theta = _mm_sub_ps(theta, _mm_and_ps(_mm_cmpgt_ps(theta, pi), two_pi));
+            __m128 atan_r = Atan2Sse(r, _mm_set1_ps(1.0f));
+            __m128 phi = _mm_sub_ps(pi, _mm_add_ps(atan_r, atan_r));
+
+            // Map to the panorama and wrap around the globe.
+            __m128 px = _mm_mul_ps(theta, px_per_radian);
+            __m128 py = _mm_mul_ps(phi, py_per_radian);
+            px = WrapSse(px, width, inv_width);
+            py = WrapSse(py, height, inv_height);
+            SampleLanesSse(input, px, py, output(x, y));
+        }
+        for (; x < x_end; x++) {
+            float xf = (x - static_cast<float>(output_width) / 2.0f) / image_scale;
+            ProjectPixel(input, angle, xf, yf, output(x, y));
+        }
+    }
+}
+
+// SSE4.1 version of PolarTableBand.
+template <typename Image>
+SSE41_TARGET void PolarTableBandSse(const PolarTable &table, float angle,
+                                    const Image &input, ImageRGBA &output, int y_start,
+                                    int y_end, int x_start, int x_end) {
+    const float input_width = static_cast<float>(input.Width());
+    const float input_height = static_cast<float>(input.Height());
+    const float angle_u = angle / (2 * PI_F);
+    const __m128 angle_v = _mm_set1_ps(angle_u);
+    const __m128 half = _mm_set1_ps(0.5f);
+    const __m128 one = _mm_set1_ps(1.0f);
+    const __m128 width = _mm_set1_ps(input_width);
+    const __m128 height = _mm_set1_ps(input_height);
+    const __m128 inv_width = _mm_set1_ps(1.0f / input_width);
+    const __m128 inv_height = _mm_set1_ps(1.0f / input_height);
+    for (int y = y_start; y < y_end; y++) {
+        const float *u = table.u.data() + static_cast<long>(y) * table.width;
+        const float *v = table.v.data() + static_cast<long>(y) * table.width;
+        int x = x_start;
+        for (; x + 4 <= x_end; x += 4) {
+            __m128 theta_u = _mm_add_ps(_mm_loadu_ps(u + x), angle_v);
+            theta_u = _mm_sub_ps(theta_u, _mm_and_ps(_mm_cmpgt_ps(theta_u, half), one));
+            __m128 px = WrapSse(_mm_mul_ps(theta_u, width), width, inv_width);
+            __m128 py = WrapSse(_mm_mul_ps(_mm_loadu_ps(v + x), height), height, inv_height);
+            SampleLanesSse(input, px, py, output(x, y));
+        }
+        for (; x < x_end; x++) {
+            float theta_u = u[x] + angle_u;
+            if (theta_u > 0.5f) theta_u -= 1.0f;
+            float px = wrap(theta_u * input_width, input_width);
+            float py = wrap(v[x] * input_height, input_height);
+            InterpolatePixel(input, px, py, output(x, y));
+        }
+    }
+}
+
+#endif  // TINYPLANET_SSE41
+
+#ifdef TINYPLANET_NEON
+
+inline float32x4_t Atan2Neon(float32x4_t y, float32x4_t x) {
+    float32x4_t abs_x = vabsq_f32(x);
+    float32x4_t abs_y = vabsq_f32(y);
+    uint32x4_t swap = vcgtq_f32(abs_y, abs_x);
+    float32x4_t num = vminq_f32(abs_x, abs_y);
+    float32x4_t den = vmaxq_f32(vmaxq_f32(abs_x, abs_y), vdupq_n_f32(1e-30f));
+    float32x4_t a = vdivq_f32(num, den);
+    float32x4_t s = vmulq_f32(a, a);
+    float32x4_t r = vdupq_n_f32(ATAN_C11);
+    r = vfmaq_f32(vdupq_n_f32(ATAN_C9), r, s);
+    r = vfmaq_f32(vdupq_n_f32(ATAN_C7), r, s);
+    r = vfmaq_f32(vdupq_n_f32(ATAN_C5), r, s);
+    r = vfmaq_f32(vdupq_n_f32(ATAN_C3), r, s);
+    r = vfmaq_f32(vdupq_n_f32(ATAN_C1), r, s);
+    r = vmulq_f32(r, a);
+    r = vbslq_f32(swap, vsubq_f32(vdupq_n_f32(PI_F / 2), r), r);
+    r = vbslq_f32(vcltq_f32(x, vdupq_n_f32(0.0f)), vsubq_f32(vdupq_n_f32(PI_F), r), r);
+    uint32x4_t sign = vandq_u32(vreinterpretq_u32_f32(y), vdupq_n_u32(0x80000000u));
+    return vreinterpretq_f32_u32(vorrq_u32(vreinterpretq_u32_f32(r), sign));
+}
+
+inline float32x4_t LoadPixelNeon(const unsigned char *p) {
+    uint8x8_t bytes = vreinterpret_u8_u32(vdup_n_u32(LoadPixel(p)));
+    return vcvtq_f32_u32(vmovl_u16(vget_low_u16(vmovl_u8(bytes))));
+}
+
+// Blends the 2x2 neighbourhood at p (top row) and p2 (bottom row), all four
+// channels at once.
+inline void BlendPixelNeon(const unsigned char *p, const unsigned char *p2, float ax, float ay,
+                           unsigned char *dest) {
+    float axn = 1.0f - ax;
+    float ayn = 1.0f - ay;
+    float32x4_t sum = vdupq_n_f32(0.5f);
+    sum = vfmaq_n_f32(sum, LoadPixelNeon(p), axn * ayn);
+    sum = vfmaq_n_f32(sum, LoadPixelNeon(p + 4), ax * ayn);
+    sum = vfmaq_n_f32(sum, LoadPixelNeon(p2 + 4), ax * ay);
+    sum = vfmaq_n_f32(sum, LoadPixelNeon(p2), axn * ay);
+    uint16x4_t narrow = vmovn_u32(vcvtq_u32_f32(sum));
+    uint8x8_t bytes = vqmovn_u16(vcombine_u16(narrow, narrow));
+    uint32_t value = vget_lane_u32(vreinterpret_u32_u8(bytes), 0) | 0xFF000000u;
+    memcpy(dest, &value, sizeof(value));
+}
+
+// Wraps circular coordinates around the globe, see wrap().
+inline float32x4_t WrapNeon(float32x4_t value, float32x4_t dimension,
+                            float32x4_t inv_dimension) {
+    return vfmsq_f32(value, dimension, vrndmq_f32(vmulq_f32(value, inv_dimension)));
+}
+
+// Writes the interpolated source pixels at (px, py) to four consecutive
+// destination pixels.
+template <typename Image>
+inline void SampleLanesNeon(const Image &input, float32x4_t px, float32x4_t py,
+                            unsigned char *dest) {
+    float px_lanes[4];
+    float py_lanes[4];
+    vst1q_f32(px_lanes, px);
+    vst1q_f32(py_lanes, py);
+    for (int lane = 0; lane < 4; lane++, dest += 4) {
+        float sx = px_lanes[lane];
+        float sy = py_lanes[lane];
+        int ix = static_cast<int>(sx);
+        int iy = static_cast<int>(sy);
+        if (HasFullNeighbourhood(input, ix, iy)) {
+            BlendPixelNeon(input(ix, iy), input(ix, iy + 1), sx - floorf(sx), sy - floorf(sy),
+                           dest);
+        } else {
+            InterpolatePixel(input, sx, sy, dest);
+        }
+    }
+}
+
+// NEON version of StereographicProjectionBand, four pixels of a row at a time.
+template <typename Image>
+void StereographicProjectionBandNeon(float scale, float angle, const Image &input,
+                                     ImageRGBA &output, int y_start, int y_end,
+                                     int x_start, int x_end) {
+    const int output_width = output.Width();
+    const int output_height = output.Height();
+    const float image_scale = static_cast<float>(output_width) * scale;
+    const float input_width = static_cast<float>(input.Width());
+    const float input_height = static_cast<float>(input.Height());
+    const float lane_offset_values[4] = {0.0f, 1.0f, 2.0f, 3.0f};
+    const float32x4_t lane_offsets = vld1q_f32(lane_offset_values);
+    const float32x4_t half_width = vdupq_n_f32(static_cast<float>(output_width) / 2.0f);
+    const float32x4_t inv_scale = vdupq_n_f32(1.0f / image_scale);
+    const float32x4_t pi = vdupq_n_f32(PI_F);
+    const float32x4_t two_pi = vdupq_n_f32(2 * PI_F);
+    const float32x4_t one = vdupq_n_f32(1.0f);
+    const float32x4_t width = vdupq_n_f32(input_width);
+    const float32x4_t height = vdupq_n_f32(input_height);
+    const float32x4_t inv_width = vdupq_n_f32(1.0f / input_width);
+    const float32x4_t inv_height = vdupq_n_f32(1.0f / input_height);
+    const float32x4_t px_per_radian = vdupq_n_f32(input_width / (2 * PI_F));
+    const float32x4_t py_per_radian = vdupq_n_f32(input_height / PI_F);
+
+    for (int y = y_start; y < y_end; y++) {
+        float yf = (y - static_cast<float>(output_height) / 2.0f) / image_scale;
+        const float32x4_t yv = vdupq_n_f32(yf);
+        const float32x4_t yy = vmulq_f32(yv, yv);
+
+        int x = x_start;
+        for (; x + 4 <= x_end; x += 4) {
+            float32x4_t xv = vaddq_f32(vdupq_n_f32(static_cast<float>(x)), lane_offsets);
+            xv = vmulq_f32(vsubq_f32(xv, half_width), inv_scale);
+
+            // Polar coordinates; phi = 2 * atan(1 / r) = pi - 2 * atan(r).
+            float32x4_t r = vsqrtq_f32(vfmaq_f32(yy, xv, xv));
+            float32x4_t theta = vaddq_f32(vdupq_n_f32(angle), Atan2Neon(yv, xv));
+            theta = vbslq_f32(vcgtq_f32(theta, pi), vsubq_f32(theta, two_pi), theta);
+            float32x4_t phi = vfmsq_f32(pi, Atan2Neon(r, one), vdupq_n_f32(2.0f));
+
+            // Map to the panorama and wrap around the globe.
+            float32x4_t px = vmulq_f32(theta, px_per_radian);
+            float32x4_t py = vmulq_f32(phi, py_per_radian);
+            px = WrapNeon(px, width, inv_width);
+            py = WrapNeon(py, height, inv_height);
+            SampleLanesNeon(input, px, py, output(x, y));
+        }
+        for (; x < x_end; x++) {
+            float xf = (x - static_cast<float>(output_width) / 2.0f) / image_scale;
+            ProjectPixel(input, angle, xf, yf, output(x, y));
+        }
+    }
+}
+
+// NEON version of PolarTableBand.
+template <typename Image>
+void PolarTableBandNeon(const PolarTable &table, float angle, const Image &input,
+                        ImageRGBA &output, int y_start, int y_end,
+                        int x_start, int x_end) {
+    const float input_width = static_cast<float>(input.Width());
+    const float input_height = static_cast<float>(input.Height());
+    const float angle_u = angle / (2 * PI_F);
+    const float32x4_t angle_v = vdupq_n_f32(angle_u);
+    const float32x4_t half = vdupq_n_f32(0.5f);
+    const float32x4_t one = vdupq_n_f32(1.0f);
+    const float32x4_t width = vdupq_n_f32(input_width);
+    const float32x4_t height = vdupq_n_f32(input_height);
+    const float32x4_t inv_width = vdupq_n_f32(1.0f / input_width);
+    const float32x4_t inv_height = vdupq_n_f32(1.0f / input_height);
+    for (int y = y_start; y < y_end; y++) {
+        const float *u = table.u.data() + static_cast<long>(y) * table.width;
+        const float *v = table.v.data() + static_cast<long>(y) * table.width;
+        int x = x_start;
+        for (; x + 4 <= x_end; x += 4) {
+            float32x4_t theta_u = vaddq_f32(vld1q_f32(u + x), angle_v);
+            theta_u = vbslq_f32(vcgtq_f32(theta_u, half), vsubq_f32(theta_u, one), theta_u);
+            float32x4_t px = WrapNeon(vmulq_f32(theta_u, width), width, inv_width);
+            float32x4_t py = WrapNeon(vmulq_f32(vld1q_f32(v + x), height), height, inv_height);
+            SampleLanesNeon(input, px, py, output(x, y));
+        }
+        for (; x < x_end; x++) {
+            float theta_u = u[x] + angle_u;
+            if (theta_u > 0.5f) theta_u -= 1.0f;
+            float px = wrap(theta_u * input_width, input_width);
+            float py = wrap(v[x] * input_height, input_height);
+            InterpolatePixel(input, px, py, output(x, y));
+        }
+    }
+}
+
+#endif  // TINYPLANET_NEON
+
+// The projection kernels for one instruction set and source layout.
+template <typename Image>
+struct Kernels {
+    void (*band)(float scale, float angle, const Image &input, ImageRGBA &output,
+                 int y_start, int y_end, int x_start, int x_end);
+    void (*table)(const PolarTable &table, float angle, const Image &input, ImageRGBA &output,
+                  int y_start, int y_end, int x_start, int x_end);
+};
+
+// Picks the fastest kernels the CPU we are running on supports.
+template <typename Image>
+Kernels<Image> SelectKernels() {
+#ifdef TINYPLANET_SSE41
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("sse4.1")) {
+        return {StereographicProjectionBandSse<Image>, PolarTableBandSse<Image>};
+    }
+#endif
+#ifdef TINYPLANET_NEON
+    if (getauxval(AT_HWCAP) & HWCAP_ASIMD) {
+        return {StereographicProjectionBandNeon<Image>, PolarTableBandNeon<Image>};
+    }
+#endif
+    return {StereographicProjectionBand<Image>, PolarTableBand<Image>};
+}
+
+// Whether the caller has asked for the projection in progress to be abandoned.
+static inline bool Cancelled(const std::atomic<bool> *cancel) {
+    return cancel != nullptr && cancel->load(std::memory_order_relaxed);
+}
+
+// Cache of the most recently used polar table. A table is only built the
+// second time in a row the same output size and scale is requested, so zoom
+// drags, where every frame has a new scale, never pay for building one.
+class PolarTableCache {
+public:
+    static PolarTableCache &Instance() {
+        static PolarTableCache cache;
+        return cache;
+    }
+
+    // Returns the table for the given output, or null if the caller should
+    // project directly. A build is checked for cancel per band like a
+    // projection, and a cancelled one is dropped rather than cached.
+    std::shared_ptr<const PolarTable> Get(int width, int height, float scale,
+                                          int num_threads, const std::atomic<bool> *cancel) {
+        if (static_cast<long>(width) * height > MAX_POLAR_TABLE_PIXELS) {
+            return nullptr;
+        }
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            if (table_ && table_->Matches(width, height, scale)) {
+                return table_;
+            }
+            if (width != last_width_ || height != last_height_ || scale != last_scale_) {
+                last_width_ = width;
+                last_height_ = height;
+                last_scale_ = scale;
+                return nullptr;
+            }
+        }
+
+        auto table = std::make_shared<PolarTable>();
+        table->width = width;
+        table->height = height;
+        table->scale = scale;
+        table->u.resize(static_cast<long>(width) * height);
+        table->v.resize(static_cast<long>(width) * height);
+        WorkerPool::Instance().ParallelFor(
+                height, num_threads, [&](int y_start, int y_end) {
+                    if (Cancelled(cancel)) {
+                        return;
+                    }
+                    BuildPolarTableBand(table.get(), y_start, y_end);
+                });
+        if (Cancelled(cancel)) {
+            // Some bands may be missing. The next request for this output
+            // builds it again.
+            return nullptr;
+        }
+
+        std::lock_guard<std::mutex> lock(mutex_);
+        table_ = table;
+        return table_;
+    }
+
+private:
+    std::mutex mutex_;
+    std::shared_ptr<const PolarTable> table_;
+    int last_width_ = 0;
+    int last_height_ = 0;
+    float last_scale_ = 0;
+};
+
+// Upper bound on the levels of a MipPyramid, including the source.
+#define MAX_MIP_LEVELS 10
+// Levels stop once either side would get smaller than this.
+#define MIN_MIP_SIZE 8
+
+// Box filtered copies of a source panorama at 1/2, 1/4, ... of its size. When
+// the planet is small, one output pixel near the center covers hundreds of
+// source pixels; sampling a level whose pixels are about as large as the
+// output pixel avoids the aliasing and the cache misses of skipping across the
+// full resolution source. Level 0 is the source itself and is not copied.
+class MipPyramid {
+public:
+    MipPyramid(const ImageRGBA &source, int num_threads)
+            : width_(source.Width()), height_(source.Height()) {
+        // Each level is built from the one before, which must not move.
+        levels_.reserve(MAX_MIP_LEVELS);
+        pixels_.reserve(MAX_MIP_LEVELS);
+        const ImageRGBA *previous = &source;
+        int width = width_ / 2;
+        int height = height_ / 2;
+        while (static_cast<int>(levels_.size()) + 1 < MAX_MIP_LEVELS &&
+               std::min(width, height) >= MIN_MIP_SIZE) {
+            pixels_.emplace_back(static_cast<size_t>(width) * height * 4);
+            levels_.emplace_back(pixels_.back().data(), width, height);
+            ImageRGBA &level = levels_.back();
+            WorkerPool::Instance().ParallelFor(
+                    height, num_threads, [&](int y_start, int y_end) {
+                        Downsample(*previous, level, y_start, y_end);
+                    });
+            previous = &level;
+            width /= 2;
+            height /= 2;
+        }
+    }
+
+    // Number of levels, including the source.
+    int Levels() const {
+        return static_cast<int>(levels_.size()) + 1;
+    }
+
+    // Level 1 and up.
+    const ImageRGBA &Level(int level) const {
+        return levels_[level - 1];
+    }
+
+    bool Matches(int width, int height) const {
+        return width == width_ && height == height_;
+    }
+
+private:
+    // Averages 2x2 blocks of source into the rows [y_start, y_end) of dest.
+    static void Downsample(const ImageRGBA &source, ImageRGBA &dest, int y_start, int y_end) {
+        for (int y = y_start; y < y_end; y++) {
+            const unsigned char *p = source(0, 2 * y);
+            const unsigned char *p2 = source(0, 2 * y + 1);
+            unsigned char *d = dest(0, y);
+            for (int x = 0; x < dest.Width(); x++, p += 8, p2 += 8, d += 4) {
+                for (int c = 0; c < 4; c++) {
+                    d[c] = static_cast<unsigned char>((p[c] + p[c + 4] + p2[c] + p2[c + 4] + 2) >> 2);
+                }
+            }
+        }
+    }
+
+    int width_;
+    int height_;
+    std::vector<std::vector<unsigned char>> pixels_;
+    std::vector<ImageRGBA> levels_;
+};
+
+MipPyramid *CreateMipPyramid(const unsigned char *image, int width, int height,
+                             int num_threads) {
+    ImageRGBA source(const_cast<unsigned char *>(image), width, height);
+    return new MipPyramid(source, num_threads);
+}
+
+void DestroyMipPyramid(MipPyramid *pyramid) {
+    delete pyramid;
+}
+
+// Splits the output row at yf (centered and scaled, see ProjectPixel) into
+// spans by mip level, and returns the number of levels the row uses.
+//
+// An output pixel at radius r covers W / (2 pi r image_scale) source pixels
+// along a parallel and 2H / (pi (1 + r^2) image_scale) along a meridian, the
+// derivatives of theta and phi = 2 atan(1 / r). Both shrink as r grows, so the
+// larger of the two, the footprint, picks level l = round(log2(footprint)) on
+// a disc around the center. On a row, level l therefore covers
+// [left[l], left[l + 1]) and [right[l + 1], right[l]), and the innermost level
+// [left[l], right[l]).
+int MipSpans(int levels, float input_width, float input_height, float image_scale,
+             int output_width, float yf, int *left, int *right) {
+    const float center = static_cast<float>(output_width) / 2.0f;
+    left[0] = 0;
+    right[0] = output_width;
+    for (int level = 1; level < levels; level++) {
+        // Radius inside which the footprint is at least 2^(level - 1/2).
+        float footprint = exp2f(level - 0.5f);
+        float tangential = input_width / (2 * PI_F * image_scale * footprint);
+        float meridional = 2 * input_height / (PI_F * image_scale * footprint) - 1;
+        float radius = std::max(tangential, sqrtf(std::max(0.0f, meridional)));
+        if (radius <= fabsf(yf)) {
+            return level;
+        }
+        float half_span = sqrtf(radius * radius - yf * yf) * image_scale;
+        left[level] = std::max(left[level - 1], static_cast<int>(ceilf(center - half_span)));
+        right[level] = std::min(right[level - 1], static_cast<int>(floorf(center + half_span)) + 1);
+        if (left[level] >= right[level]) {
+            return level;
+        }
+    }
+    return levels;
+}
+
+// Pyramid levels are sampled plain, or padded like the input they stand for.
+template <typename Image>
+struct MipLevels {
+    typedef ImageRGBA Level;
+
+    static const Image &Source(const Image &input) {
+        return input;
+    }
+
+    static const ImageRGBA &Get(const Image & /*input*/, const ImageRGBA &level) {
+        return level;
+    }
+};
+
+template <typename Image>
+struct MipLevels<PaddedImage<Image>> {
+    typedef PaddedImage<ImageRGBA> Level;
+
+    static const Image &Source(const PaddedImage<Image> &input) {
+        return input.Source();
+    }
+
+    static PaddedImage<ImageRGBA> Get(const PaddedImage<Image> &input, const ImageRGBA &level) {
+        return input.Rescaled(level);
+    }
+};
+
+// Projects input onto output with the kernels for its layout. Returns false if
+// cancel was raised before all bands were rendered. With a pyramid, parts of
+// the output sample the pyramid levels instead, see MipSpans().
+template <typename Image>
+bool StereographicProjection(float scale, float angle, const Image &input, ImageRGBA &output,
+                             int num_threads, const std::atomic<bool> *cancel,
+                             const MipPyramid *pyramid) {
+    typedef typename MipLevels<Image>::Level Level;
+    static const Kernels<Image> kernels = SelectKernels<Image>();
+    static const Kernels<Level> level_kernels = SelectKernels<Level>();
+
+    std::shared_ptr<const PolarTable> table = PolarTableCache::Instance().Get(
+            output.Width(), output.Height(), scale, num_threads, cancel);
+    auto project = [&](int y_start, int y_end, int x_start, int x_end, int level) {
+        if (level > 0) {
+            const Level &level_image = MipLevels<Image>::Get(input, pyramid->Level(level));
+            if (table) {
+                level_kernels.table(*table, angle, level_image, output, y_start, y_end, x_start,
+                                    x_end);
+            } else {
+                level_kernels.band(scale, angle, level_image, output, y_start, y_end, x_start,
+                                   x_end);
+            }
+        } else if (table) {
+            kernels.table(*table, angle, input, output, y_start, y_end, x_start, x_end);
+        } else {
+            kernels.band(scale, angle, input, output, y_start, y_end, x_start, x_end);
+        }
+    };
+
+    const auto &source = MipLevels<Image>::Source(input);
+    if (pyramid && (pyramid->Levels() < 2 || !pyramid->Matches(source.Width(), source.Height()))) {
+        pyramid = nullptr;
+    }
+    const float image_scale = static_cast<float>(output.Width()) * scale;
+    WorkerPool::Instance().ParallelFor(
+            output.Height(), num_threads, [&](int y_start, int y_end) {
+                if (Cancelled(cancel)) {
+                    return;
+                }
+                if (!pyramid) {
+                    project(y_start, y_end, 0, output.Width(), 0);
+                    return;
+                }
+                int left[MAX_MIP_LEVELS + 1];
+                int right[MAX_MIP_LEVELS + 1];
+                for (int y = y_start; y < y_end; y++) {
+                    float yf = (y - static_cast<float>(output.Height()) / 2.0f) / image_scale;
+                    int levels = MipSpans(pyramid->Levels(), static_cast<float>(input.Width()),
+                                          static_cast<float>(input.Height()), image_scale,
+                                          output.Width(), yf, left, right);
+                    for (int level = 0; level + 1 < levels; level++) {
+                        project(y, y + 1, left[level], left[level + 1], level);
+                        project(y, y + 1, right[level + 1], right[level], level);
+                    }
+                    project(y, y + 1, left[levels - 1], right[levels - 1], levels - 1);
+                }
+            });
+    return !Cancelled(cancel);
+}
+
+bool StereographicProjection(float scale, float angle, unsigned char *input_image,
+                             int input_width, int input_height,
+                             unsigned char *output_image, int output_width,
+                             int output_height, int num_threads, bool tiled_source,
+                             const std::atomic<bool> *cancel, const MipPyramid *pyramid,
+                             const PanoPadding *padding) {
+    ImageRGBA input(input_image, input_width, input_height);
+    ImageRGBA output(output_image, output_width, output_height);
+
+    if (tiled_source) {
+        TiledImageRGBA tiled(input_width, input_height);
+        WorkerPool::Instance().ParallelFor(
+                input_height, num_threads, [&](int y_start, int y_end) {
+                    tiled.CopyRows(input, y_start, y_end);
+                });
+        if (padding) {
+            PaddedImage<TiledImageRGBA> padded(tiled, *padding);
+            return StereographicProjection(scale, angle, padded, output, num_threads, cancel,
+                                           pyramid);
+        }
+        return StereographicProjection(scale, angle, tiled, output, num_threads, cancel,
+                                       pyramid);
+    }
+    if (padding) {
+        PaddedImage<ImageRGBA> padded(input, *padding);
+        return StereographicProjection(scale, angle, padded, output, num_threads, cancel,
+                                       pyramid);
+    }
+    return StereographicProjection(scale, angle, input, output, num_threads, cancel, pyramid);
+}
+
+// The part of the panorama the output pixels [x_start, x_end) x [y_start,
+// y_end) project to, as ranges of px and py in ProjectPixel(). px may run past
+// either edge of the panorama, where it wraps around.
+struct ProjectedRange {
+    float px_start;
+    float px_end;
+    float py_start;
+    float py_end;
+    // Whether the output centre is covered, which samples every column.
+    bool centre;
+};
+
+static ProjectedRange ProjectRange(float scale, float angle, float input_width,
+                                   float input_height, int output_width, int output_height,
+                                   int x_start, int y_start, int x_end, int y_end) {
+    const float image_scale = static_cast<float>(output_width) * scale;
+    // The rectangle of pixel positions, centred.
+    float left = x_start - static_cast<float>(output_width) / 2.0f;
+    float right = x_end - 1 - static_cast<float>(output_width) / 2.0f;
+    float top = y_start - static_cast<float>(output_height) / 2.0f;
+    float bottom = y_end - 1 - static_cast<float>(output_height) / 2.0f;
+    float r_min = hypotf(std::min(std::max(0.0f, left), right),
+                         std::min(std::max(0.0f, top), bottom)) / image_scale;
+    float r_max = hypotf(std::max(fabsf(left), fabsf(right)),
+                         std::max(fabsf(top), fabsf(bottom))) / image_scale;
+
+    ProjectedRange range;
+    // phi = 2 atan(1 / r) falls as r grows.
+    range.py_start = 2 * atanf(1 / r_max) / PI_F * input_height;
+    range.py_end = 2 * atanf(1 / r_min) / PI_F * input_height;
+    range.centre = r_min == 0;
+    if (range.centre) {
+        range.px_start = 0;
+        range.px_end = input_width;
+        return range;
+    }
+    // Off the centre the rectangle spans less than half a turn, so its corners
+    // bound theta on either side of the direction of its middle.
+    float middle = atan2f(top + bottom, left + right);
+    float low = 0;
+    float high = 0;
+    for (float x : {left, right}) {
+        for (float y : {top, bottom}) {
+            float delta = remainderf(atan2f(y, x) - middle, 2 * PI_F);
+            low = std::min(low, delta);
+            high = std::max(high, delta);
+        }
+    }
+    range.px_start = (angle + middle + low) / (2 * PI_F) * input_width;
+    range.px_end = (angle + middle + high) / (2 * PI_F) * input_width;
+    return range;
+}
+
+// Marks the tiles of source that hold any of the columns [x_start, x_end),
+// which wrap around full_width, and rows [y_start, y_end) of the panorama the
+// source is placed in at (left, top).
+static void MarkSourceTiles(const SourceTiles &source, int full_width, int left, int top,
+                            int x_start, int x_end, int y_start, int y_end, bool *needed) {
+    y_start = std::max(0, y_start - top);
+    y_end = std::min(source.height, y_end - top);
+    if (y_start >= y_end) {
+        return;
+    }
+    if (x_end - x_start >= full_width) {
+        x_start = 0;
+        x_end = full_width;
+    } else {
+        int wrapped = x_start - full_width * static_cast<int>(floorf(
+                static_cast<float>(x_start) / full_width));
+        x_end += wrapped - x_start;
+        x_start = wrapped;
+    }
+    // [x_start, x_end) now starts inside the panorama and ends at most one
+    // turn later.
+    for (int turn = 0; turn < 2; turn++, x_start -= full_width, x_end -= full_width) {
+        int start = std::max(0, x_start - left);
+        int end = std::min(source.width, x_end - left);
+        if (start >= end) {
+            continue;
+        }
+        for (int row = y_start >> source.tile_shift; row <= (y_end - 1) >> source.tile_shift;
+             row++) {
+            for (int column = start >> source.tile_shift;
+                 column <= (end - 1) >> source.tile_shift; column++) {
+                needed[row * source.columns + column] = true;
+            }
+        }
+    }
+}
+
+void SourceTilesNeeded(float scale, float angle, const SourceTiles &source,
+                       const PanoPadding *padding, int output_width, int output_height,
+                       int x_start, int y_start, int x_end, int y_end, bool *needed) {
+    std::fill(needed, needed + source.columns * source.rows, false);
+    if (x_start >= x_end || y_start >= y_end) {
+        return;
+    }
+    TileGridImage image(source);
+    int full_width = image.Width();
+    int full_height = image.Height();
+    int left = 0;
+    int top = 0;
+    if (padding) {
+        PaddedImage<TileGridImage> padded(image, *padding);
+        full_width = padded.Width();
+        full_height = padded.Height();
+        left = padded.Left();
+        top = padded.Top();
+    }
+    ProjectedRange range = ProjectRange(scale, angle, full_width, full_height, output_width,
+                                        output_height, x_start, y_start, x_end, y_end);
+    // Interpolation reads one pixel right and below, and a pixel either side
+    // absorbs the error of the vector kernels' atan.
+    MarkSourceTiles(source, full_width, left, top,
+                    static_cast<int>(floorf(range.px_start)) - 1,
+                    static_cast<int>(floorf(range.px_end)) + 3,
+                    static_cast<int>(floorf(range.py_start)) - 1,
+                    static_cast<int>(floorf(range.py_end)) + 3, needed);
+    if (range.centre) {
+        // The centre itself has phi = pi, which wraps around to the top row.
+        MarkSourceTiles(source, full_width, left, top, 0, full_width, 0, 2, needed);
+    }
+}
+
+// Renders the output pixels [x_start, x_end) x [y_start, y_end) with the band
+// kernels, splitting the rows over the workers.
+template <typename Image>
+static bool ProjectRect(float scale, float angle, const Image &input, ImageRGBA &output,
+                        int x_start, int y_start, int x_end, int y_end, int num_threads,
+                        const std::atomic<bool> *cancel) {
+    static const Kernels<Image> kernels = SelectKernels<Image>();
+    WorkerPool::Instance().ParallelFor(
+            y_end - y_start, num_threads, [&](int band_start, int band_end) {
+                if (Cancelled(cancel)) {
+                    return;
+                }
+                kernels.band(scale, angle, input, output, y_start + band_start,
+                             y_start + band_end, x_start, x_end);
+            });
+    return !Cancelled(cancel);
+}
+
+bool StereographicProjectionTiles(float scale, float angle, const SourceTiles &source,
+                                  const PanoPadding *padding, unsigned char *output_image,
+                                  int output_width, int output_height, int output_top,
+                                  int output_rows, int x_start, int y_start, int x_end,
+                                  int y_end, int num_threads,
+                                  const std::atomic<bool> *cancel) {
+    TileGridImage input(source);
+    ImageRGBA output(output_image, output_width, output_height, output_top, output_rows);
+    if (padding) {
+        PaddedImage<TileGridImage> padded(input, *padding);
+        return ProjectRect(scale, angle, padded, output, x_start, y_start, x_end, y_end,
+                           num_threads, cancel);
+    }
+    return ProjectRect(scale, angle, input, output, x_start, y_start, x_end, y_end, num_threads,
+                       cancel);
+}
+
+const char *KernelName() {
+#ifdef TINYPLANET_SSE41
+    if (SelectKernels<ImageRGBA>().band == StereographicProjectionBandSse<ImageRGBA>) {
+        return "sse4.1";
+    }
+#endif
+#ifdef TINYPLANET_NEON
+    if (SelectKernels<ImageRGBA>().band == StereographicProjectionBandNeon<ImageRGBA>) {
+        return "neon";
+    }
+#endif
+    return "scalar";
+}
@@ -0,0 +1,97 @@
+#ifndef TINYPLANET_CORE_H
+#define TINYPLANET_CORE_H
+
+#include <atomic>
+#include <cstdint>
+
+// The tiny planet projection, free of JNI so it also builds as a plain
+// library on a Linux host (see CMakeLists.txt).
+
+// Box filtered copies of a panorama at 1/2, 1/4, ... of its size, for
+// sampling zoomed out planets without aliasing.
+class MipPyramid;
+
+// Builds the pyramid of an RGBA panorama, splitting the work over num_threads
+// threads like StereographicProjection. Free it with DestroyMipPyramid.
+MipPyramid *CreateMipPyramid(const unsigned char *image, int width, int height,
+                             int num_threads);
+
+void DestroyMipPyramid(MipPyramid *pyramid);
+
+// Where a cropped panorama sits in the full 360x180 degree panorama, in pixels
+// of the cropped image. Samples outside the crop take the fill colour, given
+// as RGBA bytes in memory order.
+struct PanoPadding {
+    int full_width;
+    int full_height;
+    int left;
+    int top;
+    uint8_t fill[4];
+};
+
+// Creates a tiny planet. The input is a 360x180 degree equirectangular RGBA
+// panorama, the output an RGBA image of output_width x output_height. Rows are
+// rendered in parallel on num_threads threads, or one per online CPU if
+// num_threads is zero or less. With tiled_source the panorama is first copied
+// into tiles, which pays one pass over the source to keep the sampling reads
+// cache local.
+//
+// If cancel is set, it is checked before each row band; once it reads true the
+// remaining bands are skipped and false is returned, leaving the output
+// partially written. Returns true when the whole output was rendered.
+//
+// If pyramid is set and was built from a source of the input's size, output
+// pixels that cover many source pixels sample a smaller pyramid level instead.
+//
+// If padding is set, the input is only the cropped part of the panorama, and
+// it is sampled as if it were padded to the full panorama.
+bool StereographicProjection(float scale, float angle, unsigned char *input_image,
+                             int input_width, int input_height,
+                             unsigned char *output_image, int output_width,
+                             int output_height, int num_threads, bool tiled_source,
+                             const std::atomic<bool> *cancel = nullptr,
+                             const MipPyramid *pyramid = nullptr,
+                             const PanoPadding *padding = nullptr);
+
+// A panorama of width x height pixels split into square tiles of
+// 1 << tile_shift pixels, columns x rows of them in row major order, not all
+// of which need to be in memory. pixels[i] is the top left pixel of tile i, or
+// null if it is not loaded, and strides[i] its row step in bytes. Every tile
+// row carries one pixel more than the tile is wide: the first pixel of the
+// next tile, or in the last tile column the first pixel of the next image row,
+// so the kernels can read right neighbours across tile edges.
+struct SourceTiles {
+    int width;
+    int height;
+    int tile_shift;
+    int columns;
+    int rows;
+    const unsigned char *const *pixels;
+    const int *strides;
+};
+
+// Sets needed[i] for the tiles of source, null pixels or not, that the output
+// pixels [x_start, x_end) x [y_start, y_end) of an output_width x
+// output_height planet sample, and clears it for the others. It errs on the
+// side of marking a tile too many.
+void SourceTilesNeeded(float scale, float angle, const SourceTiles &source,
+                       const PanoPadding *padding, int output_width, int output_height,
+                       int x_start, int y_start, int x_end, int y_end, bool *needed);
+
+// Renders the output pixels [x_start, x_end) x [y_start, y_end) of an
+// output_width x output_height planet from a panorama in tiles, so neither
+// has to fit in memory at once. output_image holds only the output rows
+// [output_top, output_top + output_rows), which must cover the rows rendered,
+// and the tiles SourceTilesNeeded() marks for the pixels must be loaded.
+// cancel and padding work like in StereographicProjection.
+bool StereographicProjectionTiles(float scale, float angle, const SourceTiles &source,
+                                  const PanoPadding *padding, unsigned char *output_image,
+                                  int output_width, int output_height, int output_top,
+                                  int output_rows, int x_start, int y_start, int x_end,
+                                  int y_end, int num_threads,
+                                  const std::atomic<bool> *cancel = nullptr);
+
+// Name of the projection kernels picked for this CPU, e.g. "neon".
+const char *KernelName();
+
+#endif  // TINYPLANET_CORE_H
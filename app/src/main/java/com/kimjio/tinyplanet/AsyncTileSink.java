@@ -0,0 +1,170 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Hands strips to another sink on a background thread, so the next strip renders while the last
+ * one is encoded. Each strip is copied into one of {@link #BUFFER_COUNT} buffers first, which
+ * bounds how far rendering can run ahead.
+ */
+public class AsyncTileSink implements TileSink {
+    private static final int BUFFER_COUNT = 2;
+
+    private final TileSink mSink;
+    private final ExecutorService mExecutor;
+    private final Paint mPaint = BitmapJpegEncoder.newCopyPaint();
+    /** Buffers free to copy the next strip into. */
+    private final BlockingQueue<Bitmap> mFreeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final List<Bitmap> mBuffers = new ArrayList<>(BUFFER_COUNT);
+    /** The last task handed to the executor; it runs tasks in order. */
+    private Future<?> mLastTask;
+    /** The first failure of the wrapped sink, rethrown on the render thread. */
+    private volatile IOException mFailure;
+
+    /** The memory the buffers take up for strips of the given size. */
+    public static long getBufferBytes(int width, int stripHeight) {
+        return (long) BUFFER_COUNT * width * stripHeight * 4;
+    }
+
+    /**
+     * @param sink the sink to hand the strips to.
+     * @param executor runs the wrapped sink. It must run tasks one at a time, in order.
+     */
+    public AsyncTileSink(TileSink sink, ExecutorService executor) {
+        mSink = sink;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void begin(int width, int height) throws IOException {
+        mSink.begin(width, height);
+    }
+
+    @Override
+    public void writeStrip(Bitmap strip, int top, int rows) throws IOException {
+        throwFailure();
+        Bitmap buffer = takeBuffer(strip);
+        int width = strip.getWidth();
+        Rect rect = new Rect(0, 0, width, rows);
+        new Canvas(buffer).drawBitmap(strip, rect, rect, mPaint);
+        mLastTask =
+                mExecutor.submit(
+                        () -> {
+                            try {
+                                if (mFailure == null) {
+                                    mSink.writeStrip(buffer, top, rows);
+                                }
+                            } catch (IOException e) {
+                                mFailure = e;
+                            } finally {
+                                mFreeBuffers.add(buffer);
+                            }
+                        });
+    }
+
+    /** If this throws, the buffers are left to {@link #abort()}, which callers follow up with. */
+    @Override
+    public void end() throws IOException {
+        awaitLastTask();
+        throwFailure();
+        mLastTask =
+                mExecutor.submit(
+                        () -> {
+                            mSink.end();
+                            return null;
+                        });
+        awaitLastTask();
+        recycleBuffers();
+    }
+
+    @Override
+    public void abort() {
+        try {
+            awaitLastTask();
+        } catch (InterruptedIOException e) {
+            // The wrapped sink may still be writing a buffer, so release on the executor, after
+            // the task that writes it.
+            mExecutor.execute(this::release);
+            return;
+        } catch (IOException e) {
+            // The image is abandoned anyway.
+        }
+        release();
+    }
+
+    /** Takes a free buffer, or makes one while there are fewer than {@link #BUFFER_COUNT}. */
+    private Bitmap takeBuffer(Bitmap strip) throws IOException {
+        Bitmap buffer = mFreeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (mBuffers.size() < BUFFER_COUNT) {
+            buffer =
+                    Bitmap.createBitmap(
+                            strip.getWidth(), strip.getHeight(), Bitmap.Config.ARGB_8888);
+            mBuffers.add(buffer);
+            return buffer;
+        }
+        try {
+            return mFreeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the encoder.");
+        }
+    }
+
+    /** Waits for the last task; with the executor running them in order, that is all of them. */
+    private void awaitLastTask() throws IOException {
+        if (mLastTask == null) {
+            return;
+        }
+        try {
+            mLastTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the encoder.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            mLastTask = null;
+        }
+    }
+
+    private void throwFailure() throws IOException {
+        IOException failure = mFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Frees the wrapped sink and the buffers, once no task uses them any more. */
+    private void release() {
+        mSink.abort();
+        recycleBuffers();
+    }
+
+    private void recycleBuffers() {
+        for (Bitmap buffer : mBuffers) {
+            buffer.recycle();
+        }
+        mBuffers.clear();
+        mFreeBuffers.clear();
+    }
+}
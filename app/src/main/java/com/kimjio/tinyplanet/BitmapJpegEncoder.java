@@ -0,0 +1,92 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes with {@link Bitmap#compress}, for builds without libjpeg-turbo. That takes a whole
+ * bitmap, so the strips are collected into one first; a sink given a single strip of the whole
+ * image compresses it without a copy.
+ */
+public class BitmapJpegEncoder implements JpegEncoder {
+    private final int mQuality;
+
+    /** @param quality the JPEG quality, 0-100. */
+    public BitmapJpegEncoder(int quality) {
+        mQuality = quality;
+    }
+
+    @Override
+    public TileSink open(OutputStream out) {
+        return new TileSink() {
+            private final Paint mPaint = newCopyPaint();
+            private int mWidth;
+            private int mHeight;
+            private Bitmap mImage;
+            private Canvas mCanvas;
+
+            @Override
+            public void begin(int width, int height) {
+                mWidth = width;
+                mHeight = height;
+            }
+
+            @Override
+            public void writeStrip(Bitmap strip, int top, int rows) throws IOException {
+                if (top == 0 && rows == mHeight && strip.getHeight() == mHeight) {
+                    compress(strip);
+                    return;
+                }
+                if (mImage == null) {
+                    mImage = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+                    mCanvas = new Canvas(mImage);
+                }
+                mCanvas.drawBitmap(
+                        strip,
+                        new Rect(0, 0, mWidth, rows),
+                        new Rect(0, top, mWidth, top + rows),
+                        mPaint);
+            }
+
+            @Override
+            public void end() throws IOException {
+                try {
+                    if (mImage != null) {
+                        compress(mImage);
+                    }
+                } finally {
+                    abort();
+                }
+            }
+
+            @Override
+            public void abort() {
+                if (mImage != null) {
+                    mImage.recycle();
+                    mImage = null;
+                    mCanvas = null;
+                }
+            }
+
+            private void compress(Bitmap image) throws IOException {
+                if (!image.compress(Bitmap.CompressFormat.JPEG, mQuality, out)) {
+                    throw new IOException("Could not compress JPEG.");
+                }
+            }
+        };
+    }
+
+    /** A paint that copies pixels as they are, alpha included. */
+    static Paint newCopyPaint() {
+        Paint paint = new Paint();
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        return paint;
+    }
+}
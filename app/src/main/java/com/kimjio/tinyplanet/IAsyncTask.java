@@ -1,10 +1,14 @@
 package com.kimjio.tinyplanet;
 
-import android.os.Handler;
-import android.os.Looper;
+import android.util.Log;
 
+import com.kimjio.tinyplanet.util.AppExecutors;
+
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 @SuppressWarnings("unchecked")
 public interface IAsyncTask<Params, Result> {
@@ -12,12 +16,54 @@ public interface IAsyncTask<Params, Result> {
 
     void onPostExecute(Result result);
 
-    default void execute(Params... params) {
-        Executor executor = Executors.newCachedThreadPool();
-        Handler handler = new Handler(Looper.getMainLooper());
-        executor.execute(() -> {
-            final Result result = doInBackground(params);
-            handler.post(() -> onPostExecute(result));
-        });
+    /** Runs the task on the shared render executor. */
+    default Future<Result> execute(Params... params) {
+        return executeOn(AppExecutors.instance().render(), params);
+    }
+
+    /**
+     * Runs {@link #doInBackground} on {@code executor} and then {@link #onPostExecute} on the main
+     * thread. Cancelling the returned future before {@link #onPostExecute} has run skips it. If
+     * {@link #doInBackground} throws, the failure is logged and {@link #onPostExecute} gets null.
+     */
+    default Future<Result> executeOn(ExecutorService executor, Params... params) {
+        final Executor mainThread = AppExecutors.instance().mainThread();
+        FutureTask<Result> task =
+                new FutureTask<Result>(() -> doInBackground(params)) {
+                    private volatile boolean mCancelled;
+
+                    @Override
+                    public boolean cancel(boolean mayInterruptIfRunning) {
+                        mCancelled = true;
+                        return super.cancel(mayInterruptIfRunning);
+                    }
+
+                    @Override
+                    protected void done() {
+                        if (mCancelled) {
+                            return;
+                        }
+                        Result result;
+                        try {
+                            result = get();
+                        } catch (ExecutionException e) {
+                            Log.e("IAsyncTask", "doInBackground() failed", e.getCause());
+                            result = null;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            Log.e("IAsyncTask", "Interrupted waiting for doInBackground()", e);
+                            result = null;
+                        }
+                        final Result postResult = result;
+                        mainThread.execute(
+                                () -> {
+                                    if (!mCancelled) {
+                                        onPostExecute(postResult);
+                                    }
+                                });
+                    }
+                };
+        executor.execute(task);
+        return task;
     }
 }
@@ -0,0 +1,33 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+
+import java.io.OutputStream;
+
+/**
+ * The encoding stage of a save: turns the strips of a {@link TiledPlanetRenderer} into a JPEG
+ * stream. Backends that take the image a strip at a time let the final save render and encode
+ * without ever holding the whole tiny planet.
+ */
+public interface JpegEncoder {
+    /**
+     * Starts encoding one image into out.
+     *
+     * @param out where the JPEG goes. It is written to but not closed.
+     * @return the sink to hand the image's strips to, top to bottom.
+     */
+    TileSink open(OutputStream out);
+
+    /**
+     * The best encoder this build has: the streaming libjpeg-turbo one if it was built in,
+     * otherwise {@link Bitmap#compress} on the assembled image.
+     *
+     * @param quality the JPEG quality, 0-100.
+     */
+    static JpegEncoder create(int quality) {
+        if (TurboJpegEncoder.isAvailable()) {
+            return new TurboJpegEncoder(quality);
+        }
+        return new BitmapJpegEncoder(quality);
+    }
+}
@@ -24,6 +24,7 @@ import android.util.Log;
 
 import com.kimjio.tinyplanet.app.MediaSaver;
 import com.kimjio.tinyplanet.exif.ExifInterface;
+import com.kimjio.tinyplanet.util.AppExecutors;
 
 import java.io.IOException;
 
@@ -104,7 +105,7 @@ public class MediaSaverImpl implements MediaSaver {
         if (isQueueFull()) {
             onQueueFull();
         }
-        t.execute();
+        t.executeOn(AppExecutors.instance().io());
     }
 
     @Override
@@ -0,0 +1,80 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+
+/**
+ * The bitmaps the preview is rendered into. Together with the bitmap the preview shows, the pool
+ * forms a ring of up to three buffers: one on screen, one published but not drawn yet, and one
+ * being rendered, so rendering never waits for drawing or the other way round.
+ *
+ * <p>All bitmaps are square and ARGB_8888, allocated for the current preview size. Smaller frames,
+ * as rendered during drags, reuse the same allocations through {@link Bitmap#reconfigure}. Bitmaps
+ * too small for the current preview size are recycled when they come back.
+ */
+public class PreviewBitmapPool {
+    /** Spare bitmaps kept around; the one on screen is not counted. */
+    private static final int MAX_FREE = 2;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ArrayDeque<Bitmap> mFree = new ArrayDeque<>(MAX_FREE);
+    private int mSizePx;
+    private boolean mClosed;
+
+    /** Sets the preview size, dropping the spare bitmaps too small for it. */
+    public synchronized void setSize(int sizePx) {
+        if (sizePx > mSizePx) {
+            recycleFree();
+        }
+        mSizePx = sizePx;
+    }
+
+    /**
+     * Takes a bitmap to render into.
+     *
+     * @param sizePx the size the caller wants to render at, at most the preview size.
+     * @return a bitmap of that size, or null if it is larger than the preview or the pool is
+     *     closed.
+     */
+    public synchronized Bitmap acquire(int sizePx) {
+        if (mClosed || sizePx <= 0 || sizePx > mSizePx) {
+            return null;
+        }
+        Bitmap bitmap = mFree.poll();
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(mSizePx, mSizePx, Bitmap.Config.ARGB_8888);
+        }
+        if (bitmap.getWidth() != sizePx) {
+            bitmap.reconfigure(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    /** Gives a bitmap back once it is neither rendered into nor drawn anymore. */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        if (mClosed
+                || bitmap.getAllocationByteCount() < mSizePx * mSizePx * BYTES_PER_PIXEL
+                || mFree.size() >= MAX_FREE) {
+            bitmap.recycle();
+        } else {
+            mFree.push(bitmap);
+        }
+    }
+
+    /** Recycles the spare bitmaps; bitmaps released from now on are recycled right away. */
+    public synchronized void close() {
+        mClosed = true;
+        recycleFree();
+    }
+
+    private void recycleFree() {
+        Bitmap bitmap;
+        while ((bitmap = mFree.poll()) != null) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.kimjio.tinyplanet;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.WorkerThread;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders preview frames, keeping only the newest request. A new request cancels the frame that
+ * is being rendered, so the preview never finishes a stale frame before starting on the current
+ * one, and there is no need to debounce slider updates.
+ *
+ * <p>At most one render runs at a time, on the given executor. Requests and {@link #release} are
+ * expected on the main thread.
+ *
+ * @param <Frame> what the renderer produces, e.g. a bitmap.
+ */
+public class PreviewRenderScheduler<Frame> {
+    /** The parameters of one preview frame. */
+    public static final class Request {
+        public final float mZoom;
+        public final float mAngle;
+        public final int mSizePx;
+
+        public Request(float zoom, float angle, int sizePx) {
+            mZoom = zoom;
+            mAngle = angle;
+            mSizePx = sizePx;
+        }
+    }
+
+    /** Does the actual rendering. */
+    public interface Renderer<Frame> {
+        /**
+         * Renders a frame.
+         *
+         * @param request the frame to render.
+         * @param cancelFlag the native cancel flag to pass to {@link
+         *     TinyPlanetNative.Options#setCancelFlag}.
+         * @return the rendered frame, or null if the render was cancelled or there is nothing to
+         *     render.
+         */
+        @WorkerThread
+        Frame render(Request request, long cancelFlag);
+
+        /** Called with each frame that was rendered completely. */
+        @MainThread
+        void onRendered(Request request, Frame frame);
+
+        /** Called with frames that were rendered but will not be shown. */
+        @MainThread
+        void onDiscarded(Frame frame);
+    }
+
+    private final Executor mExecutor;
+    private final Executor mMainThread;
+    private final Renderer<Frame> mRenderer;
+    private final long mCancelFlag = TinyPlanetNative.createCancelFlag();
+    private final AtomicReference<Request> mPending = new AtomicReference<>();
+    /** Whether the render loop is running, or, once released, whether the flag is freed. */
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+    /** Mirrors the native cancel flag, to tell a cancelled render from an empty one. */
+    private volatile boolean mCancelRequested;
+    private volatile boolean mReleased;
+
+    public PreviewRenderScheduler(Executor executor, Executor mainThread, Renderer<Frame> renderer) {
+        mExecutor = executor;
+        mMainThread = mainThread;
+        mRenderer = renderer;
+    }
+
+    /** Asks for a frame, replacing any frame that was asked for but not rendered yet. */
+    @MainThread
+    public void request(float zoom, float angle, int sizePx) {
+        if (mReleased) {
+            return;
+        }
+        mPending.set(new Request(zoom, angle, sizePx));
+        mCancelRequested = true;
+        TinyPlanetNative.cancel(mCancelFlag);
+        if (mRunning.compareAndSet(false, true)) {
+            mExecutor.execute(this::renderLoop);
+        }
+    }
+
+    /** Cancels the render in progress, drops pending requests and stops taking new ones. */
+    @MainThread
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mPending.set(null);
+        TinyPlanetNative.cancel(mCancelFlag);
+        mReleased = true;
+        // If the loop is not running, make sure it never starts again and free the flag here.
+        // Otherwise the loop frees it on its way out.
+        if (mRunning.compareAndSet(false, true)) {
+            TinyPlanetNative.destroyCancelFlag(mCancelFlag);
+        }
+    }
+
+    @WorkerThread
+    private void renderLoop() {
+        while (true) {
+            Request request;
+            while (!mReleased) {
+                // Reset before taking the request, so a cancel can only be meant for a request
+                // that is newer than the one we render.
+                mCancelRequested = false;
+                TinyPlanetNative.resetCancelFlag(mCancelFlag);
+                request = mPending.getAndSet(null);
+                if (request == null) {
+                    break;
+                }
+                final Request rendered = request;
+                final Frame frame = mRenderer.render(request, mCancelFlag);
+                if (frame != null) {
+                    mMainThread.execute(
+                            () -> {
+                                if (mReleased) {
+                                    mRenderer.onDiscarded(frame);
+                                } else {
+                                    mRenderer.onRendered(rendered, frame);
+                                }
+                            });
+                } else if (mCancelRequested) {
+                    // The cancel came from a request that was already taken by us before it
+                    // raised the flag; there is nothing newer, so render this one again.
+                    mPending.compareAndSet(null, request);
+                }
+            }
+            mRunning.set(false);
+            if (mReleased) {
+                if (mRunning.compareAndSet(false, true)) {
+                    TinyPlanetNative.destroyCancelFlag(mCancelFlag);
+                }
+                return;
+            }
+            // A request may have come in after the last check but seen the loop as running.
+            if (mPending.get() == null || !mRunning.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tiles of a panorama too large to decode at once, decoded from a {@link BitmapRegionDecoder}
+ * when a render first needs them and evicted least recently used first once they exceed a memory
+ * budget.
+ *
+ * <p>Tiles are laid out for {@link TinyPlanetNative#processTiles}: square, {@code 1 << tileShift}
+ * pixels, ARGB_8888, with one column more than they cover. The last tile of each row takes that
+ * column from the start of the next image row, the way the panorama continues in memory when it
+ * is decoded as one bitmap, so both renders sample the same pixels.
+ */
+public class SourceTileCache {
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileShift;
+    private final int mColumns;
+    private final int mRows;
+    private final long mBudgetBytes;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+    /** The loaded tiles by index, least recently used first. */
+    private final LinkedHashMap<Integer, Bitmap> mTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final Bitmap[] mAcquired;
+    private long mBytes;
+
+    /**
+     * @param decoder the panorama, or its cropped part. It stays owned by the caller.
+     * @param tileShift the tile size as a power of two.
+     * @param budgetBytes the memory the tiles may take up. Tiles the current render needs are kept
+     *     even past the budget, so a render needing more than it fits still completes.
+     */
+    public SourceTileCache(BitmapRegionDecoder decoder, int tileShift, long budgetBytes) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mTileShift = tileShift;
+        mColumns = (mWidth + getTileSize() - 1) >> tileShift;
+        mRows = (mHeight + getTileSize() - 1) >> tileShift;
+        mBudgetBytes = budgetBytes;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        mAcquired = new Bitmap[mColumns * mRows];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTileShift() {
+        return mTileShift;
+    }
+
+    public int getTileSize() {
+        return 1 << mTileShift;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getTileCount() {
+        return mColumns * mRows;
+    }
+
+    /** The most a single tile takes up, to size renders against the budget. */
+    public long getTileBytes() {
+        return (long) (getTileSize() + 1) * getTileSize() * 4;
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Loads the tiles a render needs, evicting ones it does not need to stay within the budget.
+     *
+     * @param needed one flag per tile in row major order, as filled in by {@link
+     *     TinyPlanetNative#sourceTilesNeeded}.
+     * @return the tiles in row major order, null where not needed. The array is reused by the next
+     *     call, and the tiles stay valid until then.
+     * @throws IOException if a tile could not be decoded.
+     */
+    public Bitmap[] acquire(boolean[] needed) throws IOException {
+        Arrays.fill(mAcquired, null);
+        // Bump the tiles that are already loaded first, so they are not evicted for the others.
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                mAcquired[i] = mTiles.get(i);
+            }
+        }
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i] && mAcquired[i] == null) {
+                evict(needed, getTileBytes());
+                Bitmap tile = decodeTile(i);
+                mTiles.put(i, tile);
+                mBytes += tile.getAllocationByteCount();
+                mAcquired[i] = tile;
+            }
+        }
+        return mAcquired;
+    }
+
+    /** Recycles all tiles. */
+    public void clear() {
+        for (Bitmap tile : mTiles.values()) {
+            tile.recycle();
+        }
+        mTiles.clear();
+        Arrays.fill(mAcquired, null);
+        mBytes = 0;
+    }
+
+    /** Evicts tiles that are not needed until another {@code bytes} fit in the budget. */
+    private void evict(boolean[] needed, long bytes) {
+        Iterator<Map.Entry<Integer, Bitmap>> it = mTiles.entrySet().iterator();
+        while (mBytes + bytes > mBudgetBytes && it.hasNext()) {
+            Map.Entry<Integer, Bitmap> entry = it.next();
+            if (needed[entry.getKey()]) {
+                continue;
+            }
+            mBytes -= entry.getValue().getAllocationByteCount();
+            entry.getValue().recycle();
+            it.remove();
+        }
+    }
+
+    private Bitmap decodeTile(int index) throws IOException {
+        int left = (index % mColumns) << mTileShift;
+        int top = (index / mColumns) << mTileShift;
+        int right = Math.min(left + getTileSize() + 1, mWidth);
+        int bottom = Math.min(top + getTileSize(), mHeight);
+        Bitmap tile = decodeRegion(new Rect(left, top, right, bottom));
+        if (right - left > getTileSize() || right < mWidth) {
+            return tile;
+        }
+
+        // The last tile of a row: append the first pixel of each next image row.
+        Bitmap extended =
+                Bitmap.createBitmap(right - left + 1, bottom - top, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(extended);
+        canvas.drawBitmap(tile, 0, 0, null);
+        tile.recycle();
+        if (top + 1 < mHeight) {
+            Bitmap next = decodeRegion(new Rect(0, top + 1, 1, Math.min(bottom + 1, mHeight)));
+            canvas.drawBitmap(next, right - left, 0, null);
+            next.recycle();
+        }
+        return extended;
+    }
+
+    private Bitmap decodeRegion(Rect rect) throws IOException {
+        Bitmap bitmap = mDecoder.decodeRegion(rect, mOptions);
+        if (bitmap == null) {
+            throw new IOException("Could not decode source tile " + rect);
+        }
+        return bitmap;
+    }
+}
@@ -20,7 +20,6 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Environment;
@@ -37,6 +36,8 @@ public class Storage {
     public final String DIRECTORY;
     public static final String JPEG_POSTFIX = ".jpg";
     private static final String TAG = "Storage";
+    private static final int JPEG_QUALITY = 100;
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
 
     private static class Singleton {
         private static final Storage INSTANCE = new Storage(AndroidContext.instance().get());
@@ -81,19 +82,10 @@ public class Storage {
             throws IOException {
 
         if (data.length > 0) {
-            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-            return addImageToMediaStore(
-                    resolver,
-                    title,
-                    date,
-                    location,
-                    orientation,
-                    data.length,
-                    bitmap,
-                    width,
-                    height,
-                    mimeType,
-                    exif);
+            // The data is already encoded, so it is copied through as is. Decoding and
+            // re-encoding it would cost time proportional to the pixel count and lose quality.
+            return insertImage(
+                    resolver, title, date, location, mimeType, os -> writeBytes(os, exif, data));
         }
         return null;
     }
@@ -125,13 +117,66 @@ public class Storage {
             int height,
             String mimeType,
             ExifInterface exif) {
+        return insertImage(
+                resolver, title, date, location, mimeType, os -> writeBitmap(os, exif, bitmap));
+    }
+
+    /**
+     * Saves an image written by writer, for images that are encoded while they are saved, and adds
+     * it to the MediaStore. The EXIF data is merged into what writer writes.
+     *
+     * @param resolver The content resolver to use.
+     * @param title The title of the media file.
+     * @param date The date for the media file.
+     * @param location The location of the media file.
+     * @param exif The EXIF info. Can be {@code null}.
+     * @param writer Writes the encoded image.
+     * @param mimeType The MIME type of the data.
+     * @return The URI of the added image, or null if the image could not be added.
+     */
+    public Uri addImage(
+            ContentResolver resolver,
+            String title,
+            long date,
+            Location location,
+            ExifInterface exif,
+            MediaWriter writer,
+            String mimeType) {
+        return insertImage(
+                resolver,
+                title,
+                date,
+                location,
+                mimeType,
+                os -> {
+                    OutputStream out = (exif != null) ? exif.getExifWriterStream(os) : os;
+                    writer.write(out);
+                    out.flush();
+                });
+    }
+
+    /** Writes the contents of a new media file. */
+    public interface MediaWriter {
+        void write(OutputStream os) throws IOException;
+    }
+
+    private Uri insertImage(
+            ContentResolver resolver,
+            String title,
+            long date,
+            Location location,
+            String mimeType,
+            MediaWriter writer) {
         // Insert into MediaStore.
         ContentValues values = getContentValuesForData(title, date, location, mimeType, true);
 
         Uri uri = null;
         try {
             uri = resolver.insert(Media.EXTERNAL_CONTENT_URI, values);
-            writeBitmap(uri, exif, bitmap, resolver);
+            try (OutputStream os = resolver.openOutputStream(uri)) {
+                writer.write(os);
+            }
+            publish(uri, resolver);
         } catch (Throwable th) {
             // This can happen when the external volume is already mounted, but
             // MediaScanner has not notify MediaProvider to add that volume.
@@ -141,21 +186,31 @@ public class Storage {
             Log.e(TAG, "Failed to write MediaStore" + th);
             if (uri != null) {
                 resolver.delete(uri, null, null);
+                uri = null;
             }
         }
         return uri;
     }
 
-    private void writeBitmap(Uri uri, ExifInterface exif, Bitmap bitmap, ContentResolver resolver)
+    private void writeBitmap(OutputStream os, ExifInterface exif, Bitmap bitmap)
             throws IOException {
-        OutputStream os = resolver.openOutputStream(uri);
         if (exif != null) {
-            exif.writeExif(bitmap, os);
+            exif.writeExif(bitmap, os, JPEG_QUALITY);
         } else {
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
         }
-        os.close();
+    }
+
+    /** Copies already encoded image data in chunks, merging in the EXIF data if there is any. */
+    private void writeBytes(OutputStream os, ExifInterface exif, byte[] data) throws IOException {
+        OutputStream out = (exif != null) ? exif.getExifWriterStream(os) : os;
+        for (int offset = 0; offset < data.length; offset += WRITE_CHUNK_SIZE) {
+            out.write(data, offset, Math.min(WRITE_CHUNK_SIZE, data.length - offset));
+        }
+        out.flush();
+    }
 
+    private void publish(Uri uri, ContentResolver resolver) {
         ContentValues publishValues = new ContentValues();
         publishValues.put(Media.IS_PENDING, 0);
         resolver.update(uri, publishValues, null, null);
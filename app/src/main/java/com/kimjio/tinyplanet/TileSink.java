@@ -0,0 +1,29 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * Takes a tiny planet from {@link TiledPlanetRenderer} one strip of rows at a time, top to bottom,
+ * so the whole image never has to be in memory.
+ */
+public interface TileSink {
+    /** Called once before the first strip, with the size of the whole image. */
+    void begin(int width, int height) throws IOException;
+
+    /**
+     * Takes the next strip: the image rows {@code [top, top + rows)}, in the first {@code rows}
+     * rows of {@code strip}. The strip is rendered into again once this returns.
+     */
+    void writeStrip(Bitmap strip, int top, int rows) throws IOException;
+
+    /** Called once after the last strip, unless the render failed or was cancelled. */
+    void end() throws IOException;
+
+    /**
+     * Called instead of {@link #end()} if the render failed or was cancelled after {@link
+     * #begin}, to free what the sink holds. The image is left incomplete.
+     */
+    void abort();
+}
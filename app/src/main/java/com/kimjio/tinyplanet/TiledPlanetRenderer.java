@@ -0,0 +1,193 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Color;
+
+import com.kimjio.tinyplanet.util.PanoInfo;
+
+import java.io.IOException;
+
+/**
+ * Renders a tiny planet from a panorama too large to decode at once. The panorama is read in tiles
+ * through a {@link SourceTileCache}, and the output is rendered in square tiles, a strip of them
+ * at a time, and handed to a {@link TileSink}. Source tiles, the strip and the decoder's own
+ * buffers are the only large allocations, so peak memory follows the budget rather than the
+ * panorama size.
+ *
+ * <p>Output tiles are rendered left to right, so neighbouring tiles reuse most of each other's
+ * source tiles. Near the planet's centre a tile samples every column of the panorama; tiles whose
+ * source does not fit in the budget are split until it does.
+ */
+public class TiledPlanetRenderer {
+    /** Source tiles are 512 pixels square, a few JPEG MCU rows and columns. */
+    private static final int SOURCE_TILE_SHIFT = 9;
+    /** Side of the square output tiles, and height of the strips handed to the sink. */
+    private static final int OUTPUT_TILE_SIZE = 256;
+    /** Output tiles are not split below this size, even if their source exceeds the budget. */
+    private static final int MIN_OUTPUT_TILE_SIZE = 16;
+
+    private final BitmapRegionDecoder mDecoder;
+    private final PanoInfo mPano;
+    private final int mFillColor;
+    private final long mBudgetBytes;
+
+    private SourceTileCache mSourceTiles;
+    private boolean[] mNeeded;
+    private int mOutputSize;
+    private float mScale;
+    private float mAngle;
+    private int mNumThreads;
+    private long mCancelFlag;
+    private Bitmap mStrip;
+    private int mStripTop;
+
+    /**
+     * @param decoder the cropped part of the panorama. It stays owned by the caller.
+     * @param pano where the panorama sits in the full panorama, like for {@link
+     *     TinyPlanetNative.Options#setPano}.
+     * @param fillColor the ARGB color of the panorama outside the crop.
+     * @param budgetBytes the memory source tiles and the output strip may take up together.
+     */
+    public TiledPlanetRenderer(
+            BitmapRegionDecoder decoder, PanoInfo pano, int fillColor, long budgetBytes) {
+        mDecoder = decoder;
+        mPano = pano;
+        mFillColor = fillColor;
+        mBudgetBytes = budgetBytes;
+    }
+
+    /** The height of the strips render() hands to its sink for an image outputSize wide. */
+    public static int getStripHeight(int outputSize) {
+        return Math.min(OUTPUT_TILE_SIZE, outputSize);
+    }
+
+    /** The width of the panorama, or of its cropped part. */
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    /** The height of the panorama, or of its cropped part. */
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    /**
+     * Renders the tiny planet into sink. The source tiles are freed when done.
+     *
+     * @param outputSize the width and height of the square output image.
+     * @param scale the scale factor.
+     * @param angleRadians the angle of the tiny planet in radians.
+     * @param numThreads the number of threads to render with, or {@link
+     *     TinyPlanetNative#ALL_THREADS}.
+     * @param cancelFlag a flag from {@link TinyPlanetNative#createCancelFlag}, or 0.
+     * @param sink takes the rendered strips.
+     * @return true if the whole image was rendered, false if it was cancelled.
+     * @throws IOException if a source tile could not be decoded or the sink failed.
+     */
+    public boolean render(
+            int outputSize,
+            float scale,
+            float angleRadians,
+            int numThreads,
+            long cancelFlag,
+            TileSink sink)
+            throws IOException {
+        mOutputSize = outputSize;
+        mScale = scale;
+        mAngle = angleRadians;
+        mNumThreads = numThreads;
+        mCancelFlag = cancelFlag;
+        int stripHeight = getStripHeight(outputSize);
+        mStrip = Bitmap.createBitmap(outputSize, stripHeight, Bitmap.Config.ARGB_8888);
+        mSourceTiles =
+                new SourceTileCache(
+                        mDecoder,
+                        SOURCE_TILE_SHIFT,
+                        Math.max(0, mBudgetBytes - mStrip.getAllocationByteCount()));
+        mNeeded = new boolean[mSourceTiles.getTileCount()];
+        boolean begun = false;
+        boolean completed = false;
+        try {
+            sink.begin(outputSize, outputSize);
+            begun = true;
+            for (mStripTop = 0; mStripTop < outputSize; mStripTop += stripHeight) {
+                int stripBottom = Math.min(mStripTop + stripHeight, outputSize);
+                // Pixels the projection skips stay transparent, like in a new bitmap.
+                mStrip.eraseColor(Color.TRANSPARENT);
+                for (int x = 0; x < outputSize; x += OUTPUT_TILE_SIZE) {
+                    int right = Math.min(x + OUTPUT_TILE_SIZE, outputSize);
+                    if (!renderTile(x, mStripTop, right, stripBottom)) {
+                        return false;
+                    }
+                }
+                sink.writeStrip(mStrip, mStripTop, stripBottom - mStripTop);
+            }
+            sink.end();
+            completed = true;
+            return true;
+        } finally {
+            if (begun && !completed) {
+                sink.abort();
+            }
+            mStrip.recycle();
+            mStrip = null;
+            mSourceTiles.clear();
+            mSourceTiles = null;
+        }
+    }
+
+    /** Renders an output tile, in quarters if its source tiles do not fit in the budget. */
+    private boolean renderTile(int left, int top, int right, int bottom) throws IOException {
+        TinyPlanetNative.sourceTilesNeeded(
+                mNeeded,
+                mSourceTiles.getWidth(),
+                mSourceTiles.getHeight(),
+                mSourceTiles.getTileShift(),
+                mSourceTiles.getColumns(),
+                mOutputSize,
+                left,
+                top,
+                right,
+                bottom,
+                mScale,
+                mAngle,
+                mPano);
+        int count = 0;
+        for (boolean needed : mNeeded) {
+            if (needed) {
+                count++;
+            }
+        }
+        if (count * mSourceTiles.getTileBytes() > mSourceTiles.getBudgetBytes()
+                && right - left > MIN_OUTPUT_TILE_SIZE
+                && bottom - top > MIN_OUTPUT_TILE_SIZE) {
+            int x = (left + right) / 2;
+            int y = (top + bottom) / 2;
+            return renderTile(left, top, x, y)
+                    && renderTile(x, top, right, y)
+                    && renderTile(left, y, x, bottom)
+                    && renderTile(x, y, right, bottom);
+        }
+        Bitmap[] tiles = mSourceTiles.acquire(mNeeded);
+        return TinyPlanetNative.processTiles(
+                tiles,
+                mSourceTiles.getWidth(),
+                mSourceTiles.getHeight(),
+                mSourceTiles.getTileShift(),
+                mSourceTiles.getColumns(),
+                mStrip,
+                mStripTop,
+                mOutputSize,
+                left,
+                top,
+                right,
+                bottom,
+                mScale,
+                mAngle,
+                mNumThreads,
+                mCancelFlag,
+                mPano,
+                mFillColor);
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Context;
 
 import com.kimjio.tinyplanet.util.AndroidContext;
+import com.kimjio.tinyplanet.util.AppExecutors;
 
 public class TinyPlanetApplication extends Application {
     @Override
@@ -13,5 +14,12 @@ public class TinyPlanetApplication extends Application {
         // Android context must be the first item initialized.
         Context context = getApplicationContext();
         AndroidContext.initialize(context);
+        AppExecutors.initialize();
+    }
+
+    @Override
+    public void onTerminate() {
+        AppExecutors.instance().shutdown();
+        super.onTerminate();
     }
 }
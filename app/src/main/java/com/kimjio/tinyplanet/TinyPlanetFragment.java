@@ -17,15 +17,16 @@
 package com.kimjio.tinyplanet;
 
 import android.app.ProgressDialog;
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Color;
 import android.graphics.Point;
-import android.graphics.RectF;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.Display;
 import android.view.LayoutInflater;
@@ -35,22 +36,21 @@ import android.view.ViewGroup;
 import android.view.Window;
 import android.widget.Button;
 
+import androidx.annotation.NonNull;
 import androidx.fragment.app.DialogFragment;
 
-import com.adobe.internal.xmp.XMPException;
-import com.adobe.internal.xmp.XMPMeta;
 import com.google.android.material.slider.Slider;
 import com.kimjio.tinyplanet.TinyPlanetPreview.PreviewSizeListener;
 import com.kimjio.tinyplanet.app.MediaSaver;
-import com.kimjio.tinyplanet.app.MediaSaver.OnMediaSavedListener;
 import com.kimjio.tinyplanet.exif.ExifInterface;
-import com.kimjio.tinyplanet.util.XmpUtil;
+import com.kimjio.tinyplanet.util.AppExecutors;
+import com.kimjio.tinyplanet.util.JpegHeaderScanner;
+import com.kimjio.tinyplanet.util.PanoInfo;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Date;
+import java.io.OutputStream;
 import java.util.TimeZone;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -64,111 +64,167 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     public static final String ARGUMENT_URI = "uri";
     /** Argument to tell the fragment the title of the original panoramic image. */
     public static final String ARGUMENT_TITLE = "title";
-
-    public static final String CROPPED_AREA_IMAGE_WIDTH_PIXELS = "CroppedAreaImageWidthPixels";
-    public static final String CROPPED_AREA_IMAGE_HEIGHT_PIXELS = "CroppedAreaImageHeightPixels";
-    public static final String CROPPED_AREA_FULL_PANO_WIDTH_PIXELS = "FullPanoWidthPixels";
-    public static final String CROPPED_AREA_FULL_PANO_HEIGHT_PIXELS = "FullPanoHeightPixels";
-    public static final String CROPPED_AREA_LEFT = "CroppedAreaLeftPixels";
-    public static final String CROPPED_AREA_TOP = "CroppedAreaTopPixels";
-    public static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
+    /**
+     * Optional argument: the largest source, in bytes decoded, that the final render decodes as
+     * one bitmap. Defaults to {@link #DEFAULT_MAX_FULL_DECODE_BYTES}.
+     */
+    public static final String ARGUMENT_MAX_FULL_DECODE_BYTES = "maxFullDecodeBytes";
+    /**
+     * Optional argument: the memory, in bytes, the final render of a larger source keeps source
+     * tiles and output strips in. Defaults to {@link #DEFAULT_TILED_RENDER_BUDGET_BYTES}.
+     */
+    public static final String ARGUMENT_TILED_RENDER_BUDGET_BYTES = "tiledRenderBudgetBytes";
 
     private static final String TAG = "TinyPlanetActivity";
-    /** Delay between a value update and the renderer running. */
-    private static final int RENDER_DELAY_MILLIS = 50;
+    /** Time a draft frame may take before drafts drop to the next lower resolution. */
+    private static final long DRAFT_FRAME_BUDGET_NANOS = 16_000_000;
     /** Filename prefix to prepend to the original name for the new file. */
     private static final String FILENAME_PREFIX = "TINYPLANET_";
 
+    /**
+     * To create a proper TinyPlanet, the input image must be 2:1 (360:180 degrees). So if needed,
+     * the source image is padded with black while rendering.
+     */
+    private static final int PADDING_COLOR = Color.BLACK;
+
+    /**
+     * Largest source, in bytes decoded, that the final render decodes as one bitmap. Larger ones
+     * are rendered in tiles, see {@link TiledPlanetRenderer}, or decoded subsampled if the build
+     * has no streaming JPEG encoder.
+     */
+    public static final long DEFAULT_MAX_FULL_DECODE_BYTES = 256L * 1024 * 1024;
+    /** Memory the tiled render keeps source tiles and output strips in. */
+    public static final long DEFAULT_TILED_RENDER_BUDGET_BYTES = 64L * 1024 * 1024;
+    /** Quality of the saved tiny planet. */
+    private static final int JPEG_QUALITY = 100;
+    /**
+     * Source EXIF tags that are not carried over to the tiny planet: they describe the source's
+     * pixels, or, for maker notes, may hold offsets into the source's EXIF.
+     */
+    private static final int[] SOURCE_IMAGE_EXIF_TAGS = {
+        ExifInterface.TAG_IMAGE_WIDTH,
+        ExifInterface.TAG_IMAGE_LENGTH,
+        ExifInterface.TAG_ORIENTATION,
+        ExifInterface.TAG_PIXEL_X_DIMENSION,
+        ExifInterface.TAG_PIXEL_Y_DIMENSION,
+        ExifInterface.TAG_MAKER_NOTE
+    };
+
     private Uri mSourceImageUri;
     private TinyPlanetPreview mPreview;
-    private int mPreviewSizePx = 0;
+    /** Set on the main thread, read by the render thread to tell drafts from full renders. */
+    private volatile int mPreviewSizePx = 0;
     private float mCurrentZoom = 0.5f;
     private float mCurrentAngle = 0;
+    /** Number of sliders being dragged; while non-zero the preview is rendered as a draft. */
+    private int mDraggingSliders = 0;
+    /** Drafts are rendered at the preview size divided by this, 2 or 4. */
+    private volatile int mDraftDivisor = 2;
     private ProgressDialog mDialog;
 
-    /** Lock for the result preview bitmap. We can't change it while we're trying to draw it. */
-    private final Lock mResultLock = new ReentrantLock();
+    /** Held while rendering from the source bitmap, so it is not recycled underneath a render. */
+    private final Lock mSourceLock = new ReentrantLock();
 
     /** The title of the original panoramic image. */
     private String mOriginalTitle = "";
+    /** See {@link #ARGUMENT_MAX_FULL_DECODE_BYTES}. */
+    private long mMaxFullDecodeBytes = DEFAULT_MAX_FULL_DECODE_BYTES;
+    /** See {@link #ARGUMENT_TILED_RENDER_BUDGET_BYTES}. */
+    private long mTiledRenderBudgetBytes = DEFAULT_TILED_RENDER_BUDGET_BYTES;
 
-    /** The padded source bitmap. */
+    /** The source bitmap, the cropped part of the panorama at preview resolution. */
     private Bitmap mSourceBitmap;
-    /** The resulting preview bitmap. */
-    private Bitmap mResultBitmap;
-
-    /** Used to delay-post a tiny planet rendering task. */
-    private final Handler mHandler = new Handler();
-
-    private final Object mRenderingLock = new Object();
-    /** Whether rendering is in progress right now. */
-    private boolean mRendering = false;
-    /**
-     * Whether we should render one more time after the current rendering run is done. This is
-     * needed when there was an update to the values during the current rendering.
-     */
-    private boolean mRenderOneMore = false;
-
-    /** Tiny planet data plus size. */
-    private static final class TinyPlanetImage {
-        public final byte[] mJpegData;
-        public final int mSize;
-
-        public TinyPlanetImage(byte[] jpegData, int size) {
-            mJpegData = jpegData;
-            mSize = size;
+    /** Where the source sits in the full panorama. */
+    private PanoInfo mSourcePano = PanoInfo.NONE;
+    /** The source bitmap size over the size in the file. */
+    private float mSourceScale = 1f;
+    /** Mip pyramid of {@link #mSourceBitmap} for zoomed out previews, or 0. */
+    private long mSourcePyramid;
+    /** The bitmaps the preview is rendered into. */
+    private PreviewBitmapPool mPreviewBitmaps;
+
+    /** Renders the preview, newest values first. */
+    private PreviewRenderScheduler<Bitmap> mPreviewScheduler;
+
+    /** A decoded panorama plus where it sits in the full 360x180 degree panorama. */
+    private static final class SourceImage {
+        public final Bitmap mBitmap;
+        public final PanoInfo mPano;
+        /** The decoded size over the size in the file, below 1 if decoded subsampled. */
+        public final float mScale;
+
+        public SourceImage(Bitmap bitmap, PanoInfo pano, float scale) {
+            mBitmap = bitmap;
+            mPano = pano;
+            mScale = scale;
         }
     }
 
-    /** Creates and executes a task to create a tiny planet with the current values. */
-    private final Runnable mCreateTinyPlanetRunnable =
-            new Runnable() {
+    /** Renders preview frames into pooled bitmaps and shows them. */
+    private final PreviewRenderScheduler.Renderer<Bitmap> mPreviewRenderer =
+            new PreviewRenderScheduler.Renderer<Bitmap>() {
                 @Override
-                public void run() {
-                    synchronized (mRenderingLock) {
-                        if (mRendering) {
-                            mRenderOneMore = true;
-                            return;
+                public Bitmap render(PreviewRenderScheduler.Request request, long cancelFlag) {
+                    Bitmap frame = mPreviewBitmaps.acquire(request.mSizePx);
+                    if (frame == null) {
+                        return null;
+                    }
+                    boolean completed = false;
+                    long startNanos = System.nanoTime();
+                    mSourceLock.lock();
+                    try {
+                        if (mSourceBitmap != null) {
+                            completed =
+                                    TinyPlanetNative.process(
+                                            mSourceBitmap,
+                                            frame,
+                                            request.mSizePx,
+                                            request.mZoom,
+                                            request.mAngle,
+                                            new TinyPlanetNative.Options()
+                                                    .setCancelFlag(cancelFlag)
+                                                    .setMipPyramid(mSourcePyramid)
+                                                    .setPano(mSourcePano, mSourceScale)
+                                                    .setFillColor(PADDING_COLOR));
                         }
-                        mRendering = true;
+                    } finally {
+                        mSourceLock.unlock();
+                    }
+                    if (!completed) {
+                        mPreviewBitmaps.release(frame);
+                        return null;
                     }
+                    if (request.mSizePx < mPreviewSizePx) {
+                        updateDraftDivisor(System.nanoTime() - startNanos);
+                    }
+                    return frame;
+                }
 
-                    new IAsyncTask<Void, Void>() {
-                        @Override
-                        public Void doInBackground(Void... params) {
-                            mResultLock.lock();
-                            try {
-                                if (mSourceBitmap == null || mResultBitmap == null) {
-                                    return null;
-                                }
-                                int width = mSourceBitmap.getWidth();
-                                int height = mSourceBitmap.getHeight();
-                                TinyPlanetNative.process(
-                                        mSourceBitmap,
-                                        width,
-                                        height,
-                                        mResultBitmap,
-                                        mPreviewSizePx,
-                                        mCurrentZoom,
-                                        mCurrentAngle);
-                            } finally {
-                                mResultLock.unlock();
-                            }
-                            return null;
-                        }
+                @Override
+                public void onRendered(PreviewRenderScheduler.Request request, Bitmap frame) {
+                    // The frame shown so far is no longer drawn and can be rendered into again.
+                    mPreviewBitmaps.release(mPreview.setBitmap(frame));
+                }
 
-                        @Override
-                        public void onPostExecute(Void result) {
-                            mPreview.setBitmap(mResultBitmap, mResultLock);
-                            synchronized (mRenderingLock) {
-                                mRendering = false;
-                                if (mRenderOneMore) {
-                                    mRenderOneMore = false;
-                                    scheduleUpdate();
-                                }
-                            }
-                        }
-                    }.execute();
+                @Override
+                public void onDiscarded(Bitmap frame) {
+                    mPreviewBitmaps.release(frame);
+                }
+            };
+
+    /** Renders drafts while a slider is dragged and the full preview once it is let go. */
+    private final Slider.OnSliderTouchListener mDraftWhileDragging =
+            new Slider.OnSliderTouchListener() {
+                @Override
+                public void onStartTrackingTouch(@NonNull Slider slider) {
+                    mDraggingSliders++;
+                }
+
+                @Override
+                public void onStopTrackingTouch(@NonNull Slider slider) {
+                    mDraggingSliders--;
+                    // Refine the last draft.
+                    scheduleUpdate();
                 }
             };
 
@@ -184,6 +240,13 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         getDialog().getWindow().requestFeature(Window.FEATURE_NO_TITLE);
         getDialog().setCanceledOnTouchOutside(true);
 
+        mPreviewBitmaps = new PreviewBitmapPool();
+        mPreviewScheduler =
+                new PreviewRenderScheduler<>(
+                        AppExecutors.instance().render(),
+                        AppExecutors.instance().mainThread(),
+                        mPreviewRenderer);
+
         View view = inflater.inflate(R.layout.tinyplanet_editor, container, false);
         mPreview = view.findViewById(R.id.preview);
         mPreview.setPreviewSizeChangeListener(this);
@@ -194,6 +257,7 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
                 (Slider slider, float progress, boolean fromUser) -> {
                     onZoomChange((int) progress);
                 });
+        zoomSlider.addOnSliderTouchListener(mDraftWhileDragging);
 
         // Rotation slider setup.
         Slider angleSlider = view.findViewById(R.id.angleSlider);
@@ -201,6 +265,7 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
                 (Slider seekBar, float progress, boolean fromUser) -> {
                     onAngleChange((int) progress);
                 });
+        angleSlider.addOnSliderTouchListener(mDraftWhileDragging);
 
         Button createButton = view.findViewById(R.id.creatTinyPlanetButton);
         createButton.setOnClickListener(
@@ -208,35 +273,150 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
 
         mOriginalTitle = getArguments().getString(ARGUMENT_TITLE);
         mSourceImageUri = Uri.parse(getArguments().getString(ARGUMENT_URI));
-        mSourceBitmap = createPaddedSourceImage(mSourceImageUri, true);
-
-        if (mSourceBitmap == null) {
+        mMaxFullDecodeBytes =
+                getArguments()
+                        .getLong(ARGUMENT_MAX_FULL_DECODE_BYTES, DEFAULT_MAX_FULL_DECODE_BYTES);
+        mTiledRenderBudgetBytes =
+                getArguments()
+                        .getLong(
+                                ARGUMENT_TILED_RENDER_BUDGET_BYTES,
+                                DEFAULT_TILED_RENDER_BUDGET_BYTES);
+        SourceImage source = decodeSourceImage(mSourceImageUri, true);
+
+        if (source == null) {
             Log.e(TAG, "Could not decode source image.");
             dismiss();
+        } else {
+            mSourceBitmap = source.mBitmap;
+            mSourcePano = source.mPano;
+            mSourceScale = source.mScale;
+            mSourcePyramid =
+                    TinyPlanetNative.createMipPyramid(mSourceBitmap, TinyPlanetNative.ALL_THREADS);
         }
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // The preview is gone, stop rendering for it.
+        mPreviewScheduler.release();
+        mPreviewBitmaps.close();
+        mPreviewBitmaps.release(mPreview.setBitmap(null));
+        releaseSource();
+    }
+
+    /** Frees the preview source and its pyramid once no render uses them anymore. */
+    private void releaseSource() {
+        mSourceLock.lock();
+        try {
+            if (mSourceBitmap != null) {
+                mSourceBitmap.recycle();
+                mSourceBitmap = null;
+            }
+            if (mSourcePyramid != 0) {
+                TinyPlanetNative.destroyMipPyramid(mSourcePyramid);
+                mSourcePyramid = 0;
+            }
+        } finally {
+            mSourceLock.unlock();
+        }
+    }
+
+    /**
+     * From the given URI this method decodes the panorama and where it sits in the full 360/180
+     * degree panorama. The padding to 360/180 happens while rendering.
+     */
+    private SourceImage decodeSourceImage(Uri sourceImageUri, boolean previewSize) {
+        JpegHeaderScanner.Header header = scanSourceImage(sourceImageUri);
+        return header == null ? null : decodeSourceImage(header, previewSize);
+    }
+
     /**
-     * From the given URI this method creates a 360/180 padded image that is ready to be made a tiny
-     * planet.
+     * Reads the metadata on the way to the image data. Decode from {@link
+     * JpegHeaderScanner.Header#openImageStream()}, or close it, afterwards.
      */
-    private Bitmap createPaddedSourceImage(Uri sourceImageUri, boolean previewSize) {
+    private JpegHeaderScanner.Header scanSourceImage(Uri sourceImageUri) {
         InputStream is = getInputStream(sourceImageUri);
         if (is == null) {
             Log.e(TAG, "Could not create input stream for image.");
             dismiss();
+            return null;
+        }
+        try {
+            return JpegHeaderScanner.scan(is);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read source image.", e);
+            closeQuietly(is);
+            return null;
         }
-        Bitmap sourceBitmap = BitmapFactory.decodeStream(is);
+    }
 
-        is = getInputStream(sourceImageUri);
-        XMPMeta xmp = XmpUtil.extractXMPMeta(is);
+    /** Decodes the scanned source from the same stream. */
+    private SourceImage decodeSourceImage(JpegHeaderScanner.Header header, boolean previewSize) {
+        int sampleSize = 1;
+        if (previewSize && header.hasSize()) {
+            // The preview never shows more than the display size, so skip decoding the rest.
+            sampleSize =
+                    calculateSampleSize(
+                            header.getWidth(),
+                            getPreviewSourceWidth(
+                                    header.getWidth(), header.getPanoInfo(), getDisplaySize()));
+        }
+        return decodeSourceImage(header, sampleSize);
+    }
 
-        if (xmp != null) {
-            int size = previewSize ? getDisplaySize() : sourceBitmap.getWidth();
-            sourceBitmap = createPaddedBitmap(sourceBitmap, xmp, size);
+    /** Decodes the scanned source from the same stream, every sampleSize-th pixel of it. */
+    private SourceImage decodeSourceImage(JpegHeaderScanner.Header header, int sampleSize) {
+        Bitmap sourceBitmap;
+        PanoInfo pano = header.getPanoInfo();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        try (InputStream image = header.openImageStream()) {
+            sourceBitmap = BitmapFactory.decodeStream(image, null, options);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read source image.", e);
+            return null;
         }
-        return sourceBitmap;
+        if (sourceBitmap == null) {
+            return null;
+        }
+        // The crop may leave out its size in the file, which getPreviewSourceWidth() then takes
+        // to be the header's; scale from the same size.
+        float scale =
+                header.hasSize() ? (float) sourceBitmap.getWidth() / header.getWidth() : 1f;
+        return new SourceImage(sourceBitmap, pano, scale);
+    }
+
+    /**
+     * The width the source needs for the preview: the width its crop takes up in a full panorama
+     * of the display size, or the display size if it is the full panorama.
+     */
+    private static int getPreviewSourceWidth(int width, PanoInfo pano, int displaySize) {
+        if (!pano.hasFullPanoSize()) {
+            return displaySize;
+        }
+        int croppedAreaWidth = pano.getCroppedAreaWidth() > 0 ? pano.getCroppedAreaWidth() : width;
+        return (int) Math.ceil(croppedAreaWidth * (double) displaySize / pano.getFullPanoWidth());
+    }
+
+    /** The largest power of two that still decodes width pixels to at least targetWidth. */
+    private static int calculateSampleSize(int width, int targetWidth) {
+        int sampleSize = 1;
+        while (targetWidth > 0 && width / (sampleSize * 2) >= targetWidth) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /** The smallest power of two that decodes width by height pixels into at most maxBytes. */
+    private static int calculateSampleSize(int width, int height, long maxBytes) {
+        int sampleSize = 1;
+        while (sampleSize < width
+                && (long) (width / sampleSize) * (height / sampleSize) * 4 > maxBytes) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
 
     /**
@@ -245,100 +425,197 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
      */
     private void onCreateTinyPlanet() {
         // Make sure we stop rendering before we create the high-res tiny
-        // planet.
-        synchronized (mRenderingLock) {
-            mRenderOneMore = false;
-        }
+        // planet. The frame on screen stays, the spare preview bitmaps go.
+        mPreviewScheduler.release();
+        mPreviewBitmaps.close();
 
         final String savingTinyPlanet =
                 requireActivity().getResources().getString(R.string.saving_tiny_planet);
 
         mDialog = ProgressDialog.show(getActivity(), null, savingTinyPlanet, true, false);
-        new IAsyncTask<Void, TinyPlanetImage>() {
+        ContentResolver resolver = requireContext().getContentResolver();
+        new IAsyncTask<Void, Uri>() {
             @Override
-            public TinyPlanetImage doInBackground(Void... params) {
-                return createFinalTinyPlanet();
+            public Uri doInBackground(Void... params) {
+                return saveFinalTinyPlanet(resolver);
             }
 
             @Override
-            public void onPostExecute(TinyPlanetImage image) {
-                // Once created, store the new file.
-                MediaSaver mediaSaver = MediaSaver.getInstance(requireContext());
-                OnMediaSavedListener doneListener =
-                        uri -> {
-                            mDialog.dismiss();
-                            TinyPlanetFragment.this.dismiss();
-                        };
-                String tinyPlanetTitle = FILENAME_PREFIX + mOriginalTitle;
-                mediaSaver.addImage(
-                        image.mJpegData,
-                        tinyPlanetTitle,
-                        (new Date()).getTime(),
-                        null,
-                        image.mSize,
-                        image.mSize,
-                        0,
-                        null,
-                        doneListener);
+            public void onPostExecute(Uri uri) {
+                if (uri == null) {
+                    Log.e(TAG, "Could not save tiny planet.");
+                }
+                mDialog.dismiss();
+                TinyPlanetFragment.this.dismiss();
             }
-        }.execute();
+        }.executeOn(AppExecutors.instance().io());
     }
 
     /**
-     * Creates the high quality tiny planet file and adds it to the media service. Don't call this
-     * on the UI thread.
+     * Creates the high quality tiny planet and adds it to the media store. The render is encoded
+     * as it is written, straight into the media store. Don't call this on the UI thread.
+     *
+     * @return the URI of the tiny planet, or null if it could not be created.
      */
-    private TinyPlanetImage createFinalTinyPlanet() {
+    private Uri saveFinalTinyPlanet(ContentResolver resolver) {
         // Free some memory we don't need anymore as we're going to dimiss the
         // fragment after the tiny planet creation.
-        mResultLock.lock();
-        try {
-            mResultBitmap.recycle();
-            mResultBitmap = null;
-            mSourceBitmap.recycle();
-            mSourceBitmap = null;
-        } finally {
-            mResultLock.unlock();
+        releaseSource();
+
+        JpegHeaderScanner.Header header = scanSourceImage(mSourceImageUri);
+        if (header == null) {
+            return null;
         }
+        return Storage.instance()
+                .addImage(
+                        resolver,
+                        FILENAME_PREFIX + mOriginalTitle,
+                        System.currentTimeMillis(),
+                        null,
+                        createExif(header),
+                        os -> renderFinalTinyPlanet(header, resolver, os),
+                        MediaSaver.MIME_TYPE_JPEG);
+    }
 
-        // Create a high-resolution padded image.
-        Bitmap sourceBitmap = createPaddedSourceImage(mSourceImageUri, false);
-        int width = sourceBitmap.getWidth();
-        int height = sourceBitmap.getHeight();
+    /**
+     * Renders the tiny planet and encodes it into out. Rendering and encoding overlap where the
+     * encoder takes the image a strip at a time.
+     */
+    private void renderFinalTinyPlanet(
+            JpegHeaderScanner.Header header, ContentResolver resolver, OutputStream out)
+            throws IOException {
+        int sampleSize = 1;
+        if (header.hasSize()
+                && (long) header.getWidth() * header.getHeight() * 4 > mMaxFullDecodeBytes) {
+            if (TurboJpegEncoder.isAvailable()) {
+                // Too large to decode at once; the tiles are decoded from the file instead.
+                closeQuietly(header.openImageStream());
+                renderTiledTinyPlanet(header.getPanoInfo(), resolver, out);
+                return;
+            }
+            // Without a streaming encoder the whole tiny planet would be assembled in memory,
+            // so the tiled render would not stay within its budget either.
+            sampleSize =
+                    calculateSampleSize(header.getWidth(), header.getHeight(), mMaxFullDecodeBytes);
+            Log.w(
+                    TAG,
+                    "No streaming JPEG encoder, saving the tiny planet at 1/"
+                            + sampleSize
+                            + " resolution.");
+        }
 
-        int outputSize = width / 2;
+        // Decode the source at full resolution if it fits; it is padded while rendering.
+        SourceImage source = decodeSourceImage(header, sampleSize);
+        if (source == null) {
+            throw new IOException("Could not decode source image.");
+        }
+        Bitmap sourceBitmap = source.mBitmap;
+        int outputSize = sourceBitmap.getWidth() / 2;
         Bitmap resultBitmap = Bitmap.createBitmap(outputSize, outputSize, Bitmap.Config.ARGB_8888);
 
         TinyPlanetNative.process(
-                sourceBitmap, width, height, resultBitmap, outputSize, mCurrentZoom, mCurrentAngle);
-
-        // Free the sourceImage memory as we don't need it and we need memory
-        // for the JPEG bytes.
+                sourceBitmap,
+                resultBitmap,
+                outputSize,
+                mCurrentZoom,
+                mCurrentAngle,
+                new TinyPlanetNative.Options()
+                        .setNumThreads(Runtime.getRuntime().availableProcessors())
+                        .setPano(source.mPano, source.mScale)
+                        .setFillColor(PADDING_COLOR));
+
+        // Free the sourceImage memory as we don't need it and the encoder
+        // needs some memory of its own.
         sourceBitmap.recycle();
         sourceBitmap = null;
 
-        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
-        resultBitmap.compress(CompressFormat.JPEG, 100, jpeg);
-        return new TinyPlanetImage(addExif(jpeg.toByteArray()), outputSize);
+        // The whole image is one strip, so nothing is copied on the way to the encoder.
+        TileSink encoder = JpegEncoder.create(JPEG_QUALITY).open(out);
+        boolean completed = false;
+        try {
+            encoder.begin(outputSize, outputSize);
+            encoder.writeStrip(resultBitmap, 0, outputSize);
+            encoder.end();
+            completed = true;
+        } finally {
+            if (!completed) {
+                encoder.abort();
+            }
+            resultBitmap.recycle();
+        }
     }
 
     /**
-     * Adds basic EXIF data to the tiny planet image so it an be rewritten later.
+     * Renders the tiny planet from a source too large to decode, reading it in tiles within
+     * {@link #ARGUMENT_TILED_RENDER_BUDGET_BYTES}. Strips are encoded on the encode thread while
+     * the next ones render.
+     */
+    private void renderTiledTinyPlanet(PanoInfo pano, ContentResolver resolver, OutputStream out)
+            throws IOException {
+        try (ParcelFileDescriptor fd = resolver.openFileDescriptor(mSourceImageUri, "r")) {
+            if (fd == null) {
+                throw new IOException("Could not open source image.");
+            }
+            BitmapRegionDecoder decoder = newRegionDecoder(fd);
+            try {
+                int outputSize = decoder.getWidth() / 2;
+                // The strips queued for the encoder come out of the same budget.
+                long budgetBytes =
+                        mTiledRenderBudgetBytes
+                                - AsyncTileSink.getBufferBytes(
+                                        outputSize, TiledPlanetRenderer.getStripHeight(outputSize));
+                if (budgetBytes <= 0) {
+                    Log.w(TAG, "Tiled render budget is too small for the encoder's buffers.");
+                }
+                TiledPlanetRenderer renderer =
+                        new TiledPlanetRenderer(decoder, pano, PADDING_COLOR, budgetBytes);
+                // Opened once the source is readable; render() aborts it if it fails after begin().
+                TileSink encoder = JpegEncoder.create(JPEG_QUALITY).open(out);
+                renderer.render(
+                        outputSize,
+                        mCurrentZoom,
+                        mCurrentAngle,
+                        Runtime.getRuntime().availableProcessors(),
+                        0,
+                        new AsyncTileSink(encoder, AppExecutors.instance().encode()));
+            } finally {
+                decoder.recycle();
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static BitmapRegionDecoder newRegionDecoder(ParcelFileDescriptor fd)
+            throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return BitmapRegionDecoder.newInstance(fd);
+        }
+        return BitmapRegionDecoder.newInstance(fd.getFileDescriptor(), false);
+    }
+
+    /**
+     * Creates the EXIF data for the tiny planet image: the source's, so the camera, capture time
+     * and location carry over, less what only describes the source's pixels.
      *
-     * @param jpeg the JPEG data of the tiny planet.
-     * @return The JPEG data containing basic EXIF.
+     * @return The EXIF data to save the tiny planet with.
      */
-    private byte[] addExif(byte[] jpeg) {
+    private ExifInterface createExif(JpegHeaderScanner.Header header) {
         ExifInterface exif = new ExifInterface();
+        if (header.getExif() != null) {
+            try {
+                exif.readExif(header.getExif());
+                for (int tag : SOURCE_IMAGE_EXIF_TAGS) {
+                    exif.deleteTag(tag);
+                }
+                exif.removeThumbnail();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the source EXIF, it is not carried over.", e);
+                exif = new ExifInterface();
+            }
+        }
         exif.addDateTimeStampTag(
                 ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(), TimeZone.getDefault());
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
-        try {
-            exif.writeExif(jpeg, jpegOut);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not write EXIF", e);
-        }
-        return jpegOut.toByteArray();
+        return exif;
     }
 
     private int getDisplaySize() {
@@ -351,21 +628,7 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     @Override
     public void onSizeChanged(int sizePx) {
         mPreviewSizePx = sizePx;
-        mResultLock.lock();
-        try {
-            if (mResultBitmap == null
-                    || mResultBitmap.getWidth() != sizePx
-                    || mResultBitmap.getHeight() != sizePx) {
-                if (mResultBitmap != null) {
-                    mResultBitmap.recycle();
-                }
-                mResultBitmap =
-                        Bitmap.createBitmap(
-                                mPreviewSizePx, mPreviewSizePx, Bitmap.Config.ARGB_8888);
-            }
-        } finally {
-            mResultLock.unlock();
-        }
+        mPreviewBitmaps.setSize(sizePx);
         scheduleUpdate();
     }
 
@@ -381,10 +644,29 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         scheduleUpdate();
     }
 
-    /** Delay-post a new preview rendering run. */
+    /**
+     * Asks for a new preview rendering run, cancelling the one in progress. While a slider is
+     * dragged, the preview is rendered at a fraction of its size and scaled up, so it keeps up
+     * with the finger; letting go renders it at full size.
+     */
     private void scheduleUpdate() {
-        mHandler.removeCallbacks(mCreateTinyPlanetRunnable);
-        mHandler.postDelayed(mCreateTinyPlanetRunnable, RENDER_DELAY_MILLIS);
+        int sizePx = mPreviewSizePx;
+        if (mDraggingSliders > 0) {
+            sizePx = Math.max(1, sizePx / mDraftDivisor);
+        }
+        mPreviewScheduler.request(mCurrentZoom, mCurrentAngle, sizePx);
+    }
+
+    /**
+     * Picks the draft resolution from how long the last draft took: quarter size when half size
+     * does not fit in a frame, back to half size when it would again.
+     */
+    private void updateDraftDivisor(long renderNanos) {
+        if (mDraftDivisor == 2 && renderNanos > DRAFT_FRAME_BUDGET_NANOS) {
+            mDraftDivisor = 4;
+        } else if (mDraftDivisor == 4 && renderNanos * 4 < DRAFT_FRAME_BUDGET_NANOS) {
+            mDraftDivisor = 2;
+        }
     }
 
     private InputStream getInputStream(Uri uri) {
@@ -396,56 +678,11 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         return null;
     }
 
-    /**
-     * To create a proper TinyPlanet, the input image must be 2:1 (360:180 degrees). So if needed,
-     * we pad the source image with black.
-     */
-    private static Bitmap createPaddedBitmap(Bitmap bitmapIn, XMPMeta xmp, int intermediateWidth) {
+    private static void closeQuietly(InputStream is) {
         try {
-            int croppedAreaWidth = getInt(xmp, CROPPED_AREA_IMAGE_WIDTH_PIXELS);
-            int croppedAreaHeight = getInt(xmp, CROPPED_AREA_IMAGE_HEIGHT_PIXELS);
-            int fullPanoWidth = getInt(xmp, CROPPED_AREA_FULL_PANO_WIDTH_PIXELS);
-            int fullPanoHeight = getInt(xmp, CROPPED_AREA_FULL_PANO_HEIGHT_PIXELS);
-            int left = getInt(xmp, CROPPED_AREA_LEFT);
-            int top = getInt(xmp, CROPPED_AREA_TOP);
-
-            if (fullPanoWidth == 0 || fullPanoHeight == 0) {
-                return bitmapIn;
-            }
-            // Make sure the intermediate image has the similar size to the
-            // input.
-            Bitmap paddedBitmap = null;
-            float scale = intermediateWidth / (float) fullPanoWidth;
-            while (paddedBitmap == null) {
-                try {
-                    paddedBitmap =
-                            Bitmap.createBitmap(
-                                    (int) (fullPanoWidth * scale),
-                                    (int) (fullPanoHeight * scale),
-                                    Bitmap.Config.ARGB_8888);
-                } catch (OutOfMemoryError e) {
-                    System.gc();
-                    scale /= 2;
-                }
-            }
-            Canvas paddedCanvas = new Canvas(paddedBitmap);
-
-            int right = left + croppedAreaWidth;
-            int bottom = top + croppedAreaHeight;
-            RectF destRect = new RectF(left * scale, top * scale, right * scale, bottom * scale);
-            paddedCanvas.drawBitmap(bitmapIn, null, destRect, null);
-            return paddedBitmap;
-        } catch (XMPException ex) {
-            // Do nothing, just use mSourceBitmap as is.
-        }
-        return bitmapIn;
-    }
-
-    private static int getInt(XMPMeta xmp, String key) throws XMPException {
-        if (xmp.doesPropertyExist(GOOGLE_PANO_NAMESPACE, key)) {
-            return xmp.getPropertyInteger(GOOGLE_PANO_NAMESPACE, key);
-        } else {
-            return 0;
+            is.close();
+        } catch (IOException e) {
+            // Ignore.
         }
     }
 }
@@ -17,30 +17,395 @@
 package com.kimjio.tinyplanet;
 
 import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.kimjio.tinyplanet.util.PanoInfo;
+
+import java.io.IOException;
+import java.io.OutputStream;
 
 /** TinyPlanet native interface. */
 public class TinyPlanetNative {
+    /** Thread count that renders with one thread per online CPU. */
+    public static final int ALL_THREADS = 0;
+
     static {
         System.loadLibrary("jni_tinyplanet");
     }
 
+    /**
+     * The settings of a {@link #process} call besides its images and view. Each has a default, so
+     * callers only set the ones they need.
+     */
+    public static final class Options {
+        private int mNumThreads = ALL_THREADS;
+        private long mCancelFlag;
+        private long mMipPyramid;
+        private PanoInfo mPano = PanoInfo.NONE;
+        private float mSourceScale = 1f;
+        private int mFillColor = Color.BLACK;
+
+        /**
+         * The output is split into row bands that are rendered in parallel.
+         *
+         * @param numThreads the number of threads to render with, or {@link #ALL_THREADS}, the
+         *     default, to use one thread per online CPU.
+         */
+        public Options setNumThreads(int numThreads) {
+            mNumThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * Makes the render possible to abandon half way through. The flag is checked before each
+         * row band, so a {@link #cancel} from another thread takes effect within one band.
+         *
+         * @param cancelFlag a flag from {@link #createCancelFlag}, or 0, the default, to render
+         *     uninterrupted.
+         */
+        public Options setCancelFlag(long cancelFlag) {
+            mCancelFlag = cancelFlag;
+            return this;
+        }
+
+        /**
+         * Samples the zoomed out parts from a mip pyramid of the input. Where one output pixel
+         * covers many input pixels, it is taken from a pyramid level with pixels of about its
+         * size, which avoids aliasing and is faster than sampling the full input.
+         *
+         * @param mipPyramid a pyramid of the input from {@link #createMipPyramid}, or 0, the
+         *     default, to sample the input only. A pyramid built from an image of another size is
+         *     ignored.
+         */
+        public Options setMipPyramid(long mipPyramid) {
+            mMipPyramid = mipPyramid;
+            return this;
+        }
+
+        /**
+         * Renders from a cropped panorama. The input is only the part of the 360x180 degree
+         * panorama that {@code pano} describes; the rest of the panorama is sampled as the fill
+         * color, without padding the input to the full panorama first.
+         *
+         * @param pano where the input sits in the full panorama, in full panorama pixels. If it
+         *     has no full pano size, the default, the input is taken to be the whole panorama.
+         * @param sourceScale the size of the input over the size of the image {@code pano} was
+         *     written for, such as {@code 1 / inSampleSize} for a subsampled decode. Used where
+         *     {@code pano} has no cropped area size.
+         */
+        public Options setPano(PanoInfo pano, float sourceScale) {
+            mPano = pano;
+            mSourceScale = sourceScale;
+            return this;
+        }
+
+        /** @param fillColor the ARGB color of the panorama outside the input, black by default. */
+        public Options setFillColor(int fillColor) {
+            mFillColor = fillColor;
+            return this;
+        }
+    }
+
     /**
      * Create a tiny planet.
      *
-     * @param in the 360 degree stereographically mapped panoramic input image.
-     * @param width the width of the input image.
-     * @param height the height of the input image.
+     * @param in the 360 degree stereographically mapped panoramic input image, or the cropped part
+     *     of it set with {@link Options#setPano}, at any size.
      * @param out the resulting tiny planet.
      * @param outputSize the width and height of the square output image.
      * @param scale the scale factor (used for fast previews).
      * @param angleRadians the angle of the tiny planet in radians.
+     * @param options the settings of the render.
+     * @return true if the whole image was rendered, false if it was cancelled and {@code out} is
+     *     only partially written.
      */
-    public static native void process(
+    public static boolean process(
+            Bitmap in,
+            Bitmap out,
+            int outputSize,
+            float scale,
+            float angleRadians,
+            Options options) {
+        PanoInfo pano = options.mPano;
+        return nativeProcess(
+                in,
+                in.getWidth(),
+                in.getHeight(),
+                out,
+                outputSize,
+                scale,
+                angleRadians,
+                options.mNumThreads,
+                options.mCancelFlag,
+                options.mMipPyramid,
+                pano.getCroppedAreaLeft(),
+                pano.getCroppedAreaTop(),
+                pano.getCroppedAreaWidth(),
+                pano.getCroppedAreaHeight(),
+                pano.getFullPanoWidth(),
+                pano.getFullPanoHeight(),
+                options.mSourceScale,
+                options.mFillColor);
+    }
+
+    private static native boolean nativeProcess(
             Bitmap in,
             int width,
             int height,
             Bitmap out,
             int outputSize,
             float scale,
-            float angleRadians);
+            float angleRadians,
+            int numThreads,
+            long cancelFlag,
+            long mipPyramid,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int fullPanoWidth,
+            int fullPanoHeight,
+            float sourceScale,
+            int fillColor);
+
+    /**
+     * Finds the source tiles a rectangle of a tiny planet samples, so only those need to be in
+     * memory for {@link #processTiles}. The panorama is split into square tiles of {@code 1 <<
+     * tileShift} pixels, in rows of {@code columns} tiles.
+     *
+     * @param needed one flag per tile, in row major order, set for the tiles the rectangle
+     *     samples and cleared for the others. A tile may be set without being sampled.
+     * @param width the width of the panorama, or of its cropped part.
+     * @param height the height of the panorama, or of its cropped part.
+     * @param tileShift the tile size as a power of two.
+     * @param columns the number of tiles per row.
+     * @param outputSize the width and height of the whole square output image.
+     * @param xStart the left edge of the rectangle, inclusive.
+     * @param yStart the top edge of the rectangle, inclusive.
+     * @param xEnd the right edge of the rectangle, exclusive.
+     * @param yEnd the bottom edge of the rectangle, exclusive.
+     * @param scale the scale factor.
+     * @param angleRadians the angle of the tiny planet in radians.
+     * @param pano where the panorama sits in the full panorama, like for {@link Options#setPano}.
+     */
+    public static void sourceTilesNeeded(
+            boolean[] needed,
+            int width,
+            int height,
+            int tileShift,
+            int columns,
+            int outputSize,
+            int xStart,
+            int yStart,
+            int xEnd,
+            int yEnd,
+            float scale,
+            float angleRadians,
+            PanoInfo pano) {
+        nativeSourceTilesNeeded(
+                needed,
+                width,
+                height,
+                tileShift,
+                columns,
+                outputSize,
+                xStart,
+                yStart,
+                xEnd,
+                yEnd,
+                scale,
+                angleRadians,
+                pano.getCroppedAreaLeft(),
+                pano.getCroppedAreaTop(),
+                pano.getCroppedAreaWidth(),
+                pano.getCroppedAreaHeight(),
+                pano.getFullPanoWidth(),
+                pano.getFullPanoHeight());
+    }
+
+    /**
+     * Renders a rectangle of a tiny planet from a panorama in tiles, into a strip of output rows.
+     * Neither the panorama nor the output has to be in memory as a whole, which makes
+     * panoramas larger than the heap possible.
+     *
+     * <p>Each tile is an ARGB_8888 bitmap of the panorama pixels it covers plus one column more:
+     * the first column of the next tile, or for the last tile column the first pixel of the next
+     * image row.
+     *
+     * @param tiles the tiles in row major order; at least the ones {@link #sourceTilesNeeded} sets
+     *     for the rectangle must be non-null.
+     * @param width the width of the panorama, or of its cropped part.
+     * @param height the height of the panorama, or of its cropped part.
+     * @param tileShift the tile size as a power of two.
+     * @param columns the number of tiles per row.
+     * @param strip an ARGB_8888 bitmap of {@code outputSize} width holding the output rows from
+     *     {@code stripTop} on, which must include the rectangle.
+     * @param stripTop the output row of the first row of {@code strip}.
+     * @param outputSize the width and height of the whole square output image.
+     * @param xStart the left edge of the rectangle, inclusive.
+     * @param yStart the top edge of the rectangle, inclusive.
+     * @param xEnd the right edge of the rectangle, exclusive.
+     * @param yEnd the bottom edge of the rectangle, exclusive.
+     * @param scale the scale factor.
+     * @param angleRadians the angle of the tiny planet in radians.
+     * @param numThreads the number of threads to render with, or {@link #ALL_THREADS}.
+     * @param cancelFlag a flag from {@link #createCancelFlag}, or 0 to render uninterrupted.
+     * @param pano where the panorama sits in the full panorama, like for {@link Options#setPano}.
+     * @param fillColor the ARGB color of the panorama outside the input.
+     * @return true if the rectangle was rendered, false if it was cancelled or a bitmap could not
+     *     be read.
+     */
+    public static boolean processTiles(
+            Bitmap[] tiles,
+            int width,
+            int height,
+            int tileShift,
+            int columns,
+            Bitmap strip,
+            int stripTop,
+            int outputSize,
+            int xStart,
+            int yStart,
+            int xEnd,
+            int yEnd,
+            float scale,
+            float angleRadians,
+            int numThreads,
+            long cancelFlag,
+            PanoInfo pano,
+            int fillColor) {
+        return nativeProcessTiles(
+                tiles,
+                width,
+                height,
+                tileShift,
+                columns,
+                strip,
+                stripTop,
+                outputSize,
+                xStart,
+                yStart,
+                xEnd,
+                yEnd,
+                scale,
+                angleRadians,
+                numThreads,
+                cancelFlag,
+                pano.getCroppedAreaLeft(),
+                pano.getCroppedAreaTop(),
+                pano.getCroppedAreaWidth(),
+                pano.getCroppedAreaHeight(),
+                pano.getFullPanoWidth(),
+                pano.getFullPanoHeight(),
+                fillColor);
+    }
+
+    private static native void nativeSourceTilesNeeded(
+            boolean[] needed,
+            int width,
+            int height,
+            int tileShift,
+            int columns,
+            int outputSize,
+            int xStart,
+            int yStart,
+            int xEnd,
+            int yEnd,
+            float scale,
+            float angleRadians,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int fullPanoWidth,
+            int fullPanoHeight);
+
+    private static native boolean nativeProcessTiles(
+            Bitmap[] tiles,
+            int width,
+            int height,
+            int tileShift,
+            int columns,
+            Bitmap strip,
+            int stripTop,
+            int outputSize,
+            int xStart,
+            int yStart,
+            int xEnd,
+            int yEnd,
+            float scale,
+            float angleRadians,
+            int numThreads,
+            long cancelFlag,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int fullPanoWidth,
+            int fullPanoHeight,
+            int fillColor);
+
+    /**
+     * Builds the mip pyramid of a panorama for {@link #process}. The pyramid is a copy, so the
+     * bitmap may be recycled afterwards, but the pyramid must be freed with {@link
+     * #destroyMipPyramid}.
+     *
+     * @param in the 360 degree stereographically mapped panoramic input image, in ARGB_8888.
+     * @param numThreads the number of threads to build with, or {@link #ALL_THREADS}.
+     * @return the pyramid, or 0 if the bitmap could not be read.
+     */
+    public static native long createMipPyramid(Bitmap in, int numThreads);
+
+    /** Frees a mip pyramid. No render may be using it anymore. */
+    public static native void destroyMipPyramid(long mipPyramid);
+
+    /** Whether the library was built with the libjpeg-turbo encoder below. */
+    public static native boolean isJpegEncoderAvailable();
+
+    /**
+     * Starts encoding a JPEG that is written to a stream as its rows come in, see {@link
+     * TurboJpegEncoder}. Only available if {@link #isJpegEncoderAvailable} is true. Must be freed
+     * with {@link #destroyJpegEncoder}.
+     *
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param quality the JPEG quality, 0-100.
+     * @param out the stream the encoded bytes are written to, in chunks. Exceptions it throws are
+     *     passed on from the call that wrote.
+     * @return the encoder, or 0 if it could not be created.
+     */
+    public static native long createJpegEncoder(
+            int width, int height, int quality, OutputStream out) throws IOException;
+
+    /**
+     * Encodes the next rows of the image.
+     *
+     * @param jpegEncoder an encoder from {@link #createJpegEncoder}.
+     * @param rows an ARGB_8888 bitmap of the image width holding the rows; alpha is ignored.
+     * @param count the number of rows to encode, from the top of {@code rows}.
+     * @return false if encoding failed, after which the encoder can only be destroyed.
+     */
+    public static native boolean encodeJpegRows(long jpegEncoder, Bitmap rows, int count)
+            throws IOException;
+
+    /** Writes the end of the image once all rows are encoded. Returns false if that failed. */
+    public static native boolean finishJpegEncoder(long jpegEncoder) throws IOException;
+
+    /** Frees a JPEG encoder, finished or not. */
+    public static native void destroyJpegEncoder(long jpegEncoder);
+
+    /**
+     * Creates a cancel flag for {@link Options#setCancelFlag}. It starts out cleared and must be
+     * freed with {@link #destroyCancelFlag}.
+     */
+    public static native long createCancelFlag();
+
+    /** Raises a cancel flag, making the renders using it stop at the next row band. */
+    public static native void cancel(long cancelFlag);
+
+    /** Clears a cancel flag so it can be used for the next render. */
+    public static native void resetCancelFlag(long cancelFlag);
+
+    /** Frees a cancel flag. No render may be using it anymore. */
+    public static native void destroyCancelFlag(long cancelFlag);
 }
@@ -20,11 +20,10 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.View;
 
-import java.util.concurrent.locks.Lock;
-
 /** Shows a preview of the TinyPlanet on the screen while editing. */
 public class TinyPlanetPreview extends View {
     /** Classes implementing this interface get informed about changes to the preview size. */
@@ -37,9 +36,10 @@ public class TinyPlanetPreview extends View {
         void onSizeChanged(int sizePx);
     }
 
-    private final Paint mPaint = new Paint();
+    /** Filtered, so frames rendered below the preview size are scaled up smoothly. */
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mDestination = new Rect();
     private Bitmap mPreview;
-    private Lock mLock;
     private PreviewSizeListener mPreviewSizeListener;
     private final int mSize = 0;
 
@@ -55,11 +55,19 @@ public class TinyPlanetPreview extends View {
         super(context, attrs, defStyle);
     }
 
-    /** Sets the bitmap and waits for a draw to happen before returning. */
-    public void setBitmap(Bitmap preview, Lock lock) {
+    /**
+     * Shows a new frame. Must be called on the main thread, which is also where drawing happens,
+     * so the swap never races with a draw.
+     *
+     * @param preview the frame to show. It must not be written to while it is shown. Frames
+     *     smaller than the preview are scaled up to fill it.
+     * @return the frame shown before, which is not drawn anymore and may be reused.
+     */
+    public Bitmap setBitmap(Bitmap preview) {
+        Bitmap previous = mPreview;
         mPreview = preview;
-        mLock = lock;
         invalidate();
+        return previous;
     }
 
     public void setPreviewSizeChangeListener(PreviewSizeListener listener) {
@@ -72,14 +80,10 @@ public class TinyPlanetPreview extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mLock != null && mLock.tryLock()) {
-            try {
-                if (mPreview != null && !mPreview.isRecycled()) {
-                    canvas.drawBitmap(mPreview, 0, 0, mPaint);
-                }
-            } finally {
-                mLock.unlock();
-            }
+        if (mPreview != null && !mPreview.isRecycled()) {
+            int size = Math.min(getWidth(), getHeight());
+            mDestination.set(0, 0, size, size);
+            canvas.drawBitmap(mPreview, null, mDestination, mPaint);
         }
     }
 
@@ -0,0 +1,80 @@
+package com.kimjio.tinyplanet;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes strips as they arrive with the libjpeg-turbo bundled in the native library, so only the
+ * strip being encoded and libjpeg's own row buffers are in memory.
+ */
+public class TurboJpegEncoder implements JpegEncoder {
+    private final int mQuality;
+
+    /** Whether the native library was built with libjpeg-turbo. */
+    public static boolean isAvailable() {
+        return TinyPlanetNative.isJpegEncoderAvailable();
+    }
+
+    /** @param quality the JPEG quality, 0-100. */
+    public TurboJpegEncoder(int quality) {
+        mQuality = quality;
+    }
+
+    @Override
+    public TileSink open(OutputStream out) {
+        return new TileSink() {
+            private long mEncoder;
+
+            @Override
+            public void begin(int width, int height) throws IOException {
+                mEncoder = TinyPlanetNative.createJpegEncoder(width, height, mQuality, out);
+                if (mEncoder == 0) {
+                    throw new IOException("Could not start JPEG encoder.");
+                }
+            }
+
+            @Override
+            public void writeStrip(Bitmap strip, int top, int rows) throws IOException {
+                boolean encoded = false;
+                try {
+                    encoded = TinyPlanetNative.encodeJpegRows(mEncoder, strip, rows);
+                } finally {
+                    // The encoder is unusable after a failure, and end() is not called then.
+                    if (!encoded) {
+                        release();
+                    }
+                }
+                if (!encoded) {
+                    throw new IOException("Could not encode rows " + top + " to " + (top + rows));
+                }
+            }
+
+            @Override
+            public void end() throws IOException {
+                boolean finished;
+                try {
+                    finished = TinyPlanetNative.finishJpegEncoder(mEncoder);
+                } finally {
+                    release();
+                }
+                if (!finished) {
+                    throw new IOException("Could not finish JPEG.");
+                }
+            }
+
+            @Override
+            public void abort() {
+                release();
+            }
+
+            private void release() {
+                if (mEncoder != 0) {
+                    TinyPlanetNative.destroyJpegEncoder(mEncoder);
+                    mEncoder = 0;
+                }
+            }
+        };
+    }
+}
@@ -23,7 +23,6 @@ import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -231,9 +230,8 @@ class ExifData {
         ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
         for (IfdData d : mIfdDatas) {
             if (d != null) {
-                ExifTag[] tags = d.getAllTags();
-                if (tags != null) {
-                    Collections.addAll(ret, tags);
+                for (int i = 0, n = d.getTagCount(); i < n; i++) {
+                    ret.add(d.getTagAt(i));
                 }
             }
         }
@@ -246,14 +244,13 @@ class ExifData {
         if (d == null) {
             return null;
         }
-        ExifTag[] tags = d.getAllTags();
-        if (tags == null) {
+        int count = d.getTagCount();
+        if (count == 0) {
             return null;
         }
-        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(tags.length);
-        Collections.addAll(ret, tags);
-        if (ret.size() == 0) {
-            return null;
+        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(d.getTagAt(i));
         }
         return ret;
     }
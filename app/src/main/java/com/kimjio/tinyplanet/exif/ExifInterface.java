@@ -21,6 +21,7 @@ import android.util.SparseIntArray;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -47,7 +48,10 @@ public class ExifInterface {
     public static final int IFD_NULL = -1;
     public static final int DEFINITION_NULL = 0;
 
+    public static final int TAG_IMAGE_WIDTH = defineTag(IfdId.TYPE_IFD_0, (short) 0x0100);
+    public static final int TAG_IMAGE_LENGTH = defineTag(IfdId.TYPE_IFD_0, (short) 0x0101);
     public static final int TAG_STRIP_OFFSETS = defineTag(IfdId.TYPE_IFD_0, (short) 0x0111);
+    public static final int TAG_ORIENTATION = defineTag(IfdId.TYPE_IFD_0, (short) 0x0112);
     public static final int TAG_STRIP_BYTE_COUNTS = defineTag(IfdId.TYPE_IFD_0, (short) 0x0117);
     public static final int TAG_DATE_TIME = defineTag(IfdId.TYPE_IFD_0, (short) 0x0132);
     public static final int TAG_EXIF_IFD = defineTag(IfdId.TYPE_IFD_0, (short) 0x8769);
@@ -60,7 +64,10 @@ public class ExifInterface {
     public static final int TAG_DATE_TIME_ORIGINAL = defineTag(IfdId.TYPE_IFD_EXIF, (short) 0x9003);
     public static final int TAG_DATE_TIME_DIGITIZED =
             defineTag(IfdId.TYPE_IFD_EXIF, (short) 0x9004);
+    public static final int TAG_MAKER_NOTE = defineTag(IfdId.TYPE_IFD_EXIF, (short) 0x927C);
     public static final int TAG_USER_COMMENT = defineTag(IfdId.TYPE_IFD_EXIF, (short) 0x9286);
+    public static final int TAG_PIXEL_X_DIMENSION = defineTag(IfdId.TYPE_IFD_EXIF, (short) 0xA002);
+    public static final int TAG_PIXEL_Y_DIMENSION = defineTag(IfdId.TYPE_IFD_EXIF, (short) 0xA003);
     public static final int TAG_INTEROPERABILITY_IFD =
             defineTag(IfdId.TYPE_IFD_EXIF, (short) 0xA005);
 
@@ -92,9 +99,41 @@ public class ExifInterface {
     }
 
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
-    private final ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
+    private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
+    /**
+     * Reads the tags of an EXIF block, replacing the tags of this object. Values are decoded only
+     * when they are read, so tags that are only carried over, like maker notes, are never copied
+     * out of the buffer; a memory-mapped file works as well as a heap buffer. The thumbnail is not
+     * read.
+     *
+     * @param tiff the TIFF data that follows "Exif\0\0" in a JPEG's APP1 segment, from its
+     *     position to its limit. It must not change while this object is in use.
+     * @throws IOException if it is not valid EXIF data.
+     */
+    public void readExif(ByteBuffer tiff) throws IOException {
+        if (tiff == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        mData = ExifReader.read(tiff);
+    }
+
+    /**
+     * Reads the tags of an EXIF block, replacing the tags of this object.
+     *
+     * @param tiff the TIFF data that follows "Exif\0\0" in a JPEG's APP1 segment. It must not
+     *     change while this object is in use.
+     * @throws IOException if it is not valid EXIF data.
+     * @see #readExif(ByteBuffer)
+     */
+    public void readExif(byte[] tiff) throws IOException {
+        if (tiff == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        readExif(ByteBuffer.wrap(tiff));
+    }
+
     /**
      * Writes the tags from this ExifInterface object into a jpeg image, removing prior exif tags.
      *
@@ -122,11 +161,27 @@ public class ExifInterface {
      * @throws IOException
      */
     public void writeExif(Bitmap bitmap, OutputStream exifOutStream) throws IOException {
+        writeExif(bitmap, exifOutStream, 90);
+    }
+
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg compressed bitmap, removing prior
+     * exif tags. The encoder writes straight through the exif stream, so the jpeg is never held in
+     * memory as a whole.
+     *
+     * @param bitmap a bitmap to compress and write exif into.
+     * @param exifOutStream the OutputStream to which the jpeg image with added exif tags will be
+     *     written.
+     * @param quality the jpeg quality, 0-100.
+     * @throws IOException
+     */
+    public void writeExif(Bitmap bitmap, OutputStream exifOutStream, int quality)
+            throws IOException {
         if (bitmap == null || exifOutStream == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
         OutputStream s = getExifWriterStream(exifOutStream);
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, s);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, s);
         s.flush();
     }
 
@@ -244,6 +299,20 @@ public class ExifInterface {
         return mData.addTag(tag);
     }
 
+    /**
+     * Removes the tag of a tag constant from the IFD the constant names.
+     *
+     * @param tagId a tag constant, e.g. {@link #TAG_ORIENTATION}.
+     */
+    public void deleteTag(int tagId) {
+        mData.removeTag(getTrueTagKey(tagId), getTrueIfd(tagId));
+    }
+
+    /** Removes the thumbnail along with IFD1, the IFD that describes it. */
+    public void removeThumbnail() {
+        mData.removeThumbnailData();
+    }
+
     protected int[] getTagDefinitionsForTagId(short tagId) {
         int[] ifds = IfdData.getIfds();
         int[] defs = new int[ifds.length];
@@ -312,6 +381,20 @@ public class ExifInterface {
 
         mTagInfo.put(ExifInterface.TAG_DATE_TIME, ifdFlags | ExifTag.TYPE_ASCII << 16 | 20);
         mTagInfo.put(ExifInterface.TAG_EXIF_IFD, ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
+        // The writer links the GPS IFD and the thumbnail of EXIF data that was read.
+        mTagInfo.put(ExifInterface.TAG_GPS_IFD, ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
+        mTagInfo.put(
+                ExifInterface.TAG_STRIP_OFFSETS,
+                ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | ExifTag.SIZE_UNDEFINED);
+        mTagInfo.put(
+                ExifInterface.TAG_STRIP_BYTE_COUNTS,
+                ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | ExifTag.SIZE_UNDEFINED);
+        mTagInfo.put(
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+                ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
+        mTagInfo.put(
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+                ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // Exif tags
         int[] exifAllowedIfds = {IfdId.TYPE_IFD_EXIF};
         int exifFlags = getFlagsFromAllowedIfds(exifAllowedIfds) << 24;
@@ -319,6 +402,9 @@ public class ExifInterface {
                 ExifInterface.TAG_DATE_TIME_ORIGINAL, exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
         mTagInfo.put(
                 ExifInterface.TAG_DATE_TIME_DIGITIZED, exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
+        mTagInfo.put(
+                ExifInterface.TAG_INTEROPERABILITY_IFD,
+                exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
     }
 
     protected static int getAllowedIfdFlagsFromInfo(int info) {
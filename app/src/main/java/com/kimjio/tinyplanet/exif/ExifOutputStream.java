@@ -22,9 +22,10 @@ import java.io.BufferedOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class provides a way to replace the Exif header of a JPEG image.
@@ -73,6 +74,14 @@ class ExifOutputStream extends FilterOutputStream {
     private static final short TAG_SIZE = 12;
     private static final short TIFF_HEADER_SIZE = 8;
     private static final int MAX_EXIF_SIZE = 65535;
+    /** Bytes of the APP1 segment before the TIFF header: marker, length and Exif header. */
+    private static final int APP1_HEADER_SIZE = 10;
+
+    /**
+     * The APP1 segment is serialized into this buffer and written with one call. It is kept per
+     * thread and grows to the largest segment written, so repeated saves do not allocate.
+     */
+    private static final ThreadLocal<ByteBuffer> sApp1Buffer = new ThreadLocal<>();
 
     private ExifData mExifData;
     private int mState = STATE_SOI;
@@ -207,104 +216,134 @@ class ExifOutputStream extends FilterOutputStream {
         if (DEBUG) {
             Log.v(TAG, "Writing exif data...");
         }
-        ArrayList<ExifTag> nullTags = stripNullValueTags(mExifData);
         createRequiredIfdAndTag();
         int exifSize = calculateAllOffset();
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
-        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
-        dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
-        dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
-        dataOutputStream.writeInt(EXIF_HEADER);
-        dataOutputStream.writeShort((short) 0x0000);
+        int segmentSize = APP1_HEADER_SIZE + exifSize;
+        ByteBuffer buffer = obtainApp1Buffer(segmentSize);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putShort(JpegHeader.APP1);
+        buffer.putShort((short) (exifSize + 8));
+        buffer.putInt(EXIF_HEADER);
+        buffer.putShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
-            dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
+            buffer.putShort(TIFF_BIG_ENDIAN);
         } else {
-            dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
+            buffer.putShort(TIFF_LITTLE_ENDIAN);
+        }
+        buffer.order(mExifData.getByteOrder());
+        buffer.putShort(TIFF_HEADER);
+        buffer.putInt(8);
+        try {
+            writeAllTags(buffer);
+            writeThumbnail(buffer);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Exif header is larger than its calculated size", e);
         }
-        dataOutputStream.setByteOrder(mExifData.getByteOrder());
-        dataOutputStream.writeShort(TIFF_HEADER);
-        dataOutputStream.writeInt(8);
-        writeAllTags(dataOutputStream);
-        writeThumbnail(dataOutputStream);
-        for (ExifTag t : nullTags) {
-            mExifData.addTag(t);
+        if (buffer.position() != segmentSize) {
+            throw new IOException(
+                    "Exif header is " + buffer.position() + " bytes, expected " + segmentSize);
+        }
+        out.write(buffer.array(), 0, segmentSize);
+    }
+
+    /** Returns the pooled APP1 buffer, cleared and limited to size bytes. */
+    private static ByteBuffer obtainApp1Buffer(int size) {
+        ByteBuffer buffer = sApp1Buffer.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+            sApp1Buffer.set(buffer);
         }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
     }
 
-    private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
-        ArrayList<ExifTag> nullTags = new ArrayList<ExifTag>();
-        for (ExifTag t : data.getAllTags()) {
-            if (t.getValue() == null && !ExifInterface.isOffsetTag(t.getTagId())) {
-                data.removeTag(t.getTagId(), t.getIfd());
-                nullTags.add(t);
+    /**
+     * Tags without a value are left out of the segment. Offset tags get their values while the
+     * offsets are calculated.
+     */
+    private static boolean isWritten(ExifTag tag) {
+        return tag.hasValue() || ExifInterface.isOffsetTag(tag.getTagId());
+    }
+
+    private static int getWrittenTagCount(IfdData ifd) {
+        int count = 0;
+        for (int i = 0, n = ifd.getTagCount(); i < n; i++) {
+            if (isWritten(ifd.getTagAt(i))) {
+                count++;
             }
         }
-        return nullTags;
+        return count;
     }
 
-    private void writeThumbnail(OrderedDataOutputStream dataOutputStream) throws IOException {
+    private void writeThumbnail(ByteBuffer buffer) {
         if (mExifData.hasCompressedThumbnail()) {
-            dataOutputStream.write(mExifData.getCompressedThumbnail());
+            buffer.put(mExifData.getCompressedThumbnail());
         } else if (mExifData.hasUncompressedStrip()) {
             for (int i = 0; i < mExifData.getStripCount(); i++) {
-                dataOutputStream.write(mExifData.getStrip(i));
+                buffer.put(mExifData.getStrip(i));
             }
         }
     }
 
-    private void writeAllTags(OrderedDataOutputStream dataOutputStream) throws IOException {
-        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_0), dataOutputStream);
-        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_EXIF), dataOutputStream);
+    private void writeAllTags(ByteBuffer buffer) {
+        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_0), buffer);
+        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_EXIF), buffer);
         IfdData interoperabilityIfd = mExifData.getIfdData(IfdId.TYPE_IFD_INTEROPERABILITY);
         if (interoperabilityIfd != null) {
-            writeIfd(interoperabilityIfd, dataOutputStream);
+            writeIfd(interoperabilityIfd, buffer);
         }
         IfdData gpsIfd = mExifData.getIfdData(IfdId.TYPE_IFD_GPS);
         if (gpsIfd != null) {
-            writeIfd(gpsIfd, dataOutputStream);
+            writeIfd(gpsIfd, buffer);
         }
         IfdData ifd1 = mExifData.getIfdData(IfdId.TYPE_IFD_1);
         if (ifd1 != null) {
-            writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_1), dataOutputStream);
+            writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_1), buffer);
         }
     }
 
-    private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
-            throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
-            dataOutputStream.writeShort(tag.getTagId());
-            dataOutputStream.writeShort(tag.getDataType());
-            dataOutputStream.writeInt(tag.getComponentCount());
+    private void writeIfd(IfdData ifd, ByteBuffer buffer) {
+        // IfdData keeps the tags in ascending ID order, as TIFF requires.
+        int tagCount = ifd.getTagCount();
+        buffer.putShort((short) getWrittenTagCount(ifd));
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = ifd.getTagAt(i);
+            if (!isWritten(tag)) {
+                continue;
+            }
+            buffer.putShort(tag.getTagId());
+            buffer.putShort(tag.getDataType());
+            buffer.putInt(tag.getComponentCount());
             if (DEBUG) {
                 Log.v(TAG, "\n" + tag);
             }
             if (tag.getDataSize() > 4) {
-                dataOutputStream.writeInt(tag.getOffset());
+                buffer.putInt(tag.getOffset());
             } else {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
-                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
-                    dataOutputStream.write(0);
+                ExifOutputStream.writeTagValue(tag, buffer);
+                for (int j = 0, n = 4 - tag.getDataSize(); j < n; j++) {
+                    buffer.put((byte) 0);
                 }
             }
         }
-        dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
-            if (tag.getDataSize() > 4) {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
+        buffer.putInt(ifd.getOffsetToNextIfd());
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = ifd.getTagAt(i);
+            if (isWritten(tag) && tag.getDataSize() > 4) {
+                ExifOutputStream.writeTagValue(tag, buffer);
             }
         }
     }
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
-        offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
-            if (tag.getDataSize() > 4) {
+        offset += 2 + getWrittenTagCount(ifd) * TAG_SIZE + 4;
+        for (int i = 0, n = ifd.getTagCount(); i < n; i++) {
+            ExifTag tag = ifd.getTagAt(i);
+            if (isWritten(tag) && tag.getDataSize() > 4) {
                 tag.setOffset(offset);
                 offset += tag.getDataSize();
             }
@@ -486,40 +525,47 @@ class ExifOutputStream extends FilterOutputStream {
         return offset;
     }
 
-    static void writeTagValue(ExifTag tag, OrderedDataOutputStream dataOutputStream)
-            throws IOException {
+    static void writeTagValue(ExifTag tag, ByteBuffer buffer) {
         switch (tag.getDataType()) {
             case ExifTag.TYPE_ASCII:
                 byte[] buf = tag.getStringByte();
                 if (buf.length == tag.getComponentCount()) {
-                    buf[buf.length - 1] = 0;
-                    dataOutputStream.write(buf);
+                    // The last byte is replaced by the terminating null.
+                    buffer.put(buf, 0, buf.length - 1);
                 } else {
-                    dataOutputStream.write(buf);
-                    dataOutputStream.write(0);
+                    buffer.put(buf);
                 }
+                buffer.put((byte) 0);
                 break;
             case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_UNSIGNED_LONG:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeInt((int) tag.getValueAt(i));
+                    buffer.putInt((int) tag.getValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeRational(tag.getRational(i));
+                    Rational rational = tag.getRational(i);
+                    buffer.putInt((int) rational.getNumerator());
+                    buffer.putInt((int) rational.getDenominator());
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
             case ExifTag.TYPE_UNSIGNED_BYTE:
-                buf = new byte[tag.getComponentCount()];
-                tag.getBytes(buf);
-                dataOutputStream.write(buf);
+                // Copied straight into the buffer; bytes the tag has no value for stay zero.
+                int count = tag.getComponentCount();
+                if (count > buffer.remaining()) {
+                    throw new BufferOverflowException();
+                }
+                int position = buffer.arrayOffset() + buffer.position();
+                Arrays.fill(buffer.array(), position, position + count, (byte) 0);
+                tag.getBytes(buffer.array(), position, count);
+                buffer.position(buffer.position() + count);
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeShort((short) tag.getValueAt(i));
+                    buffer.putShort((short) tag.getValueAt(i));
                 }
                 break;
         }
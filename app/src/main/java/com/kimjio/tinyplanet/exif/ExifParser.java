@@ -0,0 +1,209 @@
+package com.kimjio.tinyplanet.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the tags of an EXIF block, the TIFF data that follows "Exif\0\0" in a JPEG's APP1 segment,
+ * straight from a ByteBuffer, which may be a memory-mapped file. It starts at IFD0 and follows the
+ * links to the EXIF, GPS and interoperability IFDs and to IFD1. Values are not decoded here: each
+ * tag points at its value and decodes it when it is first read, see {@link
+ * ExifTag#setLazyValue}.
+ *
+ * <p>Offset tags are followed rather than returned. The thumbnail they point to is never read, and
+ * entries that are malformed or point outside the data are skipped.
+ */
+class ExifParser {
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int TAG_SIZE = 12;
+
+    /** The EXIF block in its byte order, offset 0 being the TIFF header. */
+    private final ByteBuffer mData;
+    /** Where each IFD still to be read starts, by IFD ID, or 0. */
+    private final int[] mIfdOffsets = new int[IfdId.TYPE_IFD_COUNT];
+    /** Where each IFD that was read started, by IFD ID, or 0. */
+    private final int[] mVisitedOffsets = new int[IfdId.TYPE_IFD_COUNT];
+    private int mIfd;
+    private int mEntriesStart;
+    private int mEntryCount;
+    private int mNextEntry;
+
+    /**
+     * @param tiff the EXIF block, from its position to its limit. It must not change while tags
+     *     read from it have values pending.
+     * @throws IOException if it does not start with a TIFF header.
+     */
+    ExifParser(ByteBuffer tiff) throws IOException {
+        mData = tiff.slice();
+        if (mData.remaining() < TIFF_HEADER_SIZE) {
+            throw new IOException("EXIF data is too short: " + mData.remaining() + " bytes");
+        }
+        short byteOrder = mData.getShort(0);
+        if (byteOrder == TIFF_BIG_ENDIAN) {
+            mData.order(ByteOrder.BIG_ENDIAN);
+        } else if (byteOrder == TIFF_LITTLE_ENDIAN) {
+            mData.order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            throw new IOException("Invalid TIFF byte order: " + Integer.toHexString(byteOrder));
+        }
+        if (mData.getShort(2) != TIFF_HEADER) {
+            throw new IOException("Invalid TIFF header");
+        }
+        link(IfdId.TYPE_IFD_0, mData.getInt(4) & 0xffffffffL);
+    }
+
+    ByteOrder getByteOrder() {
+        return mData.order();
+    }
+
+    /** Returns the next tag, or null once all IFDs have been read. */
+    ExifTag next() {
+        while (true) {
+            if (mNextEntry >= mEntryCount) {
+                if (!startNextIfd()) {
+                    return null;
+                }
+                continue;
+            }
+            ExifTag tag = readEntry(mEntriesStart + mNextEntry * TAG_SIZE);
+            mNextEntry++;
+            if (tag != null) {
+                return tag;
+            }
+        }
+    }
+
+    /** Moves on to the IFD with the lowest ID still to be read. Returns false if there is none. */
+    private boolean startNextIfd() {
+        int limit = mData.limit();
+        for (int ifd = 0; ifd < IfdId.TYPE_IFD_COUNT; ifd++) {
+            int offset = mIfdOffsets[ifd];
+            if (offset == 0) {
+                continue;
+            }
+            mIfdOffsets[ifd] = 0;
+            mVisitedOffsets[ifd] = offset;
+            if (offset + 2 > limit) {
+                continue;
+            }
+            int count = mData.getShort(offset) & 0xffff;
+            mIfd = ifd;
+            mEntriesStart = offset + 2;
+            // Entries cut off by the end of the data are left out.
+            mEntryCount = Math.min(count, (limit - mEntriesStart) / TAG_SIZE);
+            mNextEntry = 0;
+            int nextIfdOffset = mEntriesStart + count * TAG_SIZE;
+            if (ifd == IfdId.TYPE_IFD_0 && nextIfdOffset + 4 <= limit) {
+                link(IfdId.TYPE_IFD_1, mData.getInt(nextIfdOffset) & 0xffffffffL);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues the IFD at offset, unless that IFD or another one at the same offset was read
+     * already, which would loop, or offset is out of bounds.
+     */
+    private void link(int ifd, long offset) {
+        if (mVisitedOffsets[ifd] != 0 || offset < TIFF_HEADER_SIZE || offset >= mData.limit()) {
+            return;
+        }
+        for (int visited : mVisitedOffsets) {
+            if (visited == offset) {
+                return;
+            }
+        }
+        mIfdOffsets[ifd] = (int) offset;
+    }
+
+    /** Reads the IFD entry at position, or returns null if it is skipped. */
+    private ExifTag readEntry(int position) {
+        short tagId = mData.getShort(position);
+        short type = mData.getShort(position + 2);
+        long count = mData.getInt(position + 4) & 0xffffffffL;
+        if (!ExifTag.isValidType(type)) {
+            return null;
+        }
+        long size = count * ExifTag.getElementSize(type);
+        int valueOffset = position + 8;
+        if (size > 4) {
+            long offset = mData.getInt(valueOffset) & 0xffffffffL;
+            if (offset + size > mData.limit()) {
+                return null;
+            }
+            valueOffset = (int) offset;
+        }
+        if (ExifInterface.isOffsetTag(tagId)) {
+            if (count == 1
+                    && (type == ExifTag.TYPE_UNSIGNED_LONG || type == ExifTag.TYPE_LONG)) {
+                followOffsetTag(tagId, mData.getInt(valueOffset) & 0xffffffffL);
+            }
+            return null;
+        }
+        ExifTag tag = new ExifTag(tagId, type, (int) count, mIfd, false);
+        tag.setLazyValue(mData, valueOffset);
+        return tag;
+    }
+
+    private void followOffsetTag(short tagId, long offset) {
+        if (tagId == ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD)) {
+            link(IfdId.TYPE_IFD_EXIF, offset);
+        } else if (tagId == ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD)) {
+            link(IfdId.TYPE_IFD_GPS, offset);
+        } else if (tagId == ExifInterface.getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD)) {
+            link(IfdId.TYPE_IFD_INTEROPERABILITY, offset);
+        }
+        // The thumbnail offsets are not followed.
+    }
+
+    /**
+     * Decodes count values of the given type at offset in data, which is in the EXIF byte order,
+     * into the representation {@link ExifTag} keeps them in.
+     */
+    static Object readValue(ByteBuffer data, int offset, short type, int count) {
+        switch (type) {
+            case ExifTag.TYPE_ASCII:
+            case ExifTag.TYPE_UNDEFINED:
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+                byte[] bytes = new byte[count];
+                ByteBuffer source = data.duplicate();
+                source.position(offset);
+                source.get(bytes);
+                return bytes;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                long[] shorts = new long[count];
+                for (int i = 0; i < count; i++) {
+                    shorts[i] = data.getShort(offset + i * 2) & 0xffff;
+                }
+                return shorts;
+            case ExifTag.TYPE_UNSIGNED_LONG:
+            case ExifTag.TYPE_LONG:
+                long[] longs = new long[count];
+                for (int i = 0; i < count; i++) {
+                    int value = data.getInt(offset + i * 4);
+                    longs[i] = (type == ExifTag.TYPE_LONG) ? value : value & 0xffffffffL;
+                }
+                return longs;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+            case ExifTag.TYPE_RATIONAL:
+                Rational[] rationals = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    int numerator = data.getInt(offset + i * 8);
+                    int denominator = data.getInt(offset + i * 8 + 4);
+                    rationals[i] =
+                            (type == ExifTag.TYPE_RATIONAL)
+                                    ? new Rational(numerator, denominator)
+                                    : new Rational(
+                                            numerator & 0xffffffffL, denominator & 0xffffffffL);
+                }
+                return rationals;
+            default:
+                return null;
+        }
+    }
+}
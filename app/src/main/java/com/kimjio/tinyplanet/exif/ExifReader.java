@@ -0,0 +1,26 @@
+package com.kimjio.tinyplanet.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds an {@link ExifData} from an EXIF block with {@link ExifParser}.
+ *
+ * @see ExifInterface#readExif(ByteBuffer)
+ */
+class ExifReader {
+    private ExifReader() {}
+
+    /**
+     * Reads the tags of tiff, the TIFF data that follows "Exif\0\0" in a JPEG's APP1 segment. The
+     * values stay in tiff until they are read, so it must not change while the result is in use.
+     */
+    static ExifData read(ByteBuffer tiff) throws IOException {
+        ExifParser parser = new ExifParser(tiff);
+        ExifData data = new ExifData(parser.getByteOrder());
+        for (ExifTag tag = parser.next(); tag != null; tag = parser.next()) {
+            data.addTag(tag);
+        }
+        return data;
+    }
+}
@@ -18,6 +18,7 @@ package com.kimjio.tinyplanet.exif;
 
 import androidx.annotation.NonNull;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
@@ -98,6 +99,10 @@ public class ExifTag {
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
+    // The EXIF data the value is still to be decoded from, see setLazyValue.
+    private ByteBuffer mSource;
+    // Where the value starts in mSource.
+    private int mSourceOffset;
 
     private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("yyyy:MM:dd kk:mm:ss");
 
@@ -137,6 +142,27 @@ public class ExifTag {
         mValue = null;
     }
 
+    /**
+     * Sets the value to the one stored at offset in source, without decoding it. It is decoded
+     * the first time it is read, so values that are never looked at, like maker notes, cost
+     * nothing. Setting a value drops it.
+     *
+     * @param source the EXIF data, in its byte order. It must not change while the value is
+     *     pending.
+     */
+    void setLazyValue(ByteBuffer source, int offset) {
+        mValue = null;
+        mSource = source;
+        mSourceOffset = offset;
+    }
+
+    private void decodeLazyValue() {
+        if (mSource != null) {
+            mValue = ExifParser.readValue(mSource, mSourceOffset, mDataType, mComponentCountActual);
+            mSource = null;
+        }
+    }
+
     /**
      * Gets the element size of the given data type in bytes.
      *
@@ -216,7 +242,7 @@ public class ExifTag {
      * that is determined when the tag is written.
      */
     public boolean hasValue() {
-        return mValue != null;
+        return mValue != null || mSource != null;
     }
 
     /**
@@ -249,6 +275,7 @@ public class ExifTag {
         for (int i = 0; i < value.length; i++) {
             data[i] = value[i];
         }
+        mSource = null;
         mValue = data;
         mComponentCountActual = value.length;
         return true;
@@ -286,6 +313,7 @@ public class ExifTag {
         if (checkOverflowForUnsignedLong(value)) {
             return false;
         }
+        mSource = null;
         mValue = value;
         mComponentCountActual = value.length;
         return true;
@@ -339,6 +367,7 @@ public class ExifTag {
             return false;
         }
         mComponentCountActual = count;
+        mSource = null;
         mValue = finalBuf;
         return true;
     }
@@ -369,6 +398,7 @@ public class ExifTag {
             return false;
         }
 
+        mSource = null;
         mValue = value;
         mComponentCountActual = value.length;
         return true;
@@ -408,6 +438,7 @@ public class ExifTag {
         if (mDataType != TYPE_UNSIGNED_BYTE && mDataType != TYPE_UNDEFINED) {
             return false;
         }
+        mSource = null;
         mValue = new byte[length];
         System.arraycopy(value, offset, mValue, 0, length);
         mComponentCountActual = length;
@@ -524,6 +555,7 @@ public class ExifTag {
      *     converted to a String.
      */
     public String getValueAsString() {
+        decodeLazyValue();
         if (mValue == null) {
             return null;
         } else if (mValue instanceof String) {
@@ -557,6 +589,7 @@ public class ExifTag {
      *     converted to a byte array.
      */
     public byte[] getValueAsBytes() {
+        decodeLazyValue();
         if (mValue instanceof byte[]) {
             return (byte[]) mValue;
         }
@@ -588,6 +621,7 @@ public class ExifTag {
      *     cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
+        decodeLazyValue();
         if (mValue instanceof Rational[]) {
             return (Rational[]) mValue;
         }
@@ -633,6 +667,7 @@ public class ExifTag {
      *     be converted to an array of ints.
      */
     public int[] getValueAsInts() {
+        decodeLazyValue();
         if (mValue == null) {
             return null;
         } else if (mValue instanceof long[]) {
@@ -671,6 +706,7 @@ public class ExifTag {
      *     cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
+        decodeLazyValue();
         if (mValue instanceof long[]) {
             return (long[]) mValue;
         }
@@ -695,6 +731,7 @@ public class ExifTag {
 
     /** Gets the tag's value or null if none exists. */
     public Object getValue() {
+        decodeLazyValue();
         return mValue;
     }
 
@@ -723,6 +760,7 @@ public class ExifTag {
 
     /** Gets a string representation of the value. */
     public String forceGetValueAsString() {
+        decodeLazyValue();
         if (mValue == null) {
             return "";
         } else if (mValue instanceof byte[]) {
@@ -763,6 +801,7 @@ public class ExifTag {
      *     #TYPE_UNSIGNED_RATIONAL}.
      */
     protected long getValueAt(int index) {
+        decodeLazyValue();
         if (mValue instanceof long[]) {
             return ((long[]) mValue)[index];
         } else if (mValue instanceof byte[]) {
@@ -782,6 +821,7 @@ public class ExifTag {
             throw new IllegalArgumentException(
                     "Cannot get ASCII value from " + convertTypeToString(mDataType));
         }
+        decodeLazyValue();
         return new String((byte[]) mValue, US_ASCII);
     }
 
@@ -789,6 +829,7 @@ public class ExifTag {
      * Get the converted ascii byte. Used by ExifOutputStream.
      */
     protected byte[] getStringByte() {
+        decodeLazyValue();
         return (byte[]) mValue;
     }
 
@@ -803,6 +844,7 @@ public class ExifTag {
             throw new IllegalArgumentException(
                     "Cannot get RATIONAL value from " + convertTypeToString(mDataType));
         }
+        decodeLazyValue();
         return ((Rational[]) mValue)[index];
     }
 
@@ -826,6 +868,7 @@ public class ExifTag {
             throw new IllegalArgumentException(
                     "Cannot get BYTE value from " + convertTypeToString(mDataType));
         }
+        decodeLazyValue();
         System.arraycopy(
                 mValue,
                 0,
@@ -945,6 +988,8 @@ public class ExifTag {
                     || tag.mDataType != this.mDataType) {
                 return false;
             }
+            decodeLazyValue();
+            tag.decodeLazyValue();
             if (mValue != null) {
                 if (tag.mValue == null) {
                     return false;
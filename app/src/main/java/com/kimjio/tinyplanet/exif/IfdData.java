@@ -16,11 +16,12 @@
 
 package com.kimjio.tinyplanet.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * This class stores all the tags in an IFD.
+ * This class stores all the tags in an IFD. The tags are kept sorted by ID, the order the TIFF
+ * specification wants them written in, in plain arrays so that lookups do not box the ID and the
+ * writer can walk them by index.
  *
  * @see ExifData
  * @see ExifTag
@@ -28,7 +29,13 @@ import java.util.Map;
 class IfdData {
 
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** IDs of the tags, ascending as unsigned values; only the first mTagCount are used. */
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    /** The tags, in the order of {@link #mTagIds}. */
+    private ExifTag[] mTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
         IfdId.TYPE_IFD_0,
@@ -54,9 +61,17 @@ class IfdData {
         return sIfds;
     }
 
-    /** Get a array the contains all {@link ExifTag} in this IFD. */
+    /** Get a array the contains all {@link ExifTag} in this IFD, sorted by tag ID. */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mTags, mTagCount);
+    }
+
+    /**
+     * Gets the tag at index, 0 to {@link #getTagCount()} - 1, in ascending tag ID order. Walks
+     * the tags without copying them; the indices shift when tags are added or removed.
+     */
+    protected ExifTag getTagAt(int index) {
+        return mTags[index];
     }
 
     /**
@@ -74,27 +89,73 @@ class IfdData {
 
     /** Gets the {@link ExifTag} with given tag id. Return null if there is no such tag. */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return (index >= 0) ? mTags[index] : null;
     }
 
-    /** Adds or replaces a {@link ExifTag}. */
+    /** Adds or replaces a {@link ExifTag}. Returns the replaced tag or null. */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int index = indexOf(tag.getTagId());
+        if (index >= 0) {
+            ExifTag previous = mTags[index];
+            mTags[index] = tag;
+            return previous;
+        }
+        index = -index - 1;
+        if (mTagCount == mTagIds.length) {
+            mTagIds = Arrays.copyOf(mTagIds, mTagCount * 2);
+            mTags = Arrays.copyOf(mTags, mTagCount * 2);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mTags, index, mTags, index + 1, mTagCount - index);
+        mTagIds[index] = tag.getTagId();
+        mTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /** Removes the tag of the given ID */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mTags, index + 1, mTags, index, mTagCount - index);
+        mTags[mTagCount] = null;
     }
 
     /** Gets the tags count in the IFD. */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Binary search for tagId, comparing IDs as unsigned. Returns its index, or -(insertion point)
+     * - 1 if there is no such tag.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int low = 0;
+        int high = mTagCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     /** Sets the offset of next IFD. */
@@ -122,12 +183,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0; i < data.getTagCount(); i++) {
+                    ExifTag tag = data.getTagAt(i);
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
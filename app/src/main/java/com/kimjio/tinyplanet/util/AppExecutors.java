@@ -0,0 +1,118 @@
+package com.kimjio.tinyplanet.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application wide executors, so background work shares a few long-lived threads instead of
+ * creating new ones per task.
+ *
+ * <ul>
+ *   <li>{@link #render()}: CPU bound work such as tiny planet rendering, one thread per core.
+ *   <li>{@link #io()}: disk and MediaStore work, one thread so saves run in order.
+ *   <li>{@link #encode()}: encodes the strips of a save while the next ones render, one thread
+ *       so they are written in order. Saves already hold the IO thread while they do so.
+ *   <li>{@link #mainThread()}: posts to the UI thread.
+ * </ul>
+ *
+ * Idle pool threads time out, so the executors cost nothing while the app is idle.
+ */
+public class AppExecutors {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static AppExecutors sInstance;
+
+    /** Creates the executors. Must be called from the application's {@code onCreate}. */
+    public static void initialize() {
+        if (sInstance == null) {
+            sInstance = new AppExecutors();
+        }
+    }
+
+    /** Return a previously initialized instance, throw if it has not been initialized yet. */
+    public static AppExecutors instance() {
+        if (sInstance == null) {
+            throw new IllegalStateException("AppExecutors was not initialized.");
+        }
+        return sInstance;
+    }
+
+    private final ExecutorService mRenderExecutor;
+    private final ExecutorService mIoExecutor;
+    private final ExecutorService mEncodeExecutor;
+    private final Executor mMainThreadExecutor;
+
+    private AppExecutors() {
+        mRenderExecutor =
+                newPool(Runtime.getRuntime().availableProcessors(), "tinyplanet-render");
+        mIoExecutor = newPool(1, "tinyplanet-io");
+        mEncodeExecutor = newPool(1, "tinyplanet-encode");
+        Handler handler = new Handler(Looper.getMainLooper());
+        mMainThreadExecutor = handler::post;
+    }
+
+    private static ExecutorService newPool(int threads, String name) {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new NamedThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public ExecutorService render() {
+        return mRenderExecutor;
+    }
+
+    public ExecutorService io() {
+        return mIoExecutor;
+    }
+
+    public ExecutorService encode() {
+        return mEncodeExecutor;
+    }
+
+    public Executor mainThread() {
+        return mMainThreadExecutor;
+    }
+
+    /**
+     * Stops the executors. Pending renders are dropped and running ones interrupted; saves that
+     * were already queued still run to completion.
+     */
+    public void shutdown() {
+        mRenderExecutor.shutdownNow();
+        mIoExecutor.shutdown();
+        mEncodeExecutor.shutdown();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.kimjio.tinyplanet.util;
+
+import com.adobe.internal.xmp.XMPMeta;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the header of a JPEG stream in one buffered pass, up to the start of the scan data, and
+ * collects the XMP and EXIF sections and the frame size on the way.
+ *
+ * <p>The header bytes are kept, so the same stream can be decoded afterwards through {@link
+ * Header#openImageStream()} without opening the source a second time or reading the header twice:
+ *
+ * <pre>
+ * JpegHeaderScanner.Header header = JpegHeaderScanner.scan(is);
+ * XMPMeta xmp = header.getXMPMeta();
+ * Bitmap bitmap = BitmapFactory.decodeStream(header.openImageStream());
+ * </pre>
+ *
+ * Streams that are not JPEG, or are cut short, are not an error: the header then has no metadata
+ * and {@link Header#openImageStream()} still replays everything that was read.
+ */
+public class JpegHeaderScanner {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_HEADER_SIZE = 8 * 1024;
+
+    private static final int M_SOI = 0xd8;
+    private static final int M_APP1 = 0xe1;
+    private static final int M_SOS = 0xda;
+    private static final int M_EOI = 0xd9;
+    private static final int M_SOF0 = 0xc0;
+    private static final int M_SOF15 = 0xcf;
+    private static final int M_DHT = 0xc4;
+    private static final int M_JPG = 0xc8;
+    private static final int M_DAC = 0xcc;
+
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    /** What was found in the header of a JPEG stream. */
+    public static final class Header {
+        private final InputStream mRest;
+        private byte[] mBytes = new byte[INITIAL_HEADER_SIZE];
+        private int mLength;
+        private byte[] mXmp;
+        private final XmpUtil.ExtendedXMPReader mExtendedXmp = new XmpUtil.ExtendedXMPReader();
+        private byte[] mExif;
+        private int mWidth;
+        private int mHeight;
+
+        private Header(InputStream rest) {
+            mRest = rest;
+        }
+
+        /**
+         * The parsed XMP section, merged with its extended XMP, or null if there is none or it does
+         * not parse.
+         */
+        public XMPMeta getXMPMeta() {
+            return mXmp == null ? null : XmpUtil.parseXMPSection(mXmp, mExtendedXmp);
+        }
+
+        /**
+         * The GPano crop properties, read without parsing the XMP where possible, or {@link
+         * PanoInfo#NONE} if there are none.
+         */
+        public PanoInfo getPanoInfo() {
+            return mXmp == null ? PanoInfo.NONE : XmpUtil.parsePanoInfo(mXmp, mExtendedXmp);
+        }
+
+        /** The EXIF section, starting with the TIFF header, or null if there is none. */
+        public byte[] getExif() {
+            return mExif;
+        }
+
+        /** Whether a frame header was found, i.e. {@link #getWidth()} is known. */
+        public boolean hasSize() {
+            return mWidth > 0 && mHeight > 0;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Returns the whole stream again, from its first byte: the header bytes that were scanned
+         * followed by the rest of the scanned stream. Can only be read once, and closing it closes
+         * the scanned stream.
+         */
+        public InputStream openImageStream() {
+            return new SequenceInputStream(new ByteArrayInputStream(mBytes, 0, mLength), mRest);
+        }
+
+        /** Reads count bytes from the stream into the header and returns their offset. */
+        private int append(int count) throws IOException {
+            if (mLength + count > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + count));
+            }
+            int offset = mLength;
+            while (count > 0) {
+                int read = mRest.read(mBytes, mLength, count);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                mLength += read;
+                count -= read;
+            }
+            return offset;
+        }
+
+        private int appendByte() throws IOException {
+            // append() may grow mBytes, so index it only afterwards.
+            int offset = append(1);
+            return mBytes[offset] & 0xff;
+        }
+
+        private int readUnsignedShort(int offset) {
+            return (mBytes[offset] & 0xff) << 8 | (mBytes[offset + 1] & 0xff);
+        }
+
+        private boolean startsWith(int offset, int length, byte[] prefix) {
+            if (length < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (mBytes[offset + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Scans the header of a JPEG stream, stopping right after the start of scan marker. Unbuffered
+     * streams are buffered first; use {@link Header#openImageStream()} rather than {@code is} to
+     * read on.
+     *
+     * @param is the stream to scan, positioned at the start of the file.
+     * @return the header, never null.
+     * @throws IOException if reading the stream fails.
+     */
+    public static Header scan(InputStream is) throws IOException {
+        if (!(is instanceof BufferedInputStream)) {
+            is = new BufferedInputStream(is, BUFFER_SIZE);
+        }
+        Header header = new Header(is);
+        try {
+            scanSections(header);
+        } catch (EOFException e) {
+            // Truncated; keep what was found.
+        }
+        return header;
+    }
+
+    private static void scanSections(Header header) throws IOException {
+        if (header.appendByte() != 0xff || header.appendByte() != M_SOI) {
+            return;
+        }
+        while (true) {
+            if (header.appendByte() != 0xff) {
+                return;
+            }
+            int marker;
+            // Skip padding bytes.
+            while ((marker = header.appendByte()) == 0xff) {}
+            if (marker == M_SOS || marker == M_EOI) {
+                // No metadata past this point.
+                return;
+            }
+            int lengthOffset = header.append(2);
+            int length = header.readUnsignedShort(lengthOffset) - 2;
+            if (length < 0) {
+                return;
+            }
+            int offset = header.append(length);
+            if (marker == M_APP1) {
+                if (header.mXmp == null && XmpUtil.hasXMPHeader(header.mBytes, offset, length)) {
+                    header.mXmp = Arrays.copyOfRange(header.mBytes, offset, offset + length);
+                } else if (!header.mExtendedXmp.addSection(header.mBytes, offset, length)
+                        && header.mExif == null
+                        && header.startsWith(offset, length, EXIF_HEADER)) {
+                    header.mExif =
+                            Arrays.copyOfRange(
+                                    header.mBytes, offset + EXIF_HEADER.length, offset + length);
+                }
+            } else if (isSofMarker(marker) && length >= 5 && !header.hasSize()) {
+                // Precision, then height and width.
+                header.mHeight = header.readUnsignedShort(offset + 1);
+                header.mWidth = header.readUnsignedShort(offset + 3);
+            }
+        }
+    }
+
+    private static boolean isSofMarker(int marker) {
+        return marker >= M_SOF0
+                && marker <= M_SOF15
+                && marker != M_DHT
+                && marker != M_JPG
+                && marker != M_DAC;
+    }
+
+    private JpegHeaderScanner() {}
+}
@@ -0,0 +1,214 @@
+package com.kimjio.tinyplanet.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The marker segments of a JPEG file up to its scan, indexed over a read-only mapping of the file.
+ * Only where each segment is and how long it is are recorded; payloads are slices of the mapping,
+ * so reading metadata or copying segments to another file does not copy them through the heap.
+ * Only the metadata is mapped. The entropy-coded scan, from {@link #getScanOffset()} to the end of
+ * the file, is left to {@link FileChannel#transferTo}.
+ */
+public final class JpegSegmentIndex {
+    public static final int M_APP1 = 0xe1;
+
+    private static final int M_SOI = 0xd8;
+    private static final int M_SOS = 0xda;
+    private static final int M_EOI = 0xd9;
+    /** The file is first mapped this far, and the mapping doubles while segments go past it. */
+    private static final int INITIAL_MAPPING_SIZE = 64 * 1024;
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    /** A marker segment: its marker and where its payload, after the length, is in the file. */
+    public static final class Segment {
+        private final int mMarker;
+        private final int mOffset;
+        private final int mLength;
+
+        private Segment(int marker, int offset, int length) {
+            mMarker = marker;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        /** The marker, without the 0xff before it, e.g. {@link #M_APP1}. */
+        public int getMarker() {
+            return mMarker;
+        }
+
+        /** Where the payload starts in the file. */
+        public int getOffset() {
+            return mOffset;
+        }
+
+        /** The length of the payload, not counting the marker and the length field. */
+        public int getLength() {
+            return mLength;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMapping;
+    private final List<Segment> mSegments;
+    private final int mScanOffset;
+
+    private JpegSegmentIndex(
+            FileChannel channel, MappedByteBuffer mapping, List<Segment> segments, int scanOffset) {
+        mChannel = channel;
+        mMapping = mapping;
+        mSegments = segments;
+        mScanOffset = scanOffset;
+    }
+
+    /**
+     * Indexes the segments of the JPEG file open in channel. The index reads through channel, so
+     * it must stay open while the index is used.
+     *
+     * @throws IOException if the file is not a JPEG or ends before its scan.
+     */
+    public static JpegSegmentIndex read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer mapping = map(channel, Math.min(size, INITIAL_MAPPING_SIZE));
+        if (mapping.limit() < 2
+                || (mapping.get(0) & 0xff) != 0xff
+                || (mapping.get(1) & 0xff) != M_SOI) {
+            throw new IOException("Not a JPEG file");
+        }
+        List<Segment> segments = new ArrayList<>();
+        int position = 2;
+        while (true) {
+            mapping = mapAtLeast(channel, mapping, position + 4, size);
+            if ((mapping.get(position) & 0xff) != 0xff) {
+                throw new IOException("No marker at " + position);
+            }
+            int markerStart = position;
+            // Skip fill bytes.
+            int marker;
+            do {
+                position++;
+                mapping = mapAtLeast(channel, mapping, position + 3, size);
+                marker = mapping.get(position) & 0xff;
+            } while (marker == 0xff);
+            if (marker == M_SOS) {
+                return new JpegSegmentIndex(
+                        channel, mapping, Collections.unmodifiableList(segments), markerStart);
+            }
+            if (marker == M_EOI) {
+                throw new IOException("No scan before the end of the image");
+            }
+            int length = (mapping.get(position + 1) & 0xff) << 8 | (mapping.get(position + 2) & 0xff);
+            if (length < 2) {
+                throw new IOException("Invalid segment length at " + position);
+            }
+            int offset = position + 3;
+            segments.add(new Segment(marker, offset, length - 2));
+            position = offset + length - 2;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /** Returns a mapping of at least the first end bytes, or throws if the file is shorter. */
+    private static MappedByteBuffer mapAtLeast(
+            FileChannel channel, MappedByteBuffer mapping, long end, long size) throws IOException {
+        if (end <= mapping.limit()) {
+            return mapping;
+        }
+        if (end > size) {
+            throw new IOException("File ends before its scan");
+        }
+        long mappingSize = mapping.limit();
+        while (mappingSize < end) {
+            mappingSize *= 2;
+        }
+        if (mappingSize > Integer.MAX_VALUE) {
+            throw new IOException("Metadata too large to map");
+        }
+        return map(channel, Math.min(mappingSize, size));
+    }
+
+    /** The segments before the scan, in file order. */
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    /** Where the scan starts, at its SOS marker. From here on the file is only ever copied. */
+    public int getScanOffset() {
+        return mScanOffset;
+    }
+
+    /** The payload of segment, read straight from the mapping. */
+    public ByteBuffer getPayload(Segment segment) {
+        ByteBuffer payload = mMapping.duplicate();
+        payload.limit(segment.mOffset + segment.mLength);
+        payload.position(segment.mOffset);
+        return payload.slice();
+    }
+
+    /** Whether the payload of segment starts with prefix. */
+    public boolean startsWith(Segment segment, byte[] prefix) {
+        if (segment.mLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mMapping.get(segment.mOffset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The EXIF block of the first EXIF APP1 segment, the TIFF data after its "Exif\0\0" header,
+     * for {@link com.kimjio.tinyplanet.exif.ExifInterface#readExif(ByteBuffer)}; or null if there
+     * is none.
+     */
+    public ByteBuffer getExif() {
+        for (Segment segment : mSegments) {
+            if (segment.mMarker == M_APP1 && startsWith(segment, EXIF_HEADER)) {
+                ByteBuffer payload = getPayload(segment);
+                payload.position(EXIF_HEADER.length);
+                return payload.slice();
+            }
+        }
+        return null;
+    }
+
+    /** Writes segment, marker and length included, to out. */
+    public void writeSegment(Segment segment, WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.put((byte) 0xff).put((byte) segment.mMarker).putShort((short) (segment.mLength + 2));
+        header.flip();
+        writeFully(header, out);
+        writeFully(getPayload(segment), out);
+    }
+
+    /** Copies the scan, from its SOS marker to the end of the file, to out. */
+    public void transferScan(WritableByteChannel out) throws IOException {
+        long position = mScanOffset;
+        long end = mChannel.size();
+        while (position < end) {
+            long transferred = mChannel.transferTo(position, end - position, out);
+            if (transferred <= 0) {
+                throw new IOException("Could not copy the scan at " + position);
+            }
+            position += transferred;
+        }
+    }
+
+    static void writeFully(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.kimjio.tinyplanet.util;
+
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+
+/**
+ * The GPano properties that place a cropped panorama in its full 360x180 degree pano. Missing
+ * properties are 0.
+ */
+public final class PanoInfo {
+    public static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
+
+    static final String CROPPED_AREA_IMAGE_WIDTH_PIXELS = "CroppedAreaImageWidthPixels";
+    static final String CROPPED_AREA_IMAGE_HEIGHT_PIXELS = "CroppedAreaImageHeightPixels";
+    static final String FULL_PANO_WIDTH_PIXELS = "FullPanoWidthPixels";
+    static final String FULL_PANO_HEIGHT_PIXELS = "FullPanoHeightPixels";
+    static final String CROPPED_AREA_LEFT_PIXELS = "CroppedAreaLeftPixels";
+    static final String CROPPED_AREA_TOP_PIXELS = "CroppedAreaTopPixels";
+
+    /** The properties, in the order of the constructor arguments. */
+    static final String[] PROPERTIES = {
+        CROPPED_AREA_IMAGE_WIDTH_PIXELS,
+        CROPPED_AREA_IMAGE_HEIGHT_PIXELS,
+        FULL_PANO_WIDTH_PIXELS,
+        FULL_PANO_HEIGHT_PIXELS,
+        CROPPED_AREA_LEFT_PIXELS,
+        CROPPED_AREA_TOP_PIXELS
+    };
+
+    /** No GPano properties at all. */
+    public static final PanoInfo NONE = new PanoInfo(0, 0, 0, 0, 0, 0);
+
+    private final int mCroppedAreaWidth;
+    private final int mCroppedAreaHeight;
+    private final int mFullPanoWidth;
+    private final int mFullPanoHeight;
+    private final int mCroppedAreaLeft;
+    private final int mCroppedAreaTop;
+
+    PanoInfo(
+            int croppedAreaWidth,
+            int croppedAreaHeight,
+            int fullPanoWidth,
+            int fullPanoHeight,
+            int croppedAreaLeft,
+            int croppedAreaTop) {
+        mCroppedAreaWidth = croppedAreaWidth;
+        mCroppedAreaHeight = croppedAreaHeight;
+        mFullPanoWidth = fullPanoWidth;
+        mFullPanoHeight = fullPanoHeight;
+        mCroppedAreaLeft = croppedAreaLeft;
+        mCroppedAreaTop = croppedAreaTop;
+    }
+
+    /** Creates the info from values in {@link #PROPERTIES} order. */
+    static PanoInfo of(int[] values) {
+        return new PanoInfo(values[0], values[1], values[2], values[3], values[4], values[5]);
+    }
+
+    /**
+     * Reads the properties from parsed XMP.
+     *
+     * @return the info, {@link #NONE} if xmp is null or a property is not an integer.
+     */
+    public static PanoInfo fromXMPMeta(XMPMeta xmp) {
+        if (xmp == null) {
+            return NONE;
+        }
+        int[] values = new int[PROPERTIES.length];
+        try {
+            for (int i = 0; i < PROPERTIES.length; i++) {
+                if (xmp.doesPropertyExist(GOOGLE_PANO_NAMESPACE, PROPERTIES[i])) {
+                    values[i] = xmp.getPropertyInteger(GOOGLE_PANO_NAMESPACE, PROPERTIES[i]);
+                }
+            }
+        } catch (XMPException e) {
+            return NONE;
+        }
+        return of(values);
+    }
+
+    /** Whether the full pano size is known, i.e. the image can be padded to it. */
+    public boolean hasFullPanoSize() {
+        return mFullPanoWidth > 0 && mFullPanoHeight > 0;
+    }
+
+    public int getCroppedAreaWidth() {
+        return mCroppedAreaWidth;
+    }
+
+    public int getCroppedAreaHeight() {
+        return mCroppedAreaHeight;
+    }
+
+    public int getFullPanoWidth() {
+        return mFullPanoWidth;
+    }
+
+    public int getFullPanoHeight() {
+        return mFullPanoHeight;
+    }
+
+    public int getCroppedAreaLeft() {
+        return mCroppedAreaLeft;
+    }
+
+    public int getCroppedAreaTop() {
+        return mCroppedAreaTop;
+    }
+
+    @Override
+    public String toString() {
+        return "PanoInfo{crop="
+                + mCroppedAreaWidth
+                + "x"
+                + mCroppedAreaHeight
+                + "+"
+                + mCroppedAreaLeft
+                + "+"
+                + mCroppedAreaTop
+                + ", full="
+                + mFullPanoWidth
+                + "x"
+                + mFullPanoHeight
+                + "}";
+    }
+}
@@ -18,25 +18,42 @@ package com.kimjio.tinyplanet.util;
 
 import android.util.Log;
 
+import com.adobe.internal.xmp.XMPConst;
 import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPIterator;
 import com.adobe.internal.xmp.XMPMeta;
 import com.adobe.internal.xmp.XMPMetaFactory;
+import com.adobe.internal.xmp.XMPUtils;
+import com.adobe.internal.xmp.options.IteratorOptions;
 import com.adobe.internal.xmp.options.SerializeOptions;
+import com.adobe.internal.xmp.properties.XMPPropertyInfo;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Util class to read/write xmp from a jpeg image file. It only supports jpeg image format, and
- * doesn't support extended xmp now. To use it: XMPMeta xmpMeta =
- * XmpUtil.extractOrCreateXMPMeta(filename);
+ * Util class to read/write xmp from a jpeg image file. It only supports jpeg image format. Packets
+ * too large for one APP1 section are read from and written to extended XMP sections. To use it:
+ * XMPMeta xmpMeta = XmpUtil.extractOrCreateXMPMeta(filename);
  * xmpMeta.setProperty(PanoConstants.GOOGLE_PANO_NAMESPACE, "property_name", "value");
  * XmpUtil.writeXMPMeta(filename, xmpMeta);
  *
@@ -48,10 +65,30 @@ public class XmpUtil {
     private static final String TAG = "XmpUtil";
     private static final int XMP_HEADER_SIZE = 29;
     private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final byte[] XMP_HEADER_BYTES = XMP_HEADER.getBytes(StandardCharsets.US_ASCII);
     private static final int MAX_XMP_BUFFER_SIZE = 65502;
+    // Padding left in each new XMP packet, so that later updates can be written in place.
+    private static final int XMP_PADDING = 2048;
 
-    private static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
+    // An extended XMP section holds a chunk of the extension packet, after a header, the GUID of
+    // the packet, the full packet length and the offset of the chunk.
+    private static final String EXTENDED_XMP_HEADER = "http://ns.adobe.com/xmp/extension/\0";
+    private static final byte[] EXTENDED_XMP_HEADER_BYTES =
+            EXTENDED_XMP_HEADER.getBytes(StandardCharsets.US_ASCII);
+    private static final int EXTENDED_XMP_HEADER_SIZE = 35;
+    private static final int GUID_SIZE = 32;
+    private static final int EXTENDED_XMP_PREFIX_SIZE = EXTENDED_XMP_HEADER_SIZE + GUID_SIZE + 8;
+    private static final int MAX_EXTENDED_XMP_CHUNK_SIZE = 0xffff - 2 - EXTENDED_XMP_PREFIX_SIZE;
+    // Larger extensions are not reassembled, whatever their sections claim.
+    private static final int MAX_EXTENDED_XMP_SIZE = 64 * 1024 * 1024;
+    private static final String HAS_EXTENDED_XMP = "HasExtendedXMP";
+
+    private static final String GOOGLE_PANO_NAMESPACE = PanoInfo.GOOGLE_PANO_NAMESPACE;
+    private static final byte[] GOOGLE_PANO_NAMESPACE_BYTES =
+            GOOGLE_PANO_NAMESPACE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] XMLNS_BYTES = "xmlns:".getBytes(StandardCharsets.US_ASCII);
     private static final String PANO_PREFIX = "GPano";
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
 
     private static final int M_SOI = 0xd8; // File start marker.
     private static final int M_APP1 = 0xe1; // Marker for Exif or XMP.
@@ -63,6 +100,140 @@ public class XmpUtil {
         public int marker;
         public int length;
         public byte[] data;
+
+        void writeData(OutputStream os) throws IOException {
+            os.write(data);
+        }
+    }
+
+    // A chunk of an extended XMP packet, written straight from the serialized packet.
+    private static class ExtendedXMPSection extends Section {
+        public byte[] guid;
+        public byte[] packet;
+        public int offset;
+
+        ExtendedXMPSection(byte[] guid, byte[] packet, int offset) {
+            this.guid = guid;
+            this.packet = packet;
+            this.offset = offset;
+            marker = M_APP1;
+            length = 2 + EXTENDED_XMP_PREFIX_SIZE + chunkLength();
+        }
+
+        private int chunkLength() {
+            return Math.min(MAX_EXTENDED_XMP_CHUNK_SIZE, packet.length - offset);
+        }
+
+        @Override
+        void writeData(OutputStream os) throws IOException {
+            os.write(EXTENDED_XMP_HEADER_BYTES);
+            os.write(guid);
+            writeInt(os, packet.length);
+            writeInt(os, offset);
+            os.write(packet, offset, chunkLength());
+        }
+
+        private static void writeInt(OutputStream os, int value) throws IOException {
+            os.write(value >>> 24);
+            os.write(value >>> 16);
+            os.write(value >>> 8);
+            os.write(value);
+        }
+    }
+
+    /**
+     * Reassembles the extended XMP packets of a file from their sections, which may come in any
+     * order. Each packet goes into a buffer of its full size, allocated with its first chunk.
+     */
+    static final class ExtendedXMPReader {
+        private static final class Packet {
+            final byte[] data;
+            /** The bytes received so far; chunks may repeat or overlap. */
+            final BitSet received;
+
+            Packet(int length) {
+                data = new byte[length];
+                received = new BitSet(length);
+            }
+        }
+
+        private final Map<String, Packet> mPackets = new HashMap<>();
+
+        /**
+         * Takes the chunk in an APP1 section if it is an extended XMP section.
+         *
+         * @return whether the section was an extended XMP section.
+         */
+        boolean addSection(byte[] data, int offset, int length) {
+            return addSection(ByteBuffer.wrap(data, offset, length));
+        }
+
+        /**
+         * Takes the chunk in the APP1 section data from its position to its limit, which may be a
+         * slice of a mapped file, if it is an extended XMP section. The chunk is copied straight
+         * into its packet.
+         *
+         * @return whether the section was an extended XMP section.
+         */
+        boolean addSection(ByteBuffer data) {
+            int offset = data.position();
+            int length = data.remaining();
+            if (length < EXTENDED_XMP_PREFIX_SIZE || !startsWith(data, EXTENDED_XMP_HEADER_BYTES)) {
+                return false;
+            }
+            int position = offset + EXTENDED_XMP_HEADER_SIZE;
+            byte[] guidBytes = new byte[GUID_SIZE];
+            for (int i = 0; i < GUID_SIZE; i++) {
+                guidBytes[i] = data.get(position + i);
+            }
+            String guid = new String(guidBytes, StandardCharsets.US_ASCII);
+            position += GUID_SIZE;
+            int fullLength = readInt(data, position);
+            int chunkOffset = readInt(data, position + 4);
+            position += 8;
+            int chunkLength = length - EXTENDED_XMP_PREFIX_SIZE;
+            if (fullLength <= 0
+                    || fullLength > MAX_EXTENDED_XMP_SIZE
+                    || chunkOffset < 0
+                    || chunkOffset > fullLength - chunkLength) {
+                Log.d(TAG, "Ignoring malformed extended XMP section");
+                return true;
+            }
+            Packet packet = mPackets.get(guid);
+            if (packet == null) {
+                packet = new Packet(fullLength);
+                mPackets.put(guid, packet);
+            } else if (packet.data.length != fullLength) {
+                Log.d(TAG, "Ignoring extended XMP section with inconsistent length");
+                return true;
+            }
+            ByteBuffer chunk = data.duplicate();
+            chunk.position(position);
+            chunk.get(packet.data, chunkOffset, chunkLength);
+            packet.received.set(chunkOffset, chunkOffset + chunkLength);
+            return true;
+        }
+
+        /** Whether no extended XMP section was added. */
+        boolean isEmpty() {
+            return mPackets.isEmpty();
+        }
+
+        /** Returns the packet with the given GUID, or null if it is missing or incomplete. */
+        byte[] getPacket(String guid) {
+            Packet packet = guid == null ? null : mPackets.get(guid);
+            if (packet == null || packet.received.nextClearBit(0) < packet.data.length) {
+                return null;
+            }
+            return packet.data;
+        }
+
+        private static int readInt(ByteBuffer data, int offset) {
+            return (data.get(offset) & 0xff) << 24
+                    | (data.get(offset + 1) & 0xff) << 16
+                    | (data.get(offset + 2) & 0xff) << 8
+                    | (data.get(offset + 3) & 0xff);
+        }
     }
 
     static {
@@ -75,7 +246,8 @@ public class XmpUtil {
     }
 
     /**
-     * Extracts XMPMeta from JPEG image file.
+     * Extracts XMPMeta from JPEG image file. The file's metadata is mapped rather than read, see
+     * {@link JpegSegmentIndex}, and the image data is not touched.
      *
      * @param filename JPEG image file name.
      * @return Extracted XMPMeta or null.
@@ -86,11 +258,28 @@ public class XmpUtil {
             return null;
         }
 
-        try {
-            return extractXMPMeta(new FileInputStream(filename));
+        try (FileInputStream is = new FileInputStream(filename)) {
+            JpegSegmentIndex index = JpegSegmentIndex.read(is.getChannel());
+            byte[] xmp = null;
+            ExtendedXMPReader extended = new ExtendedXMPReader();
+            for (JpegSegmentIndex.Segment segment : index.getSegments()) {
+                if (segment.getMarker() != M_APP1) {
+                    continue;
+                }
+                if (xmp == null && index.startsWith(segment, XMP_HEADER_BYTES)) {
+                    xmp = new byte[segment.getLength()];
+                    index.getPayload(segment).get(xmp);
+                } else {
+                    extended.addSection(index.getPayload(segment));
+                }
+            }
+            return xmp == null ? null : parseXMPSection(xmp, extended);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Could not read file: " + filename, e);
             return null;
+        } catch (IOException e) {
+            Log.d(TAG, "Could not parse file.", e);
+            return null;
         }
     }
 
@@ -101,26 +290,279 @@ public class XmpUtil {
      * @return Extracted XMPMeta or null.
      */
     public static XMPMeta extractXMPMeta(InputStream is) {
-        List<Section> sections = parse(is, true);
-        if (sections == null) {
+        try {
+            return JpegHeaderScanner.scan(is).getXMPMeta();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not parse file.", e);
             return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
         }
-        // Now we don't support extended xmp.
-        for (Section section : sections) {
-            if (hasXMPHeader(section.data)) {
-                int end = getXMPContentEnd(section.data);
-                byte[] buffer = new byte[end - XMP_HEADER_SIZE];
-                System.arraycopy(section.data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
-                try {
-                    XMPMeta result = XMPMetaFactory.parseFromBuffer(buffer);
-                    return result;
-                } catch (XMPException e) {
-                    Log.d(TAG, "XMP parse error", e);
+    }
+
+    /**
+     * Parses the XMP of an APP1 section, merged with its extension if there is one.
+     *
+     * @param data the section data, starting with XMP_HEADER.
+     * @param extended the extended XMP sections of the same file, or null.
+     * @return Parsed XMPMeta or null.
+     */
+    static XMPMeta parseXMPSection(byte[] data, ExtendedXMPReader extended) {
+        int end = getXMPContentEnd(data);
+        byte[] buffer = new byte[end - XMP_HEADER_SIZE];
+        System.arraycopy(data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
+        XMPMeta meta;
+        try {
+            meta = XMPMetaFactory.parseFromBuffer(buffer);
+        } catch (XMPException e) {
+            Log.d(TAG, "XMP parse error", e);
+            return null;
+        }
+        if (extended == null) {
+            return meta;
+        }
+        try {
+            byte[] packet =
+                    extended.getPacket(meta.getPropertyString(XMPConst.NS_XMP_NOTE, HAS_EXTENDED_XMP));
+            if (packet != null) {
+                XMPUtils.appendProperties(
+                        XMPMetaFactory.parseFromBuffer(packet), meta, true, true);
+                meta.deleteProperty(XMPConst.NS_XMP_NOTE, HAS_EXTENDED_XMP);
+            }
+        } catch (XMPException e) {
+            // The main packet is still good.
+            Log.d(TAG, "Extended XMP parse error", e);
+        }
+        return meta;
+    }
+
+    /**
+     * Extracts the GPano crop properties from a JPEG image file stream, without parsing the whole
+     * XMP packet where possible.
+     *
+     * @param is the input stream containing the JPEG image file.
+     * @return the properties, {@link PanoInfo#NONE} if there are none or the stream can't be read.
+     */
+    public static PanoInfo extractPanoInfo(InputStream is) {
+        try {
+            return JpegHeaderScanner.scan(is).getPanoInfo();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not parse file.", e);
+            return PanoInfo.NONE;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Reads the GPano crop properties of an APP1 section. The packet is scanned for them as bytes,
+     * which covers the attribute and simple element forms cameras write; anything else falls back
+     * to parsing the packet with XMPCore.
+     *
+     * @param data the section data, starting with XMP_HEADER.
+     * @param extended the extended XMP sections of the same file, or null.
+     */
+    static PanoInfo parsePanoInfo(byte[] data, ExtendedXMPReader extended) {
+        boolean hasExtension = extended != null && !extended.isEmpty();
+        PanoInfo info = scanPanoInfo(data, XMP_HEADER_SIZE, getXMPContentEnd(data), hasExtension);
+        if (info != null) {
+            return info;
+        }
+        return PanoInfo.fromXMPMeta(parseXMPSection(data, extended));
+    }
+
+    /**
+     * Looks for the GPano properties in data[start, end) without an XML parser.
+     *
+     * @return the properties, or null if the packet has to be parsed properly to be sure.
+     */
+    private static PanoInfo scanPanoInfo(
+            byte[] data, int start, int end, boolean hasExtension) {
+        String prefix = null;
+        int from = start;
+        int at;
+        while ((at = indexOf(data, from, end, GOOGLE_PANO_NAMESPACE_BYTES)) >= 0) {
+            String declared = getDeclaredPrefix(data, start, at);
+            if (declared == null || (prefix != null && !prefix.equals(declared))) {
+                // A default namespace, or the namespace under several prefixes.
+                return null;
+            }
+            prefix = declared;
+            from = at + GOOGLE_PANO_NAMESPACE_BYTES.length;
+        }
+        if (prefix == null) {
+            // No GPano here, but there might be some in the extension.
+            return hasExtension ? null : PanoInfo.NONE;
+        }
+
+        int[] values = new int[PanoInfo.PROPERTIES.length];
+        for (int i = 0; i < values.length; i++) {
+            byte[] name = (prefix + ':' + PanoInfo.PROPERTIES[i]).getBytes(StandardCharsets.US_ASCII);
+            int position = indexOfName(data, start, end, name);
+            if (position < 0) {
+                if (hasExtension) {
+                    return null;
+                }
+                continue;
+            }
+            int valueStart;
+            int valueEnd;
+            if (data[position - 1] == '<') {
+                // <GPano:Name>value</GPano:Name>
+                valueStart = position + name.length;
+                if (valueStart >= end || data[valueStart] != '>') {
+                    return null;
+                }
+                valueStart++;
+                valueEnd = indexOf(data, valueStart, end, (byte) '<');
+            } else {
+                // GPano:Name="value"
+                valueStart = skipWhitespace(data, position + name.length, end);
+                if (valueStart >= end || data[valueStart] != '=') {
                     return null;
                 }
+                valueStart = skipWhitespace(data, valueStart + 1, end);
+                if (valueStart >= end || (data[valueStart] != '"' && data[valueStart] != '\'')) {
+                    return null;
+                }
+                valueEnd = indexOf(data, valueStart + 1, end, data[valueStart]);
+                valueStart++;
+            }
+            if (valueEnd < 0) {
+                return null;
+            }
+            Integer value = parseInt(data, valueStart, valueEnd);
+            if (value == null) {
+                return null;
+            }
+            values[i] = value;
+        }
+        return PanoInfo.of(values);
+    }
+
+    /**
+     * Returns the prefix declared for the namespace URI at data[at], or null if it is not in an
+     * xmlns:prefix="..." declaration.
+     */
+    private static String getDeclaredPrefix(byte[] data, int start, int at) {
+        int i = at - 1;
+        if (i < start || (data[i] != '"' && data[i] != '\'')) {
+            return null;
+        }
+        i = skipWhitespaceBackwards(data, start, i - 1);
+        if (i < start || data[i] != '=') {
+            return null;
+        }
+        int prefixEnd = skipWhitespaceBackwards(data, start, i - 1) + 1;
+        i = prefixEnd - 1;
+        while (i >= start && isNameChar(data[i])) {
+            i--;
+        }
+        int prefixStart = i + 1;
+        if (prefixStart == prefixEnd
+                || i - XMLNS_BYTES.length + 1 < start
+                || !startsWith(data, i - XMLNS_BYTES.length + 1, XMLNS_BYTES)) {
+            return null;
+        }
+        return new String(data, prefixStart, prefixEnd - prefixStart, StandardCharsets.US_ASCII);
+    }
+
+    /** Finds name as an attribute or element name, not as part of a longer name. */
+    private static int indexOfName(byte[] data, int start, int end, byte[] name) {
+        int from = start;
+        int at;
+        while ((at = indexOf(data, from, end, name)) >= 0) {
+            int after = at + name.length;
+            if (at > start
+                    && (data[at - 1] == '<' || isWhitespace(data[at - 1]))
+                    && after < end
+                    && !isNameChar(data[after])) {
+                return at;
+            }
+            from = at + 1;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int from, int end, byte[] pattern) {
+        int last = end - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
             }
+            return i;
         }
-        return null;
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal integer, or returns null. Anything XMPCore might read differently, like
+     * whitespace or hex, is left to XMPCore.
+     */
+    private static Integer parseInt(byte[] data, int start, int end) {
+        boolean negative = start < end && data[start] == '-';
+        if (negative || (start < end && data[start] == '+')) {
+            start++;
+        }
+        if (start >= end || end - start > 9) {
+            // Empty, or might overflow.
+            return null;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return null;
+            }
+            value = value * 10 + (data[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static int skipWhitespace(byte[] data, int from, int end) {
+        while (from < end && isWhitespace(data[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int skipWhitespaceBackwards(byte[] data, int start, int from) {
+        while (from >= start && isWhitespace(data[from])) {
+            from--;
+        }
+        return from;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z')
+                || (b >= 'A' && b <= 'Z')
+                || (b >= '0' && b <= '9')
+                || b == '_'
+                || b == '-'
+                || b == '.';
     }
 
     /** Creates a new XMPMeta. */
@@ -134,33 +576,117 @@ public class XmpUtil {
         return meta == null ? createXMPMeta() : meta;
     }
 
-    /** Writes the XMPMeta to the jpeg image file. */
+    /**
+     * Writes the XMPMeta to the jpeg image file. If the file's XMP packet has room for it, only
+     * that packet is written over, see {@link #writeXMPMetaInPlace}. Otherwise the file is written
+     * anew next to the original, which it then replaces: the other segments are written from a
+     * mapping of the original and the image data is copied with {@link FileChannel#transferTo},
+     * so neither goes through the heap, and a failed write leaves the original as it was. Only
+     * the rewrite survives a crash halfway; the in-place update does not.
+     */
     public static boolean writeXMPMeta(String filename, XMPMeta meta) {
         if (!filename.toLowerCase().endsWith(".jpg") && !filename.toLowerCase().endsWith(".jpeg")) {
             Log.d(TAG, "XMP parse: only jpeg file is supported");
             return false;
         }
-        List<Section> sections = null;
-        try {
-            sections = parse(new FileInputStream(filename), false);
-            sections = insertXMPSection(sections, meta);
-            if (sections == null) {
+        File file = new File(filename).getAbsoluteFile();
+        if (writeXMPMetaInPlace(file, meta)) {
+            return true;
+        }
+        File temp = null;
+        try (FileInputStream is = new FileInputStream(file)) {
+            JpegSegmentIndex index = JpegSegmentIndex.read(is.getChannel());
+            List<Section> xmpSections = createXMPSections(meta);
+            if (xmpSections == null) {
                 return false;
             }
+            // In the same directory, so that it can be renamed over the original.
+            temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try (FileOutputStream os = new FileOutputStream(temp)) {
+                writeJpegFile(os.getChannel(), index, xmpSections);
+                os.getFD().sync();
+            }
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Could not read file: " + filename, e);
+            deleteTempFile(temp);
+            return false;
+        } catch (XMPException e) {
+            Log.d(TAG, "Serialize xmp failed", e);
             return false;
-        }
-        try (FileOutputStream os = new FileOutputStream(filename)) {
-            // Overwrite the image file with the new meta data.
-            writeJpegFile(os, sections);
         } catch (IOException e) {
             Log.d(TAG, "Write file failed:" + filename, e);
+            deleteTempFile(temp);
+            return false;
+        }
+        if (!temp.renameTo(file)) {
+            Log.d(TAG, "Could not replace file: " + filename);
+            deleteTempFile(temp);
             return false;
         }
         return true;
     }
 
+    /**
+     * Writes meta over the XMP packet of file, padded to the size of the old one, if it fits and
+     * the file has no extended XMP sections. Nothing else in the file is read or written. A write
+     * that fails halfway leaves a broken packet, which rewriting the file then replaces.
+     *
+     * <p>Unlike the rewrite this is not crash-safe: if the process dies or the device loses power
+     * during the write, the file is left with a partly written packet and nothing replaces it.
+     * The image data and the other segments stay intact either way.
+     *
+     * @return whether meta was written; if not, the file has to be rewritten.
+     */
+    private static boolean writeXMPMetaInPlace(File file, XMPMeta meta) {
+        if (!file.isFile()) {
+            // Opening it for writing would create it.
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            JpegSegmentIndex index = JpegSegmentIndex.read(channel);
+            JpegSegmentIndex.Segment xmp = null;
+            for (JpegSegmentIndex.Segment segment : index.getSegments()) {
+                if (segment.getMarker() != M_APP1) {
+                    continue;
+                }
+                if (index.startsWith(segment, EXTENDED_XMP_HEADER_BYTES)) {
+                    // The old extension has to go, and only a rewrite can remove it.
+                    return false;
+                }
+                if (xmp == null && index.startsWith(segment, XMP_HEADER_BYTES)) {
+                    xmp = segment;
+                }
+            }
+            if (xmp == null) {
+                return false;
+            }
+            byte[] packet;
+            try {
+                packet = serializePacket(meta, xmp.getLength() - XMP_HEADER_SIZE);
+            } catch (XMPException e) {
+                // It does not fit.
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            long position = xmp.getOffset() + XMP_HEADER_SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Could not update file in place: " + file, e);
+            return false;
+        }
+    }
+
+    private static void deleteTempFile(File temp) {
+        if (temp != null && !temp.delete()) {
+            Log.w(TAG, "Could not delete " + temp);
+        }
+    }
+
     /** Updates a jpeg file from inputStream with XMPMeta to outputStream. */
     public static boolean writeXMPMeta(
             InputStream inputStream, OutputStream outputStream, XMPMeta meta) {
@@ -192,6 +718,45 @@ public class XmpUtil {
         // Writes the jpeg file header.
         os.write(0xff);
         os.write(M_SOI);
+        writeSections(os, sections);
+    }
+
+    /**
+     * Writes the file indexed by index to out with its XMP sections replaced by xmpSections, in
+     * the place {@link #insertXMPSection} would put them.
+     */
+    private static void writeJpegFile(
+            FileChannel out, JpegSegmentIndex index, List<Section> xmpSections)
+            throws IOException {
+        List<JpegSegmentIndex.Segment> segments = new ArrayList<>(index.getSegments().size());
+        int position = -1;
+        for (JpegSegmentIndex.Segment segment : index.getSegments()) {
+            if (segment.getMarker() == M_APP1 && index.startsWith(segment, XMP_HEADER_BYTES)) {
+                position = segments.size();
+            } else if (segment.getMarker() != M_APP1
+                    || !index.startsWith(segment, EXTENDED_XMP_HEADER_BYTES)) {
+                segments.add(segment);
+            }
+        }
+        if (position < 0) {
+            position = (!segments.isEmpty() && segments.get(0).getMarker() == M_APP1) ? 1 : 0;
+        }
+
+        ByteArrayOutputStream xmp = new ByteArrayOutputStream();
+        writeSections(xmp, xmpSections);
+        JpegSegmentIndex.writeFully(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) M_SOI}), out);
+        for (int i = 0; i <= segments.size(); i++) {
+            if (i == position) {
+                JpegSegmentIndex.writeFully(ByteBuffer.wrap(xmp.toByteArray()), out);
+            }
+            if (i < segments.size()) {
+                index.writeSegment(segments.get(i), out);
+            }
+        }
+        index.transferScan(out);
+    }
+
+    private static void writeSections(OutputStream os, List<Section> sections) throws IOException {
         for (Section section : sections) {
             os.write(0xff);
             os.write(section.marker);
@@ -202,7 +767,7 @@ public class XmpUtil {
                 os.write(lh);
                 os.write(ll);
             }
-            os.write(section.data);
+            section.writeData(os);
         }
     }
 
@@ -210,49 +775,153 @@ public class XmpUtil {
         if (sections == null || sections.size() <= 1) {
             return null;
         }
-        byte[] buffer;
+        List<Section> xmpSections;
         try {
-            SerializeOptions options = new SerializeOptions();
-            options.setUseCompactFormat(true);
-            // We have to omit packet wrapper here because
-            // javax.xml.parsers.DocumentBuilder
-            // fails to parse the packet end <?xpacket end="w"?> in android.
-            options.setOmitPacketWrapper(true);
-            buffer = XMPMetaFactory.serializeToBuffer(meta, options);
+            xmpSections = createXMPSections(meta);
         } catch (XMPException e) {
             Log.d(TAG, "Serialize xmp failed", e);
             return null;
         }
-        if (buffer.length > MAX_XMP_BUFFER_SIZE) {
-            // Do not support extended xmp now.
+        if (xmpSections == null) {
             return null;
         }
+
+        List<Section> newSections = new ArrayList<Section>(sections.size() + xmpSections.size());
+        int position = -1;
+        for (Section section : sections) {
+            if (section.marker == M_APP1 && hasXMPHeader(section.data)) {
+                // Replace the old xmp section with the new ones.
+                position = newSections.size();
+            } else if (section.marker != M_APP1
+                    || !startsWith(section.data, 0, EXTENDED_XMP_HEADER_BYTES)) {
+                // Old extended xmp sections go with the old xmp section.
+                newSections.add(section);
+            }
+        }
+        if (position < 0) {
+            // If the first section is Exif, insert XMP data before the second section,
+            // otherwise, make xmp data the first section.
+            position = (newSections.get(0).marker == M_APP1) ? 1 : 0;
+        }
+        newSections.addAll(position, xmpSections);
+        return newSections;
+    }
+
+    /**
+     * Serializes meta into the XMP section and, if it does not fit, extended XMP sections. The
+     * main packet then keeps the GPano properties, which is what panorama viewers look for, and
+     * the rest moves to the extension.
+     *
+     * @return the sections, or null if even the GPano properties do not fit one section.
+     */
+    private static List<Section> createXMPSections(XMPMeta meta) throws XMPException {
+        List<Section> sections = new ArrayList<Section>();
+        byte[] buffer = serializePadded(meta);
+        if (buffer != null) {
+            sections.add(createXMPSection(buffer));
+            return sections;
+        }
+
+        XMPMeta extended = (XMPMeta) meta.clone();
+        extended.deleteProperty(XMPConst.NS_XMP_NOTE, HAS_EXTENDED_XMP);
+        XMPUtils.removeProperties(extended, GOOGLE_PANO_NAMESPACE, null, true, true);
+        byte[] packet = serialize(extended);
+        byte[] guid = md5Hex(packet);
+
+        XMPMeta main = XMPMetaFactory.create();
+        XMPIterator properties =
+                meta.iterator(
+                        GOOGLE_PANO_NAMESPACE,
+                        null,
+                        new IteratorOptions().setJustChildren(true).setOmitQualifiers(true));
+        while (properties.hasNext()) {
+            XMPPropertyInfo property = (XMPPropertyInfo) properties.next();
+            if (property.getValue() != null) {
+                main.setProperty(GOOGLE_PANO_NAMESPACE, property.getPath(), property.getValue());
+            }
+        }
+        main.setProperty(
+                XMPConst.NS_XMP_NOTE,
+                HAS_EXTENDED_XMP,
+                new String(guid, StandardCharsets.US_ASCII));
+        buffer = serializePadded(main);
+        if (buffer == null) {
+            return null;
+        }
+        sections.add(createXMPSection(buffer));
+        for (int offset = 0; offset < packet.length; offset += MAX_EXTENDED_XMP_CHUNK_SIZE) {
+            sections.add(new ExtendedXMPSection(guid, packet, offset));
+        }
+        return sections;
+    }
+
+    /** Serializes meta without a packet wrapper, as an extended XMP packet must be. */
+    private static byte[] serialize(XMPMeta meta) throws XMPException {
+        SerializeOptions options = new SerializeOptions();
+        options.setUseCompactFormat(true);
+        options.setOmitPacketWrapper(true);
+        return XMPMetaFactory.serializeToBuffer(meta, options);
+    }
+
+    /**
+     * Serializes meta into a packet for the XMP section, with up to XMP_PADDING bytes of padding.
+     *
+     * @return the packet, or null if it does not fit one section even without padding.
+     */
+    private static byte[] serializePadded(XMPMeta meta) throws XMPException {
+        SerializeOptions options = new SerializeOptions();
+        options.setUseCompactFormat(true);
+        options.setPadding(0);
+        int length = XMPMetaFactory.serializeToBuffer(meta, options).length;
+        if (length > MAX_XMP_BUFFER_SIZE) {
+            return null;
+        }
+        return serializePacket(meta, Math.min(length + XMP_PADDING, MAX_XMP_BUFFER_SIZE));
+    }
+
+    /**
+     * Serializes meta into a packet of exactly length bytes, the rest being padding. The packet
+     * keeps its wrapper, since the padding goes inside it; javax.xml.parsers.DocumentBuilder fails
+     * to parse the packet end <?xpacket end="w"?> in android, but getXMPContentEnd cuts it off
+     * before parsing.
+     *
+     * @throws XMPException if meta does not fit.
+     */
+    private static byte[] serializePacket(XMPMeta meta, int length) throws XMPException {
+        SerializeOptions options = new SerializeOptions();
+        options.setUseCompactFormat(true);
+        options.setExactPacketLength(true);
+        options.setPadding(length);
+        return XMPMetaFactory.serializeToBuffer(meta, options);
+    }
+
+    private static Section createXMPSection(byte[] buffer) {
         // The XMP section starts with XMP_HEADER and then the real xmp data.
         byte[] xmpdata = new byte[buffer.length + XMP_HEADER_SIZE];
-        System.arraycopy(XMP_HEADER.getBytes(), 0, xmpdata, 0, XMP_HEADER_SIZE);
+        System.arraycopy(XMP_HEADER_BYTES, 0, xmpdata, 0, XMP_HEADER_SIZE);
         System.arraycopy(buffer, 0, xmpdata, XMP_HEADER_SIZE, buffer.length);
         Section xmpSection = new Section();
         xmpSection.marker = M_APP1;
         // Adds the length place (2 bytes) to the section length.
         xmpSection.length = xmpdata.length + 2;
         xmpSection.data = xmpdata;
+        return xmpSection;
+    }
 
-        for (int i = 0; i < sections.size(); ++i) {
-            // If we can find the old xmp section, replace it with the new one.
-            if (sections.get(i).marker == M_APP1 && hasXMPHeader(sections.get(i).data)) {
-                // Replace with the new xmp data.
-                sections.set(i, xmpSection);
-                return sections;
-            }
-        }
-        // If the first section is Exif, insert XMP data before the second section,
-        // otherwise, make xmp data the first section.
-        List<Section> newSections = new ArrayList<Section>();
-        int position = (sections.get(0).marker == M_APP1) ? 1 : 0;
-        newSections.addAll(sections.subList(0, position));
-        newSections.add(xmpSection);
-        newSections.addAll(sections.subList(position, sections.size()));
-        return newSections;
+    /** The GUID of an extended XMP packet: the MD5 of the packet in upper case hex. */
+    private static byte[] md5Hex(byte[] packet) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(packet);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hex = new byte[GUID_SIZE];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = (byte) HEX_DIGITS.charAt((digest[i] >> 4) & 0xf);
+            hex[2 * i + 1] = (byte) HEX_DIGITS.charAt(digest[i] & 0xf);
+        }
+        return hex;
     }
 
     /**
@@ -262,15 +931,38 @@ public class XmpUtil {
      * @param data Xmp metadata.
      */
     private static boolean hasXMPHeader(byte[] data) {
-        if (data.length < XMP_HEADER_SIZE) {
+        return hasXMPHeader(data, 0, data.length);
+    }
+
+    /** Checks whether the section in data[offset, offset + length) has XMP header. */
+    static boolean hasXMPHeader(byte[] data, int offset, int length) {
+        return length >= XMP_HEADER_SIZE && startsWith(data, offset, XMP_HEADER_BYTES);
+    }
+
+    /** Whether data, from its position, starts with prefix. */
+    private static boolean startsWith(ByteBuffer data, byte[] prefix) {
+        if (data.remaining() < prefix.length) {
             return false;
         }
-        byte[] header = new byte[XMP_HEADER_SIZE];
-        System.arraycopy(data, 0, header, 0, XMP_HEADER_SIZE);
-        if (new String(header, StandardCharsets.UTF_8).equals(XMP_HEADER)) {
-            return true;
+        int offset = data.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(offset + i) != prefix[i]) {
+                return false;
+            }
         }
-        return false;
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (data.length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -305,6 +997,7 @@ public class XmpUtil {
      */
     private static List<Section> parse(InputStream is, boolean readMetaOnly) {
         try {
+            is = new BufferedInputStream(is);
             if (is.read() != 0xff || is.read() != M_SOI) {
                 return null;
             }
@@ -327,8 +1020,8 @@ public class XmpUtil {
                         Section section = new Section();
                         section.marker = marker;
                         section.length = -1;
-                        section.data = new byte[is.available()];
-                        is.read(section.data, 0, section.data.length);
+                        // available() is only an estimate, read up to the end instead.
+                        section.data = readRemaining(is);
                         sections.add(section);
                     }
                     return sections;
@@ -344,12 +1037,12 @@ public class XmpUtil {
                     section.marker = marker;
                     section.length = length;
                     section.data = new byte[length - 2];
-                    is.read(section.data, 0, length - 2);
+                    readFully(is, section.data);
                     sections.add(section);
                 } else {
                     // Skip this section since all exif/xmp meta will be in M_APP1
                     // section.
-                    is.skip(length - 2);
+                    skipFully(is, length - 2);
                 }
             }
             return sections;
@@ -367,5 +1060,39 @@ public class XmpUtil {
         }
     }
 
+    private static void readFully(InputStream is, byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int read = is.read(data, offset, data.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static byte[] readRemaining(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+
     private XmpUtil() {}
 }
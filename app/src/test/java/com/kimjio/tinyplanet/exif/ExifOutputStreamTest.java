@@ -0,0 +1,61 @@
+package com.kimjio.tinyplanet.exif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+public class ExifOutputStreamTest {
+    @Test
+    public void writeTagValue_undefined() {
+        ExifTag tag = undefinedTag(3);
+        tag.setValue(new byte[] {1, 2, 3});
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.put((byte) 9);
+
+        ExifOutputStream.writeTagValue(tag, buffer);
+
+        assertEquals(4, buffer.position());
+        assertArrayEquals(new byte[] {9, 1, 2, 3, 0}, buffer.array());
+    }
+
+    @Test
+    public void writeTagValue_undefinedIntoSlice() {
+        ExifTag tag = undefinedTag(2);
+        tag.setValue(new byte[] {1, 2});
+        byte[] array = new byte[6];
+        ByteBuffer buffer = ByteBuffer.wrap(array, 2, 4).slice();
+
+        ExifOutputStream.writeTagValue(tag, buffer);
+
+        assertEquals(2, buffer.position());
+        assertArrayEquals(new byte[] {0, 0, 1, 2, 0, 0}, array);
+    }
+
+    @Test
+    public void writeTagValue_undefinedPastTheEnd() {
+        ExifTag tag = undefinedTag(6);
+        tag.setValue(new byte[] {1, 2, 3, 4, 5, 6});
+        byte[] array = new byte[8];
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        buffer.limit(4);
+
+        try {
+            ExifOutputStream.writeTagValue(tag, buffer);
+            fail();
+        } catch (BufferOverflowException expected) {
+        }
+
+        assertEquals(0, buffer.position());
+        assertArrayEquals(new byte[8], array);
+    }
+
+    private static ExifTag undefinedTag(int count) {
+        return new ExifTag(
+                (short) 0x927c, ExifTag.TYPE_UNDEFINED, count, IfdId.TYPE_IFD_EXIF, false);
+    }
+}
@@ -0,0 +1,196 @@
+package com.kimjio.tinyplanet.exif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ExifParserTest {
+    private static final short ORIENTATION = 0x0112;
+    private static final short COMPRESSION = 0x0103;
+    private static final short MAKE = 0x010f;
+    private static final short ISO = (short) 0x8827;
+    private static final short EXIF_IFD = (short) 0x8769;
+    private static final short GPS_IFD = (short) 0x8825;
+    private static final short INTEROPERABILITY_IFD = (short) 0xa005;
+    private static final byte[] CANON = "Canon\0".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void next_followsLinksToTheExifIfdAndIfd1() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.LITTLE_ENDIAN, 100);
+        ifd(
+                tiff,
+                8,
+                80,
+                entry(ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 6),
+                entry(EXIF_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 50));
+        ifd(tiff, 50, 0, entry(ISO, ExifTag.TYPE_UNSIGNED_SHORT, 1, 100));
+        ifd(tiff, 80, 0, entry(COMPRESSION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 6));
+
+        assertEquals(Arrays.asList("0:112=6", "1:103=6", "2:8827=100"), parse(tiff));
+    }
+
+    @Test
+    public void next_skipsEntryWithUnknownType() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.LITTLE_ENDIAN, 50);
+        ifd(
+                tiff,
+                8,
+                0,
+                entry(MAKE, (short) 99, 1, 0),
+                entry(ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 3));
+
+        assertEquals(Arrays.asList("0:112=3"), parse(tiff));
+    }
+
+    @Test
+    public void next_skipsValueOutsideTheData() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.LITTLE_ENDIAN, 100);
+        ifd(
+                tiff,
+                8,
+                0,
+                entry(MAKE, ExifTag.TYPE_ASCII, 10, 95),
+                entry(ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 3),
+                entry(MAKE, ExifTag.TYPE_ASCII, 0x7fffffff, 50));
+
+        assertEquals(Arrays.asList("0:112=3"), parse(tiff));
+    }
+
+    @Test
+    public void next_leavesOutEntriesCutOffByTheEnd() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.LITTLE_ENDIAN, 8 + 2 + 2 * 12 + 6);
+        tiff.putShort(8, (short) 5);
+        putEntry(tiff, 10, entry(ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 1));
+        putEntry(tiff, 22, entry(COMPRESSION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 6));
+
+        assertEquals(Arrays.asList("0:112=1", "0:103=6"), parse(tiff));
+    }
+
+    @Test
+    public void next_readsLoopingIfdsOnce() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.LITTLE_ENDIAN, 100);
+        // IFD0 links to itself as IFD1 and as the EXIF IFD, and the GPS IFD links to IFD0 and to
+        // itself.
+        ifd(
+                tiff,
+                8,
+                8,
+                entry(ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 1),
+                entry(EXIF_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 8),
+                entry(GPS_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 50));
+        ifd(
+                tiff,
+                50,
+                0,
+                entry((short) 0x0005, ExifTag.TYPE_UNSIGNED_SHORT, 1, 2),
+                entry(EXIF_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 8),
+                entry(INTEROPERABILITY_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 50));
+
+        assertEquals(Arrays.asList("0:112=1", "4:5=2"), parse(tiff));
+    }
+
+    @Test
+    public void next_ignoresLinksOutOfBounds() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.LITTLE_ENDIAN, 50);
+        ifd(
+                tiff,
+                8,
+                0xfffffff0,
+                entry(ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1, 1),
+                entry(EXIF_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 4),
+                entry(GPS_IFD, ExifTag.TYPE_UNSIGNED_LONG, 1, 49));
+
+        assertEquals(Arrays.asList("0:112=1"), parse(tiff));
+    }
+
+    @Test
+    public void read_bigEndianWithValueOutOfLine() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.BIG_ENDIAN, 50);
+        ifd(tiff, 8, 0, entry(MAKE, ExifTag.TYPE_ASCII, 6, 40));
+        tiff.position(40);
+        tiff.put(CANON);
+        tiff.position(0);
+
+        ExifData data = ExifReader.read(tiff);
+
+        assertEquals(ByteOrder.BIG_ENDIAN, data.getByteOrder());
+        assertArrayEquals(CANON, data.getTag(MAKE, IfdId.TYPE_IFD_0).getValueAsBytes());
+    }
+
+    @Test
+    public void constructor_rejectsDataWithoutTiffHeader() {
+        assertNotTiff(new byte[] {'I', 'I', 42, 0, 8, 0, 0});
+        assertNotTiff(new byte[] {'I', 'M', 42, 0, 8, 0, 0, 0});
+        assertNotTiff(new byte[] {'M', 'M', 0, 43, 0, 0, 0, 8});
+    }
+
+    private static void assertNotTiff(byte[] data) {
+        try {
+            new ExifParser(ByteBuffer.wrap(data));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    /** A zeroed TIFF block of the given size with a header pointing at IFD0 at offset 8. */
+    private static ByteBuffer tiff(ByteOrder order, int size) {
+        ByteBuffer tiff = ByteBuffer.allocate(size).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.putShort((short) 42);
+        tiff.putInt(8);
+        tiff.position(0);
+        return tiff;
+    }
+
+    /** An IFD entry whose value, or value offset, fits in an int. */
+    private static int[] entry(short tagId, short type, int count, int value) {
+        return new int[] {tagId, type, count, value};
+    }
+
+    private static void ifd(ByteBuffer tiff, int offset, int next, int[]... entries) {
+        tiff.putShort(offset, (short) entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            putEntry(tiff, offset + 2 + i * 12, entries[i]);
+        }
+        tiff.putInt(offset + 2 + entries.length * 12, next);
+    }
+
+    private static void putEntry(ByteBuffer tiff, int position, int[] entry) {
+        tiff.putShort(position, (short) entry[0]);
+        tiff.putShort(position + 2, (short) entry[1]);
+        tiff.putInt(position + 4, entry[2]);
+        if (entry[1] == ExifTag.TYPE_UNSIGNED_SHORT && entry[2] == 1) {
+            tiff.putShort(position + 8, (short) entry[3]);
+        } else if (entry[1] == ExifTag.TYPE_UNSIGNED_BYTE && entry[2] == 1) {
+            tiff.put(position + 8, (byte) entry[3]);
+        } else {
+            tiff.putInt(position + 8, entry[3]);
+        }
+    }
+
+    /** The tags the parser returns, as "ifd:tag=value" with the tag ID in hex. */
+    private static List<String> parse(ByteBuffer tiff) throws IOException {
+        ExifParser parser = new ExifParser(tiff);
+        List<String> tags = new ArrayList<>();
+        for (ExifTag tag = parser.next(); tag != null; tag = parser.next()) {
+            tags.add(
+                    tag.getIfd()
+                            + ":"
+                            + Integer.toHexString(tag.getTagId() & 0xffff)
+                            + "="
+                            + tag.getValueAsLong(-1));
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,193 @@
+package com.kimjio.tinyplanet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.adobe.internal.xmp.XMPConst;
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ExtendedXmpTest {
+    private static final String GPANO = "http://ns.google.com/photos/1.0/panorama/";
+    private static final int GUID_OFFSET = 4 + TestJpeg.EXTENDED_XMP_HEADER.length();
+    private static final int GUID_SIZE = 32;
+    private static final int CHUNK_OFFSET = GUID_OFFSET + GUID_SIZE + 8;
+
+    @Test
+    public void writeXMPMeta_splitsLargePacketIntoExtendedSections() throws Exception {
+        String source = largeValue(200000);
+        byte[] jpeg = write(largeMeta(source));
+        List<byte[]> parts = TestJpeg.split(jpeg);
+
+        List<byte[]> main = sections(parts, TestJpeg.XMP_HEADER);
+        List<byte[]> extended = sections(parts, TestJpeg.EXTENDED_XMP_HEADER);
+        assertEquals(1, main.size());
+        assertTrue(extended.size() > 1);
+
+        // Every chunk names the same packet, whose GUID is the MD5 of the packet.
+        String guid = guid(extended.get(0));
+        ByteBuffer first = ByteBuffer.wrap(extended.get(0));
+        byte[] packet = new byte[first.getInt(GUID_OFFSET + GUID_SIZE)];
+        for (byte[] section : extended) {
+            assertEquals(guid, guid(section));
+            ByteBuffer chunk = ByteBuffer.wrap(section);
+            System.arraycopy(
+                    section,
+                    CHUNK_OFFSET,
+                    packet,
+                    chunk.getInt(GUID_OFFSET + GUID_SIZE + 4),
+                    section.length - CHUNK_OFFSET);
+        }
+        assertEquals(md5Hex(packet), guid);
+
+        // The main packet keeps the GPano properties and points at the extension.
+        List<byte[]> withoutExtension = new ArrayList<>(parts);
+        withoutExtension.removeAll(extended);
+        XMPMeta mainMeta = read(TestJpeg.join(withoutExtension));
+        assertEquals(7, (int) mainMeta.getPropertyInteger(GPANO, "CroppedAreaLeftPixels"));
+        assertEquals(guid, mainMeta.getPropertyString(XMPConst.NS_XMP_NOTE, "HasExtendedXMP"));
+        assertNull(mainMeta.getPropertyString(XMPConst.NS_DC, "source"));
+
+        XMPMeta meta = read(jpeg);
+        assertEquals(7, (int) meta.getPropertyInteger(GPANO, "CroppedAreaLeftPixels"));
+        assertEquals(source, meta.getPropertyString(XMPConst.NS_DC, "source"));
+        assertFalse(meta.doesPropertyExist(XMPConst.NS_XMP_NOTE, "HasExtendedXMP"));
+    }
+
+    @Test
+    public void extractXMPMeta_chunksInAnyOrder() throws Exception {
+        String source = largeValue(200000);
+        List<byte[]> parts = TestJpeg.split(write(largeMeta(source)));
+        List<byte[]> extended = sections(parts, TestJpeg.EXTENDED_XMP_HEADER);
+        int start = parts.indexOf(extended.get(0));
+        Collections.reverse(parts.subList(start, start + extended.size()));
+
+        XMPMeta meta = read(TestJpeg.join(parts));
+
+        assertEquals(source, meta.getPropertyString(XMPConst.NS_DC, "source"));
+    }
+
+    @Test
+    public void extractXMPMeta_duplicateChunkDoesNotCompleteExtension() throws Exception {
+        List<byte[]> parts = TestJpeg.split(write(largeMeta(largeValue(200000))));
+        List<byte[]> extended = sections(parts, TestJpeg.EXTENDED_XMP_HEADER);
+        assertTrue(extended.size() > 2);
+        // The first chunk twice and the second one missing: as many bytes as the packet, but
+        // with a gap.
+        parts.set(parts.indexOf(extended.get(1)), extended.get(0));
+
+        XMPMeta meta = read(TestJpeg.join(parts));
+
+        assertNotNull(meta);
+        assertEquals(7, (int) meta.getPropertyInteger(GPANO, "CroppedAreaLeftPixels"));
+        assertNull(meta.getPropertyString(XMPConst.NS_DC, "source"));
+    }
+
+    @Test
+    public void extendedXMPReader_packetCompleteOnceEveryByteArrived() {
+        byte[] packet = "01234567".getBytes(StandardCharsets.US_ASCII);
+        String guid = md5Hex(packet);
+        XmpUtil.ExtendedXMPReader reader = new XmpUtil.ExtendedXMPReader();
+
+        byte[] head = chunk(guid, packet, 0, 4);
+        byte[] tail = chunk(guid, packet, 4, 4);
+
+        assertTrue(reader.addSection(head, 0, head.length));
+        assertTrue(reader.addSection(head, 0, head.length));
+        assertNull(reader.getPacket(guid));
+        assertTrue(reader.addSection(tail, 0, tail.length));
+        assertArrayEquals(packet, reader.getPacket(guid));
+        assertNull(reader.getPacket("00000000000000000000000000000000"));
+    }
+
+    @Test
+    public void extendedXMPReader_ignoresOtherSections() {
+        byte[] exif = TestJpeg.ascii(TestJpeg.EXIF_HEADER + "MM\0*\0\0\0\10");
+        XmpUtil.ExtendedXMPReader reader = new XmpUtil.ExtendedXMPReader();
+
+        assertFalse(reader.addSection(exif, 0, exif.length));
+        assertTrue(reader.isEmpty());
+    }
+
+    /** Meta with a GPano property and a dc:source too large for one XMP section. */
+    private static XMPMeta largeMeta(String source) throws XMPException {
+        XMPMeta meta = XmpUtil.createXMPMeta();
+        meta.setPropertyInteger(GPANO, "CroppedAreaLeftPixels", 7);
+        meta.setProperty(XMPConst.NS_DC, "source", source);
+        return meta;
+    }
+
+    private static String largeValue(int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        return value.toString();
+    }
+
+    private static byte[] write(XMPMeta meta) {
+        byte[] jpeg = new TestJpeg().frame(8, 4).scan(TestJpeg.scanData(100)).toByteArray();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(XmpUtil.writeXMPMeta(new ByteArrayInputStream(jpeg), os, meta));
+        return os.toByteArray();
+    }
+
+    private static XMPMeta read(byte[] jpeg) {
+        return XmpUtil.extractXMPMeta(new ByteArrayInputStream(jpeg));
+    }
+
+    private static List<byte[]> sections(List<byte[]> parts, String header) {
+        List<byte[]> sections = new ArrayList<>();
+        for (byte[] part : parts) {
+            if ((part[1] & 0xff) == TestJpeg.M_APP1 && TestJpeg.hasHeader(part, header)) {
+                sections.add(part);
+            }
+        }
+        return sections;
+    }
+
+    private static String guid(byte[] section) {
+        return new String(section, GUID_OFFSET, GUID_SIZE, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * An extended XMP section payload, as {@link XmpUtil.ExtendedXMPReader#addSection} takes it,
+     * with length bytes of packet from offset.
+     */
+    private static byte[] chunk(String guid, byte[] packet, int offset, int length) {
+        ByteBuffer section = ByteBuffer.allocate(CHUNK_OFFSET - 4 + length);
+        section.put(TestJpeg.ascii(TestJpeg.EXTENDED_XMP_HEADER));
+        section.put(TestJpeg.ascii(guid));
+        section.putInt(packet.length);
+        section.putInt(offset);
+        section.put(packet, offset, length);
+        return section.array();
+    }
+
+    private static String md5Hex(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                hex.append(String.format("%02X", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.kimjio.tinyplanet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class JpegHeaderScannerTest {
+    private static final String GPANO = "http://ns.google.com/photos/1.0/panorama/";
+
+    @Test
+    public void scan_readsFrameSizeExifAndXmp() throws IOException, XMPException {
+        byte[] tiff = {'M', 'M', 0, 42, 0, 0, 0, 8, 0, 0};
+        byte[] jpeg =
+                new TestJpeg()
+                        .app1(TestJpeg.EXIF_HEADER, tiff)
+                        .xmp(TestJpeg.xmpPacket("GPano:CroppedAreaLeftPixels=\"12\""))
+                        .frame(640, 320)
+                        .scan(TestJpeg.scanData(100))
+                        .toByteArray();
+
+        JpegHeaderScanner.Header header = scan(jpeg);
+
+        assertTrue(header.hasSize());
+        assertEquals(640, header.getWidth());
+        assertEquals(320, header.getHeight());
+        assertArrayEquals(tiff, header.getExif());
+        XMPMeta meta = header.getXMPMeta();
+        assertNotNull(meta);
+        assertEquals(12, (int) meta.getPropertyInteger(GPANO, "CroppedAreaLeftPixels"));
+        assertArrayEquals(jpeg, readAll(header.openImageStream()));
+    }
+
+    @Test
+    public void scan_segmentEndingAtHeaderBufferCapacity() throws IOException {
+        // SOI, the APP1 marker and length, and this payload fill the initial 8 KB header buffer
+        // exactly, so the next marker is read into a grown buffer.
+        byte[] body = new byte[8192 - 2 - 4 - TestJpeg.EXIF_HEADER.length()];
+        byte[] jpeg =
+                new TestJpeg()
+                        .app1(TestJpeg.EXIF_HEADER, body)
+                        .frame(100, 50)
+                        .scan(TestJpeg.scanData(10))
+                        .toByteArray();
+
+        JpegHeaderScanner.Header header = scan(jpeg);
+
+        assertEquals(100, header.getWidth());
+        assertEquals(50, header.getHeight());
+        assertEquals(body.length, header.getExif().length);
+        assertArrayEquals(jpeg, readAll(header.openImageStream()));
+    }
+
+    @Test
+    public void scan_largeHeader() throws IOException {
+        TestJpeg builder = new TestJpeg();
+        for (int i = 0; i < 10; i++) {
+            builder.segment(TestJpeg.M_DQT, new byte[60000]);
+        }
+        byte[] jpeg = builder.frame(4000, 2000).scan(TestJpeg.scanData(1000)).toByteArray();
+
+        JpegHeaderScanner.Header header = scan(jpeg);
+
+        assertEquals(4000, header.getWidth());
+        assertArrayEquals(jpeg, readAll(header.openImageStream()));
+    }
+
+    @Test
+    public void scan_notJpeg() throws IOException {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 13};
+
+        JpegHeaderScanner.Header header = scan(png);
+
+        assertFalse(header.hasSize());
+        assertNull(header.getExif());
+        assertNull(header.getXMPMeta());
+        assertArrayEquals(png, readAll(header.openImageStream()));
+    }
+
+    @Test
+    public void scan_truncatedSegment() throws IOException {
+        byte[] jpeg =
+                new TestJpeg()
+                        .xmp(TestJpeg.xmpPacket(""))
+                        .frame(10, 10)
+                        .scan(TestJpeg.scanData(10))
+                        .toByteArray();
+        byte[] truncated = Arrays.copyOf(jpeg, 40);
+
+        JpegHeaderScanner.Header header = scan(truncated);
+
+        assertFalse(header.hasSize());
+        assertNull(header.getXMPMeta());
+        assertArrayEquals(truncated, readAll(header.openImageStream()));
+    }
+
+    private static JpegHeaderScanner.Header scan(byte[] jpeg) throws IOException {
+        return JpegHeaderScanner.scan(new ByteArrayInputStream(jpeg));
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        is.close();
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+package com.kimjio.tinyplanet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+public class JpegSegmentIndexTest {
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void read_indexesSegmentsAndScan() throws IOException {
+        byte[] tiff = {'M', 'M', 0, 42, 0, 0, 0, 8, 0, 0};
+        byte[] jpeg =
+                new TestJpeg()
+                        .app1(TestJpeg.EXIF_HEADER, tiff)
+                        .xmp(TestJpeg.xmpPacket(""))
+                        .frame(8, 4)
+                        .scan(TestJpeg.scanData(100))
+                        .toByteArray();
+
+        try (FileChannel channel = open(jpeg)) {
+            JpegSegmentIndex index = JpegSegmentIndex.read(channel);
+
+            List<JpegSegmentIndex.Segment> segments = index.getSegments();
+            List<byte[]> parts = TestJpeg.split(jpeg);
+            assertEquals(3, segments.size());
+            int offset = 2;
+            for (int i = 0; i < segments.size(); i++) {
+                JpegSegmentIndex.Segment segment = segments.get(i);
+                byte[] part = parts.get(i);
+                assertEquals(part[1] & 0xff, segment.getMarker());
+                assertEquals(offset + 4, segment.getOffset());
+                assertEquals(part.length - 4, segment.getLength());
+                assertArrayEquals(
+                        Arrays.copyOfRange(part, 4, part.length),
+                        bytes(index.getPayload(segment)));
+                offset += part.length;
+            }
+            assertEquals(offset, index.getScanOffset());
+            assertEquals(0xda, jpeg[index.getScanOffset() + 1] & 0xff);
+
+            assertTrue(index.startsWith(segments.get(1), TestJpeg.ascii(TestJpeg.XMP_HEADER)));
+            assertFalse(index.startsWith(segments.get(0), TestJpeg.ascii(TestJpeg.XMP_HEADER)));
+            assertArrayEquals(tiff, bytes(index.getExif()));
+        }
+    }
+
+    @Test
+    public void read_skipsFillBytes() throws IOException {
+        byte[] jpeg = new TestJpeg().frame(8, 4).scan(TestJpeg.scanData(10)).toByteArray();
+        // A fill byte before the frame marker.
+        byte[] filled =
+                TestJpeg.concat(
+                        new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+                        Arrays.copyOfRange(jpeg, 2, jpeg.length));
+
+        try (FileChannel channel = open(filled)) {
+            JpegSegmentIndex index = JpegSegmentIndex.read(channel);
+
+            assertEquals(1, index.getSegments().size());
+            assertEquals(TestJpeg.M_SOF0, index.getSegments().get(0).getMarker());
+            assertEquals(7, index.getSegments().get(0).getOffset());
+            assertEquals(filled.length - 10 - 4, index.getScanOffset());
+            assertNull(index.getExif());
+        }
+    }
+
+    @Test
+    public void read_segmentsPastTheFirstMapping() throws IOException {
+        TestJpeg builder = new TestJpeg();
+        for (int i = 0; i < 10; i++) {
+            byte[] table = new byte[60000];
+            table[table.length - 1] = (byte) i;
+            builder.segment(TestJpeg.M_DQT, table);
+        }
+        byte[] jpeg = builder.frame(8, 4).scan(TestJpeg.scanData(10)).toByteArray();
+
+        try (FileChannel channel = open(jpeg)) {
+            JpegSegmentIndex index = JpegSegmentIndex.read(channel);
+
+            assertEquals(11, index.getSegments().size());
+            for (int i = 0; i < 10; i++) {
+                ByteBuffer table = index.getPayload(index.getSegments().get(i));
+                assertEquals(i, table.get(table.limit() - 1));
+            }
+            assertEquals(jpeg.length - 10 - 4, index.getScanOffset());
+        }
+    }
+
+    @Test
+    public void writeSegmentAndTransferScan_copyTheFile() throws IOException {
+        byte[] jpeg =
+                new TestJpeg()
+                        .xmp(TestJpeg.xmpPacket(""))
+                        .frame(8, 4)
+                        .scan(TestJpeg.scanData(100000))
+                        .toByteArray();
+
+        try (FileChannel channel = open(jpeg)) {
+            JpegSegmentIndex index = JpegSegmentIndex.read(channel);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            os.write(0xff);
+            os.write(0xd8);
+            WritableByteChannel out = Channels.newChannel(os);
+            for (JpegSegmentIndex.Segment segment : index.getSegments()) {
+                index.writeSegment(segment, out);
+            }
+            index.transferScan(out);
+
+            assertArrayEquals(jpeg, os.toByteArray());
+        }
+    }
+
+    @Test
+    public void read_rejectsFilesWithoutAScan() throws IOException {
+        byte[] jpeg = new TestJpeg().xmp(TestJpeg.xmpPacket("")).frame(8, 4).toByteArray();
+
+        assertUnreadable(new byte[] {(byte) 0x89, 'P', 'N', 'G'});
+        assertUnreadable(new byte[] {(byte) 0xff});
+        assertUnreadable(jpeg);
+        assertUnreadable(Arrays.copyOf(jpeg, 30));
+        assertUnreadable(TestJpeg.concat(jpeg, new byte[] {(byte) 0xff, (byte) 0xd9}));
+        assertUnreadable(TestJpeg.concat(jpeg, new byte[] {0, 0, 0, 0}));
+        assertUnreadable(
+                TestJpeg.concat(jpeg, new byte[] {(byte) 0xff, (byte) 0xe1, 0, 1, 0, 0, 0}));
+    }
+
+    private void assertUnreadable(byte[] file) throws IOException {
+        try (FileChannel channel = open(file)) {
+            JpegSegmentIndex.read(channel);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private FileChannel open(byte[] contents) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), contents);
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
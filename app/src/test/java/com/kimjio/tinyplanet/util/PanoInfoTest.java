@@ -0,0 +1,104 @@
+package com.kimjio.tinyplanet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+public class PanoInfoTest {
+    private static final String ALL_ATTRIBUTES =
+            "GPano:CroppedAreaImageWidthPixels=\"4000\""
+                    + " GPano:CroppedAreaImageHeightPixels=\"1000\""
+                    + " GPano:FullPanoWidthPixels=\"8000\""
+                    + " GPano:FullPanoHeightPixels=\"4000\""
+                    + " GPano:CroppedAreaLeftPixels=\"2000\""
+                    + " GPano:CroppedAreaTopPixels=\"1500\"";
+
+    @Test
+    public void extractPanoInfo_attributes() {
+        PanoInfo info = extract(TestJpeg.xmpPacket(ALL_ATTRIBUTES));
+
+        assertTrue(info.hasFullPanoSize());
+        assertEquals(4000, info.getCroppedAreaWidth());
+        assertEquals(1000, info.getCroppedAreaHeight());
+        assertEquals(8000, info.getFullPanoWidth());
+        assertEquals(4000, info.getFullPanoHeight());
+        assertEquals(2000, info.getCroppedAreaLeft());
+        assertEquals(1500, info.getCroppedAreaTop());
+        assertMatchesXmpCore(TestJpeg.xmpPacket(ALL_ATTRIBUTES));
+    }
+
+    @Test
+    public void extractPanoInfo_elements() {
+        String packet =
+                "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                        + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                        + "<rdf:Description rdf:about=\"\""
+                        + " xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\">"
+                        + "<GPano:FullPanoWidthPixels>8000</GPano:FullPanoWidthPixels>"
+                        + "<GPano:FullPanoHeightPixels>4000</GPano:FullPanoHeightPixels>"
+                        + "<GPano:CroppedAreaTopPixels>-12</GPano:CroppedAreaTopPixels>"
+                        + "</rdf:Description></rdf:RDF></x:xmpmeta>";
+
+        PanoInfo info = extract(packet);
+
+        assertEquals(8000, info.getFullPanoWidth());
+        assertEquals(-12, info.getCroppedAreaTop());
+        assertEquals(0, info.getCroppedAreaLeft());
+        assertMatchesXmpCore(packet);
+    }
+
+    @Test
+    public void extractPanoInfo_otherPrefix() {
+        String packet =
+                TestJpeg.xmpPacket(ALL_ATTRIBUTES.replace("GPano:", "pano:"))
+                        .replace("xmlns:GPano=", "xmlns:pano=");
+
+        assertEquals(8000, extract(packet).getFullPanoWidth());
+        assertMatchesXmpCore(packet);
+    }
+
+    @Test
+    public void extractPanoInfo_longerNameIsNotTheProperty() {
+        String packet =
+                TestJpeg.xmpPacket(
+                        "GPano:FullPanoWidthPixelsX=\"1\" GPano:FullPanoWidthPixels=\"8000\"");
+
+        assertEquals(8000, extract(packet).getFullPanoWidth());
+    }
+
+    @Test
+    public void extractPanoInfo_valuesXmpCoreHasToRead() {
+        // Whitespace around a value is not scanned; the packet is parsed instead.
+        String packet = TestJpeg.xmpPacket("GPano:FullPanoWidthPixels=\" 8000 \"");
+
+        assertMatchesXmpCore(packet);
+    }
+
+    @Test
+    public void extractPanoInfo_noGPano() {
+        byte[] jpeg = new TestJpeg().frame(8, 4).scan(TestJpeg.scanData(10)).toByteArray();
+
+        assertSame(PanoInfo.NONE, XmpUtil.extractPanoInfo(new ByteArrayInputStream(jpeg)));
+        assertFalse(extract(TestJpeg.xmpPacket("")).hasFullPanoSize());
+    }
+
+    private static byte[] jpeg(String packet) {
+        return new TestJpeg().xmp(packet).frame(8, 4).scan(TestJpeg.scanData(10)).toByteArray();
+    }
+
+    private static PanoInfo extract(String packet) {
+        return XmpUtil.extractPanoInfo(new ByteArrayInputStream(jpeg(packet)));
+    }
+
+    /** Checks the byte scan against reading the same packet with XMPCore. */
+    private static void assertMatchesXmpCore(String packet) {
+        PanoInfo parsed =
+                PanoInfo.fromXMPMeta(XmpUtil.extractXMPMeta(new ByteArrayInputStream(jpeg(packet))));
+        assertEquals(parsed.toString(), extract(packet).toString());
+    }
+}
@@ -0,0 +1,135 @@
+package com.kimjio.tinyplanet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Builds small JPEG files segment by segment for the header parser tests. */
+final class TestJpeg {
+    static final int M_APP1 = 0xe1;
+    static final int M_SOF0 = 0xc0;
+    static final int M_DQT = 0xdb;
+
+    static final String EXIF_HEADER = "Exif\0\0";
+    static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    static final String EXTENDED_XMP_HEADER = "http://ns.adobe.com/xmp/extension/\0";
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+    TestJpeg() {
+        mBytes.write(0xff);
+        mBytes.write(0xd8);
+    }
+
+    /** Adds a segment with the given payload, which does not include the length. */
+    TestJpeg segment(int marker, byte[] payload) {
+        int length = payload.length + 2;
+        mBytes.write(0xff);
+        mBytes.write(marker);
+        mBytes.write(length >> 8);
+        mBytes.write(length);
+        mBytes.write(payload, 0, payload.length);
+        return this;
+    }
+
+    /** Adds an APP1 segment of header followed by body. */
+    TestJpeg app1(String header, byte[] body) {
+        return segment(M_APP1, concat(ascii(header), body));
+    }
+
+    /** Adds an XMP APP1 segment holding packet. */
+    TestJpeg xmp(String packet) {
+        return app1(XMP_HEADER, packet.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Adds a baseline frame header for a one component image of the given size. */
+    TestJpeg frame(int width, int height) {
+        return segment(
+                M_SOF0,
+                new byte[] {
+                    8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+                    1, 1, 0x11, 0
+                });
+    }
+
+    /** Adds the start of scan marker, data, and the end of image marker. */
+    TestJpeg scan(byte[] data) {
+        mBytes.write(0xff);
+        mBytes.write(0xda);
+        mBytes.write(data, 0, data.length);
+        mBytes.write(0xff);
+        mBytes.write(0xd9);
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return mBytes.toByteArray();
+    }
+
+    /**
+     * Splits a JPEG file at its markers: the segments between SOI and SOS, marker and length
+     * included, and then everything from SOS on.
+     */
+    static List<byte[]> split(byte[] jpeg) {
+        List<byte[]> parts = new ArrayList<>();
+        int position = 2;
+        while ((jpeg[position + 1] & 0xff) != 0xda) {
+            int length = (jpeg[position + 2] & 0xff) << 8 | (jpeg[position + 3] & 0xff);
+            parts.add(Arrays.copyOfRange(jpeg, position, position + 2 + length));
+            position += 2 + length;
+        }
+        parts.add(Arrays.copyOfRange(jpeg, position, jpeg.length));
+        return parts;
+    }
+
+    /** Joins parts from {@link #split} back into a JPEG file. */
+    static byte[] join(List<byte[]> parts) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(0xff);
+        os.write(0xd8);
+        for (byte[] part : parts) {
+            os.write(part, 0, part.length);
+        }
+        return os.toByteArray();
+    }
+
+    /** Whether the payload of a segment from {@link #split} starts with header. */
+    static boolean hasHeader(byte[] segment, String header) {
+        byte[] prefix = ascii(header);
+        return segment.length >= 4 + prefix.length
+                && Arrays.equals(Arrays.copyOfRange(segment, 4, 4 + prefix.length), prefix);
+    }
+
+    /** Scan data that does not depend on the test, a repeating byte pattern. */
+    static byte[] scanData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            // No 0xff, which would read as a marker.
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+
+    /** A minimal XMP packet with the given rdf:Description attributes and namespaces. */
+    static String xmpPacket(String attributes) {
+        return "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                + "<rdf:Description rdf:about=\"\""
+                + " xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\" "
+                + attributes
+                + "/></rdf:RDF></x:xmpmeta>";
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,225 @@
+package com.kimjio.tinyplanet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.adobe.internal.xmp.XMPConst;
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class XmpFileUpdateTest {
+    private static final String GPANO = "http://ns.google.com/photos/1.0/panorama/";
+    private static final byte[] SCAN = TestJpeg.scanData(10000);
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void writeXMPMeta_updatesPacketInPlace() throws Exception {
+        byte[] tiff = {'M', 'M', 0, 42, 0, 0, 0, 8, 0, 0};
+        XMPMeta meta = panoMeta(7);
+        meta.setProperty(XMPConst.NS_DC, "source", largeValue(1000));
+        byte[] source =
+                withXmp(
+                        new TestJpeg()
+                                .app1(TestJpeg.EXIF_HEADER, tiff)
+                                .frame(8, 4)
+                                .scan(SCAN)
+                                .toByteArray(),
+                        meta);
+        File file = newJpeg(source);
+
+        // Smaller than the old packet, which a rewrite would shrink to.
+        assertTrue(XmpUtil.writeXMPMeta(file.getPath(), panoMeta(8)));
+
+        byte[] updated = Files.readAllBytes(file.toPath());
+        assertEquals(source.length, updated.length);
+        // Only the bytes of the packet itself, after the XMP header, differ.
+        int start = xmpPacketStart(source);
+        int end = start + xmpPacketLength(source);
+        assertArrayEquals(Arrays.copyOf(source, start), Arrays.copyOf(updated, start));
+        assertArrayEquals(
+                Arrays.copyOfRange(source, end, source.length),
+                Arrays.copyOfRange(updated, end, updated.length));
+        assertEquals(8, leftPixels(XmpUtil.extractXMPMeta(file.getPath())));
+    }
+
+    @Test
+    public void writeXMPMeta_growingPastTheRoomRewritesWithExtension() throws Exception {
+        File file = newJpeg(withXmp(jpeg(), panoMeta(7)));
+        String description = largeValue(200000);
+        XMPMeta meta = panoMeta(8);
+        meta.setProperty(XMPConst.NS_DC, "source", description);
+
+        assertTrue(XmpUtil.writeXMPMeta(file.getPath(), meta));
+
+        byte[] updated = Files.readAllBytes(file.toPath());
+        assertTrue(countSections(updated, TestJpeg.EXTENDED_XMP_HEADER) > 1);
+        assertScanIntact(updated);
+        XMPMeta read = XmpUtil.extractXMPMeta(file.getPath());
+        assertEquals(8, leftPixels(read));
+        assertEquals(description, read.getPropertyString(XMPConst.NS_DC, "source"));
+    }
+
+    @Test
+    public void writeXMPMeta_shrinkingDropsTheExtension() throws Exception {
+        File file = newJpeg(withXmp(jpeg(), panoMeta(7)));
+        XMPMeta large = panoMeta(8);
+        large.setProperty(XMPConst.NS_DC, "source", largeValue(200000));
+        assertTrue(XmpUtil.writeXMPMeta(file.getPath(), large));
+
+        assertTrue(XmpUtil.writeXMPMeta(file.getPath(), panoMeta(9)));
+
+        byte[] updated = Files.readAllBytes(file.toPath());
+        assertEquals(0, countSections(updated, TestJpeg.EXTENDED_XMP_HEADER));
+        assertEquals(1, countSections(updated, TestJpeg.XMP_HEADER));
+        assertScanIntact(updated);
+        XMPMeta read = XmpUtil.extractXMPMeta(file.getPath());
+        assertEquals(9, leftPixels(read));
+        assertNull(read.getPropertyString(XMPConst.NS_DC, "source"));
+    }
+
+    @Test
+    public void writeXMPMeta_insertsPacketAfterExif() throws Exception {
+        byte[] tiff = {'M', 'M', 0, 42, 0, 0, 0, 8, 0, 0};
+        File file =
+                newJpeg(
+                        new TestJpeg()
+                                .app1(TestJpeg.EXIF_HEADER, tiff)
+                                .frame(8, 4)
+                                .scan(SCAN)
+                                .toByteArray());
+
+        assertTrue(XmpUtil.writeXMPMeta(file.getPath(), panoMeta(7)));
+
+        byte[] updated = Files.readAllBytes(file.toPath());
+        List<byte[]> parts = TestJpeg.split(updated);
+        assertTrue(TestJpeg.hasHeader(parts.get(0), TestJpeg.EXIF_HEADER));
+        assertTrue(TestJpeg.hasHeader(parts.get(1), TestJpeg.XMP_HEADER));
+        assertEquals(TestJpeg.M_SOF0, parts.get(2)[1] & 0xff);
+        assertScanIntact(updated);
+        assertEquals(7, leftPixels(XmpUtil.extractXMPMeta(file.getPath())));
+    }
+
+    @Test
+    public void writeXMPMeta_onlyJpegFiles() throws Exception {
+        File file = mFolder.newFile("pano.png");
+        Files.write(file.toPath(), jpeg());
+
+        assertFalse(XmpUtil.writeXMPMeta(file.getPath(), panoMeta(7)));
+        assertArrayEquals(jpeg(), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void writeXMPMeta_unreadableFileIsLeftAlone() throws Exception {
+        byte[] jpeg = withXmp(jpeg(), panoMeta(7));
+        // Cut off before the scan, so neither the in-place update nor the rewrite can read it.
+        byte[] truncated = Arrays.copyOf(jpeg, jpeg.length - SCAN.length - 4);
+        File file = newJpeg(truncated);
+
+        assertFalse(XmpUtil.writeXMPMeta(file.getPath(), panoMeta(8)));
+
+        assertArrayEquals(truncated, Files.readAllBytes(file.toPath()));
+        // No temporary file is left behind.
+        assertArrayEquals(new String[] {file.getName()}, mFolder.getRoot().list());
+    }
+
+    @Test
+    public void writeXMPMeta_missingFile() throws Exception {
+        File file = new File(mFolder.getRoot(), "missing.jpg");
+
+        assertFalse(XmpUtil.writeXMPMeta(file.getPath(), panoMeta(7)));
+
+        assertFalse(file.exists());
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+
+    private static XMPMeta panoMeta(int croppedAreaLeft) throws XMPException {
+        XMPMeta meta = XmpUtil.createXMPMeta();
+        meta.setPropertyInteger(GPANO, "CroppedAreaLeftPixels", croppedAreaLeft);
+        return meta;
+    }
+
+    private static int leftPixels(XMPMeta meta) throws XMPException {
+        return meta.getPropertyInteger(GPANO, "CroppedAreaLeftPixels");
+    }
+
+    private static byte[] jpeg() {
+        return new TestJpeg().frame(8, 4).scan(SCAN).toByteArray();
+    }
+
+    /** jpeg with meta written the way a stream is, which leaves room for in-place updates. */
+    private static byte[] withXmp(byte[] jpeg, XMPMeta meta) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(XmpUtil.writeXMPMeta(new ByteArrayInputStream(jpeg), os, meta));
+        return os.toByteArray();
+    }
+
+    private File newJpeg(byte[] contents) throws IOException {
+        File file = mFolder.newFile("pano" + mFolder.getRoot().list().length + ".jpg");
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    /** Where the XMP packet, after the segment header and the XMP header, starts in jpeg. */
+    private static int xmpPacketStart(byte[] jpeg) {
+        int offset = 2;
+        for (byte[] part : TestJpeg.split(jpeg)) {
+            if (TestJpeg.hasHeader(part, TestJpeg.XMP_HEADER)) {
+                return offset + 4 + TestJpeg.XMP_HEADER.length();
+            }
+            offset += part.length;
+        }
+        throw new AssertionError("No XMP section");
+    }
+
+    private static int xmpPacketLength(byte[] jpeg) {
+        for (byte[] part : TestJpeg.split(jpeg)) {
+            if (TestJpeg.hasHeader(part, TestJpeg.XMP_HEADER)) {
+                return part.length - 4 - TestJpeg.XMP_HEADER.length();
+            }
+        }
+        throw new AssertionError("No XMP section");
+    }
+
+    private static int countSections(byte[] jpeg, String header) {
+        int count = 0;
+        for (byte[] part : TestJpeg.split(jpeg)) {
+            if ((part[1] & 0xff) == TestJpeg.M_APP1 && TestJpeg.hasHeader(part, header)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Checks that jpeg ends in the frame header and scan the test files are made with. */
+    private static void assertScanIntact(byte[] jpeg) {
+        List<byte[]> parts = TestJpeg.split(jpeg);
+        byte[] image = new TestJpeg().frame(8, 4).scan(SCAN).toByteArray();
+        assertArrayEquals(
+                Arrays.copyOfRange(image, 2, image.length),
+                TestJpeg.concat(parts.get(parts.size() - 2), parts.get(parts.size() - 1)));
+    }
+
+    private static String largeValue(int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package android.graphics;
+
+import java.io.OutputStream;
+
+/**
+ * Host stand-in for {@code android.graphics.Bitmap}. There is no encoder on the host; the
+ * benchmarks feed pre-encoded JPEG bytes to the exif writer instead.
+ */
+public final class Bitmap {
+    public enum CompressFormat {
+        JPEG,
+        PNG,
+        WEBP
+    }
+
+    private Bitmap() {}
+
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        throw new UnsupportedOperationException("Bitmap.compress is not available on the host");
+    }
+}
@@ -0,0 +1,57 @@
+package com.kimjio.tinyplanet.benchmark;
+
+import com.kimjio.tinyplanet.exif.ExifInterface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.TimeZone;
+
+/** The EXIF writer, as used when a tiny planet is saved. */
+@State(Scope.Benchmark)
+public class ExifWriteBenchmark {
+    /** Size of the writes an encoder hands to the exif stream. */
+    private static final int ENCODER_CHUNK_SIZE = 8 * 1024;
+
+    @Param({"small", "small_xmp", "30mp", "30mp_xmp", "large_app"})
+    public String jpeg;
+
+    private byte[] mJpeg;
+
+    @Setup
+    public void setUp() throws IOException {
+        mJpeg = JpegCorpus.load(jpeg);
+    }
+
+    private static ExifInterface createExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addDateTimeStampTag(
+                ExifInterface.TAG_DATE_TIME, 1_700_000_000_000L, TimeZone.getTimeZone("UTC"));
+        return exif;
+    }
+
+    /** {@link ExifInterface#writeExif(byte[], OutputStream)} with the whole image at once. */
+    @Benchmark
+    public long writeExifBytes() throws IOException {
+        NullOutputStream sink = new NullOutputStream();
+        createExif().writeExif(mJpeg, sink);
+        return sink.getCount();
+    }
+
+    /** The exif writer stream fed in encoder-sized chunks, as {@code Bitmap.compress} does. */
+    @Benchmark
+    public long writeExifStreamed() throws IOException {
+        NullOutputStream sink = new NullOutputStream();
+        OutputStream s = createExif().getExifWriterStream(sink);
+        for (int offset = 0; offset < mJpeg.length; offset += ENCODER_CHUNK_SIZE) {
+            s.write(mJpeg, offset, Math.min(ENCODER_CHUNK_SIZE, mJpeg.length - offset));
+        }
+        s.flush();
+        return sink.getCount();
+    }
+}
@@ -0,0 +1,201 @@
+package com.kimjio.tinyplanet.benchmark;
+
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+import com.adobe.internal.xmp.XMPMetaFactory;
+import com.adobe.internal.xmp.options.SerializeOptions;
+import com.kimjio.tinyplanet.util.XmpUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * JPEG inputs for the metadata benchmarks.
+ *
+ * <p>The synthetic files have a real marker layout (APPn segments, DQT, SOF0, DHT, SOS) followed
+ * by random entropy-coded data sized like a camera JPEG of the same resolution. The metadata
+ * paths never decode pixels, so that is all they need to see. {@code file:<path>} loads a real
+ * JPEG instead.
+ */
+final class JpegCorpus {
+    static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
+
+    private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final String FILE_PREFIX = "file:";
+
+    private static final int M_SOI = 0xd8;
+    private static final int M_EOI = 0xd9;
+    private static final int M_APP0 = 0xe0;
+    private static final int M_APP1 = 0xe1;
+    private static final int M_APP2 = 0xe2;
+    private static final int M_DQT = 0xdb;
+    private static final int M_SOF0 = 0xc0;
+    private static final int M_DHT = 0xc4;
+    private static final int M_SOS = 0xda;
+
+    /** Largest payload of a single marker segment (the length field counts itself). */
+    private static final int MAX_SEGMENT_PAYLOAD = 0xffff - 2;
+
+    /** Roughly what a camera produces at quality 90-95. */
+    private static final double BITS_PER_PIXEL = 2.4;
+
+    private JpegCorpus() {}
+
+    /**
+     * Returns the JPEG for a {@code jpeg} benchmark parameter.
+     *
+     * <ul>
+     *   <li>{@code small}, {@code small_xmp}: 640x320 without / with a GPano XMP packet.
+     *   <li>{@code 30mp}, {@code 30mp_xmp}: 7744x3872 without / with a GPano XMP packet.
+     *   <li>{@code large_app}: 30 MP with XMP, a 60 KB EXIF thumbnail and four full-size APP2
+     *       (ICC profile) segments in front of the frame header.
+     *   <li>{@code file:<path>}: a JPEG from disk.
+     * </ul>
+     */
+    static byte[] load(String spec) throws IOException {
+        if (spec.startsWith(FILE_PREFIX)) {
+            return Files.readAllBytes(Paths.get(spec.substring(FILE_PREFIX.length())));
+        }
+        switch (spec) {
+            case "small":
+                return synthesize(640, 320, false, 0, 0);
+            case "small_xmp":
+                return synthesize(640, 320, true, 0, 0);
+            case "30mp":
+                return synthesize(7744, 3872, false, 0, 0);
+            case "30mp_xmp":
+                return synthesize(7744, 3872, true, 0, 0);
+            case "large_app":
+                return synthesize(7744, 3872, true, 60 * 1024, 4);
+            default:
+                throw new IllegalArgumentException("Unknown corpus entry: " + spec);
+        }
+    }
+
+    /** A GPano packet like the one a camera app writes into a photo sphere. */
+    static XMPMeta createPanoMeta(int width, int height) {
+        XMPMeta meta = XmpUtil.createXMPMeta();
+        try {
+            meta.setProperty(GOOGLE_PANO_NAMESPACE, "ProjectionType", "equirectangular");
+            meta.setPropertyBoolean(GOOGLE_PANO_NAMESPACE, "UsePanoramaViewer", true);
+            meta.setPropertyInteger(GOOGLE_PANO_NAMESPACE, "CroppedAreaImageWidthPixels", width);
+            meta.setPropertyInteger(GOOGLE_PANO_NAMESPACE, "CroppedAreaImageHeightPixels", height);
+            meta.setPropertyInteger(GOOGLE_PANO_NAMESPACE, "FullPanoWidthPixels", width);
+            meta.setPropertyInteger(GOOGLE_PANO_NAMESPACE, "FullPanoHeightPixels", width / 2);
+            meta.setPropertyInteger(GOOGLE_PANO_NAMESPACE, "CroppedAreaLeftPixels", 0);
+            meta.setPropertyInteger(GOOGLE_PANO_NAMESPACE, "CroppedAreaTopPixels", 0);
+            meta.setProperty(GOOGLE_PANO_NAMESPACE, "PoseHeadingDegrees", "0.0");
+        } catch (XMPException e) {
+            throw new IllegalStateException(e);
+        }
+        return meta;
+    }
+
+    private static byte[] synthesize(
+            int width, int height, boolean withXmp, int exifThumbnailBytes, int iccSegments)
+            throws IOException {
+        Random random = new Random(width * 31L + height);
+        long scanBytes = (long) (width * (long) height * BITS_PER_PIXEL / 8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) scanBytes + 256 * 1024);
+        out.write(0xff);
+        out.write(M_SOI);
+
+        writeSegment(out, M_APP0, new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        if (exifThumbnailBytes > 0) {
+            writeSegment(out, M_APP1, exifWithThumbnail(exifThumbnailBytes, random));
+        }
+        if (withXmp) {
+            writeSegment(out, M_APP1, xmp(width, height));
+        }
+        for (int i = 0; i < iccSegments; i++) {
+            byte[] icc = randomBytes(MAX_SEGMENT_PAYLOAD, random);
+            byte[] tag = "ICC_PROFILE\0".getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(tag, 0, icc, 0, tag.length);
+            icc[tag.length] = (byte) (i + 1);
+            icc[tag.length + 1] = (byte) iccSegments;
+            writeSegment(out, M_APP2, icc);
+        }
+
+        byte[] dqt = randomBytes(65, random);
+        dqt[0] = 0;
+        writeSegment(out, M_DQT, dqt);
+        writeSegment(
+                out,
+                M_SOF0,
+                new byte[] {
+                    8,
+                    (byte) (height >> 8), (byte) height,
+                    (byte) (width >> 8), (byte) width,
+                    3,
+                    1, 0x22, 0,
+                    2, 0x11, 1,
+                    3, 0x11, 1
+                });
+        byte[] dht = new byte[29];
+        dht[1] = 1; // One code of length 1, symbol 0.
+        writeSegment(out, M_DHT, dht);
+        writeSegment(out, M_SOS, new byte[] {3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+
+        byte[] chunk = new byte[64 * 1024];
+        for (long written = 0; written < scanBytes; written += chunk.length) {
+            random.nextBytes(chunk);
+            for (int i = 0; i < chunk.length; i++) {
+                // Keep the scan free of markers, as byte stuffing would.
+                if (chunk[i] == (byte) 0xff) {
+                    chunk[i] = (byte) 0xfe;
+                }
+            }
+            out.write(chunk, 0, (int) Math.min(chunk.length, scanBytes - written));
+        }
+        out.write(0xff);
+        out.write(M_EOI);
+        return out.toByteArray();
+    }
+
+    private static byte[] xmp(int width, int height) throws IOException {
+        SerializeOptions options = new SerializeOptions();
+        options.setUseCompactFormat(true);
+        options.setOmitPacketWrapper(true);
+        byte[] packet;
+        try {
+            packet = XMPMetaFactory.serializeToBuffer(createPanoMeta(width, height), options);
+        } catch (XMPException e) {
+            throw new IOException(e);
+        }
+        byte[] header = XMP_HEADER.getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[header.length + packet.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(packet, 0, data, header.length, packet.length);
+        return data;
+    }
+
+    /** An Exif APP1 payload: an empty IFD0 followed by opaque thumbnail bytes. */
+    private static byte[] exifWithThumbnail(int thumbnailBytes, Random random) {
+        byte[] data = randomBytes(6 + 8 + 6 + thumbnailBytes, random);
+        byte[] header = {'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 0x2a, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0};
+        System.arraycopy(header, 0, data, 0, header.length);
+        return data;
+    }
+
+    private static byte[] randomBytes(int length, Random random) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        if (payload.length > MAX_SEGMENT_PAYLOAD) {
+            throw new IllegalArgumentException("Segment payload too large: " + payload.length);
+        }
+        int length = payload.length + 2;
+        out.write(0xff);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+}
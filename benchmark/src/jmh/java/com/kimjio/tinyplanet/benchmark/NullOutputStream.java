@@ -0,0 +1,22 @@
+package com.kimjio.tinyplanet.benchmark;
+
+import java.io.OutputStream;
+
+/** Discards everything written to it but counts the bytes, so the JIT cannot drop the writes. */
+final class NullOutputStream extends OutputStream {
+    private long mCount;
+
+    @Override
+    public void write(int b) {
+        mCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        mCount += len;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+}
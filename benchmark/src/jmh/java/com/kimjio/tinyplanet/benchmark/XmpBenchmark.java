@@ -0,0 +1,52 @@
+package com.kimjio.tinyplanet.benchmark;
+
+import com.adobe.internal.xmp.XMPMeta;
+import com.kimjio.tinyplanet.util.PanoInfo;
+import com.kimjio.tinyplanet.util.XmpUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/** XMP extraction when a panorama is opened, and XMP rewriting when a tiny planet is saved. */
+@State(Scope.Benchmark)
+public class XmpBenchmark {
+    @Param({"small", "small_xmp", "30mp", "30mp_xmp", "large_app"})
+    public String jpeg;
+
+    private byte[] mJpeg;
+    private XMPMeta mMeta;
+
+    @Setup
+    public void setUp() throws IOException {
+        mJpeg = JpegCorpus.load(jpeg);
+        mMeta = JpegCorpus.createPanoMeta(1080, 1080);
+    }
+
+    @Benchmark
+    public XMPMeta extractXMPMeta() {
+        return XmpUtil.extractXMPMeta(new ByteArrayInputStream(mJpeg));
+    }
+
+    @Benchmark
+    public PanoInfo extractPanoInfo() {
+        return XmpUtil.extractPanoInfo(new ByteArrayInputStream(mJpeg));
+    }
+
+    @Benchmark
+    public PanoInfo extractPanoInfoFromXMPMeta() {
+        return PanoInfo.fromXMPMeta(XmpUtil.extractXMPMeta(new ByteArrayInputStream(mJpeg)));
+    }
+
+    @Benchmark
+    public long writeXMPMeta() {
+        NullOutputStream sink = new NullOutputStream();
+        XmpUtil.writeXMPMeta(new ByteArrayInputStream(mJpeg), sink, mMeta);
+        return sink.getCount();
+    }
+}